@@ -6,8 +6,67 @@ for i in $(seq 10 35); do
     ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar FatNodePersistentMap 1000 FatNodePersistentMap "$arg_n" >> "fnm_in.txt"
 done
 
+> "fnm_alloc.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar FatNodePersistentMap 1000 FatNodePersistentMap "$arg_n" allocation >> "fnm_alloc.txt"
+done
+
 > "m_in.txt"
 for i in $(seq 10 35); do
     arg_n=$((i * 1000))
     ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentMap 1000 PersistentMap "$arg_n" >> "m_in.txt"
-done
\ No newline at end of file
+done
+> "llm_in.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar LongLongPersistentMap 1000 LongLongPersistentMap "$arg_n" >> "llm_in.txt"
+done
+
+> "m_alloc.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentMap 1000 PersistentMap "$arg_n" allocation >> "m_alloc.txt"
+done
+
+> "llm_alloc.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar LongLongPersistentMap 1000 LongLongPersistentMap "$arg_n" allocation >> "llm_alloc.txt"
+done
+
+> "a_in.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentArray 1000 PersistentArray "$arg_n" >> "a_in.txt"
+done
+
+> "a_alloc.txt"
+for i in $(seq 10 35); do
+    arg_n=$((i * 1000))
+    ~/.jdks/openjdk-21.0.1/bin/java -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentArray 1000 PersistentArray "$arg_n" allocation >> "a_alloc.txt"
+done
+
+> "cm_contention.txt"
+~/.jdks/openjdk-21.0.1/bin/java -cp target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar ru.nsu.ccfit.persistent.data.structure.ContentionBenchmark ConcurrentPersistentMap 100000 20 >> "cm_contention.txt"
+
+> "sm_contention.txt"
+~/.jdks/openjdk-21.0.1/bin/java -cp target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar ru.nsu.ccfit.persistent.data.structure.ContentionBenchmark SynchronizedPersistentMap 100000 20 >> "sm_contention.txt"
+
+for p in 1 2 4; do
+    > "m_slots_${p}.txt"
+    > "m_slots_${p}_alloc.txt"
+    > "l_slots_${p}.txt"
+    > "l_slots_${p}_alloc.txt"
+    for i in $(seq 10 35); do
+        arg_n=$((i * 1000))
+        list_n=$((i * 100))
+        ~/.jdks/openjdk-21.0.1/bin/java -Dmodification.slots="$p" -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentMap 1000 PersistentMap "$arg_n" >> "m_slots_${p}.txt"
+        ~/.jdks/openjdk-21.0.1/bin/java -Dmodification.slots="$p" -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentMap 1000 PersistentMap "$arg_n" allocation >> "m_slots_${p}_alloc.txt"
+        ~/.jdks/openjdk-21.0.1/bin/java -Dmodification.slots="$p" -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentDoubleLinkedList 1000 PersistentDoubleLinkedList "$list_n" >> "l_slots_${p}.txt"
+        ~/.jdks/openjdk-21.0.1/bin/java -Dmodification.slots="$p" -jar target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar PersistentDoubleLinkedList 1000 PersistentDoubleLinkedList "$list_n" allocation >> "l_slots_${p}_alloc.txt"
+    done
+done
+
+> "read.txt"
+~/.jdks/openjdk-21.0.1/bin/java -cp target/persistent-data-structure-benchmark-0.0.1-SNAPSHOT.jar ru.nsu.ccfit.persistent.data.structure.ReadBenchmark 300000 5000 >> "read.txt"
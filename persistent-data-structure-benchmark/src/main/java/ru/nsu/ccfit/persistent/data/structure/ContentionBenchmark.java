@@ -0,0 +1,107 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import ru.nsu.ccfit.persistent.data.structure.map.ConcurrentPersistentMap;
+import ru.nsu.ccfit.persistent.data.structure.map.PersistentMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Замер пропускной способности ассоциативного массива при одновременных чтениях и изменениях
+ * из 1 - 64 потоков.
+ */
+public class ContentionBenchmark {
+
+    /**
+     * Количество потоков в замерах.
+     */
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    /**
+     * Диапазон ключей.
+     */
+    private static final int KEYS = 10_000;
+
+    public static void main(String[] args) {
+        try {
+            executeUnsafe(args);
+        } catch (Exception exception) {
+            System.err.println(exception.getMessage());
+        }
+    }
+
+    private static void executeUnsafe(String[] args) throws Exception {
+        if (args.length != 3) {
+            throw new IllegalArgumentException("Specify structure, operations per thread, write percent");
+        }
+        var structureName = args[0];
+        var operations = Integer.parseInt(args[1]);
+        var writePercent = Integer.parseInt(args[2]);
+        // preheat
+        execute(getMapFromType(structureName), 4, operations, writePercent);
+
+        // benchmark
+        for (int threads : THREADS) {
+            var millis = execute(getMapFromType(structureName), threads, operations, writePercent);
+            var throughput = millis == 0 ? 0 : (long) threads * operations / millis;
+            System.out.printf("%d %d %d%n", threads, millis, throughput);
+        }
+    }
+
+    /**
+     * Выполняет операции во всех потоках одновременно и возвращает время до завершения последнего.
+     */
+    private static long execute(Map<Integer, Integer> map, int threads, int operations, int writePercent)
+            throws Exception {
+        for (int i = 0; i < KEYS; i += 2) {
+            map.put(i, i);
+        }
+        var barrier = new CyclicBarrier(threads + 1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            var random = new SplittableRandom(t);
+            var worker = new Thread(() -> {
+                await(barrier);
+                for (int i = 0; i < operations; i++) {
+                    var key = random.nextInt(KEYS);
+                    if (random.nextInt(100) < writePercent) {
+                        map.put(key, i);
+                    } else {
+                        map.get(key);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        await(barrier);
+        var startTime = System.currentTimeMillis();
+        for (var worker : workers) {
+            worker.join();
+        }
+        return System.currentTimeMillis() - startTime;
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (Exception exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static Map<Integer, Integer> getMapFromType(String type) {
+        if (type.equals("ConcurrentPersistentMap")) {
+            return new ConcurrentPersistentMap<>();
+        } else if (type.equals("SynchronizedPersistentMap")) {
+            return Collections.synchronizedMap(new PersistentMap<>());
+        } else {
+            throw new IllegalArgumentException("Unknown map type");
+        }
+    }
+
+}
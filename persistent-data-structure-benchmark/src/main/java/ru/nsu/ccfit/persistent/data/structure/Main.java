@@ -1,13 +1,26 @@
 package ru.nsu.ccfit.persistent.data.structure;
 
+import ru.nsu.ccfit.persistent.data.structure.array.PersistentArray;
+import ru.nsu.ccfit.persistent.data.structure.list.PersistentDoubleLinkedList;
 import ru.nsu.ccfit.persistent.data.structure.map.FatNodePersistentMap;
+import ru.nsu.ccfit.persistent.data.structure.map.LongLongPersistentMap;
+import ru.nsu.ccfit.persistent.data.structure.map.PersistentHashMap;
 import ru.nsu.ccfit.persistent.data.structure.map.PersistentMap;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 public class Main {
 
+    /**
+     * Количество ячеек модификаций в узлах PersistentMap и PersistentDoubleLinkedList, задается
+     * свойством {@code -Dmodification.slots=p}. Если свойство не задано, используется значение
+     * структуры по умолчанию.
+     */
+    private static final Integer MODIFICATION_SLOTS = Integer.getInteger("modification.slots");
+
     public static void main(String[] args) {
         try {
             executeUnsafe(args);
@@ -17,63 +30,185 @@ public class Main {
     }
 
     private static void executeUnsafe(String[] args) {
-        if (args.length != 4) {
-            throw new IllegalArgumentException("Specify preheat structure, preheat n, structure, n");
+        if (args.length != 4 && args.length != 5) {
+            throw new IllegalArgumentException("Specify preheat structure, preheat n, structure, n [time|allocation]");
         }
+        var report = args.length == 5 ? Report.fromName(args[4]) : Report.TIME;
         // preheat
-        execute(Arrays.copyOfRange(args, 0, 2), false);
+        execute(Arrays.copyOfRange(args, 0, 2), null);
 
         // benchmark
-        execute(Arrays.copyOfRange(args, 2, 4), true);
+        execute(Arrays.copyOfRange(args, 2, 4), report);
     }
 
-    private static void execute(String[] args, boolean log) {
+    private static void execute(String[] args, Report report) {
         var structureName = args[0];
         var n = Long.parseLong(args[1]);
-        if (structureName.endsWith("Map")) {
-            executeMap(getMapFromType(structureName), n, log);
+        if (structureName.equals("LongLongPersistentMap")) {
+            executeLongLongMap(new LongLongPersistentMap(), n, report);
+        } else if (structureName.endsWith("Map")) {
+            executeMap(getMapFromType(structureName), n, report);
+        } else if (structureName.equals("PersistentDoubleLinkedList")) {
+            executeList(
+                    MODIFICATION_SLOTS == null
+                            ? new PersistentDoubleLinkedList<>()
+                            : new PersistentDoubleLinkedList<>(MODIFICATION_SLOTS),
+                    n,
+                    report
+            );
+        } else if (structureName.equals("PersistentArray")) {
+            executeList(new PersistentArray<>(), n, report);
         } else {
             throw new IllegalArgumentException("Unknown structure");
         }
     }
 
-    private static void executeMap(Map<Long, Long> map, long n, boolean log) {
+    private static void executeMap(Map<Long, Long> map, long n, Report report) {
         // insert
-        var startTime = System.currentTimeMillis();
-        for (long i = 0L; i < n; ++i) {
-            map.put(i, i);
-        }
-        var endTime = System.currentTimeMillis();
-        var insertTime = endTime - startTime;
+        var insert = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.put(i, i);
+            }
+        });
 
         // read
-        startTime = System.currentTimeMillis();
-        for (long i = 0L; i < n; ++i) {
-            map.get(i);
-        }
-        endTime = System.currentTimeMillis();
-        var readTime = endTime - startTime;
+        var read = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.get(i);
+            }
+        });
 
         // update
-        startTime = System.currentTimeMillis();
-        for (long i = 0L; i < n; ++i) {
-            map.put(i, -i);
-        }
-        endTime = System.currentTimeMillis();
-        var updateTime = endTime - startTime;
-        if (log) {
-            System.out.printf("%d %d %d%n", insertTime, readTime, updateTime);
+        var update = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.put(i, -i);
+            }
+        });
+        log(report, insert, read, update);
+    }
+
+    private static void executeList(List<Long> list, long n, Report report) {
+        // insert
+        var insert = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                list.add(i);
+            }
+        });
+
+        // read
+        var read = measure(n, () -> {
+            for (int i = 0; i < n; ++i) {
+                list.get(i);
+            }
+        });
+
+        // update
+        var update = measure(n, () -> {
+            for (int i = 0; i < n; ++i) {
+                list.set(i, (long) -i);
+            }
+        });
+        log(report, insert, read, update);
+    }
+
+    private static void executeLongLongMap(LongLongPersistentMap map, long n, Report report) {
+        // insert
+        var insert = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.put(i, i);
+            }
+        });
+
+        // read
+        var read = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.get(i);
+            }
+        });
+
+        // update
+        var update = measure(n, () -> {
+            for (long i = 0L; i < n; ++i) {
+                map.put(i, -i);
+            }
+        });
+        log(report, insert, read, update);
+    }
+
+    private static Measurement measure(long n, Runnable operations) {
+        var startBytes = allocatedBytes();
+        var startTime = System.currentTimeMillis();
+        operations.run();
+        var endTime = System.currentTimeMillis();
+        var endBytes = allocatedBytes();
+        return new Measurement(endTime - startTime, n == 0 ? 0 : (endBytes - startBytes) / n);
+    }
+
+    /**
+     * Возвращает количество байт, выделенных текущим потоком.
+     */
+    private static long allocatedBytes() {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getCurrentThreadAllocatedBytes();
+    }
+
+    private static void log(Report report, Measurement insert, Measurement read, Measurement update) {
+        if (report == Report.TIME) {
+            System.out.printf("%d %d %d%n", insert.millis(), read.millis(), update.millis());
+        } else if (report == Report.ALLOCATION) {
+            System.out.printf(
+                    "%d %d %d%n",
+                    insert.bytesPerOperation(),
+                    read.bytesPerOperation(),
+                    update.bytesPerOperation()
+            );
         }
     }
 
     private static Map<Long, Long> getMapFromType(String type) {
         if (type.equals("PersistentMap")) {
-            return new PersistentMap<>();
+            return MODIFICATION_SLOTS == null ? new PersistentMap<>() : new PersistentMap<>(MODIFICATION_SLOTS);
         } else if (type.equals("FatNodePersistentMap")) {
             return new FatNodePersistentMap<>();
+        } else if (type.equals("PersistentHashMap")) {
+            return new PersistentHashMap<>();
         } else {
             throw new IllegalArgumentException("Unknown map type");
         }
     }
 
+    /**
+     * Результат замера группы операций.
+     *
+     * @param millis            Время выполнения в миллисекундах.
+     * @param bytesPerOperation Количество выделенных байт на одну операцию.
+     */
+    private record Measurement(long millis, long bytesPerOperation) {
+    }
+
+    /**
+     * Выводимая характеристика замера.
+     */
+    private enum Report {
+
+        /**
+         * Время выполнения операций.
+         */
+        TIME,
+
+        /**
+         * Выделенная память на одну операцию.
+         */
+        ALLOCATION;
+
+        static Report fromName(String name) {
+            return switch (name) {
+                case "time" -> TIME;
+                case "allocation" -> ALLOCATION;
+                default -> throw new IllegalArgumentException("Unknown report type");
+            };
+        }
+
+    }
+
 }
@@ -0,0 +1,74 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import ru.nsu.ccfit.persistent.data.structure.list.PersistentDoubleLinkedList;
+import ru.nsu.ccfit.persistent.data.structure.map.PersistentMap;
+
+/**
+ * Замер чтения полей узлов в версиях: поиск по ассоциативному массиву в текущей и в ранней
+ * версии и доступ по индексу в списке. Узлы перед замером получают модификации, поэтому чтение
+ * проходит через ячейки модификаций.
+ */
+public class ReadBenchmark {
+
+    /**
+     * Количество повторов замера, первые из которых прогревают компилятор.
+     */
+    private static final int ROUNDS = 6;
+
+    public static void main(String[] args) {
+        try {
+            executeUnsafe(args);
+        } catch (Exception exception) {
+            System.err.println(exception.getMessage());
+        }
+    }
+
+    private static void executeUnsafe(String[] args) {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Specify map size, list size");
+        }
+        var mapSize = Integer.parseInt(args[0]);
+        var listSize = Integer.parseInt(args[1]);
+        for (int round = 0; round < ROUNDS; round++) {
+            var map = new PersistentMap<Long, Long>();
+            for (long i = 0; i < mapSize; i++) {
+                map.put(i * 7919 % mapSize, i);
+            }
+            for (long i = 0; i < mapSize; i += 3) {
+                map.put(i, -i);
+            }
+            var oldVersion = map.getCurrentVersion() / 2;
+            var list = new PersistentDoubleLinkedList<Long>();
+            for (long i = 0; i < listSize; i++) {
+                list.add(i);
+            }
+            for (int i = 0; i < listSize; i += 2) {
+                list.set(i, -1L);
+            }
+
+            var current = measure(() -> {
+                for (long i = 0; i < mapSize; i++) {
+                    map.get(i);
+                }
+            });
+            var old = measure(() -> {
+                for (long i = 0; i < mapSize; i++) {
+                    map.get(i, oldVersion);
+                }
+            });
+            var indexed = measure(() -> {
+                for (int i = 0; i < listSize; i++) {
+                    list.get(i);
+                }
+            });
+            System.out.printf("%d %d %d%n", current, old, indexed);
+        }
+    }
+
+    private static long measure(Runnable operations) {
+        var startTime = System.currentTimeMillis();
+        operations.run();
+        return System.currentTimeMillis() - startTime;
+    }
+
+}
@@ -0,0 +1,50 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+/**
+ * Отличие одного элемента между двумя версиями структуры: ключ или индекс элемента и его значения
+ * в исходной и в целевой версии.
+ *
+ * @param type     Вид отличия.
+ * @param key      Ключ или индекс элемента.
+ * @param oldValue Значение в исходной версии или null, если элемент добавлен.
+ * @param newValue Значение в целевой версии или null, если элемент удален.
+ * @param <K>      Тип ключа.
+ * @param <V>      Тип значения.
+ */
+public record Change<K, V>(Type type, K key, V oldValue, V newValue) {
+
+    public static <K, V> Change<K, V> added(K key, V newValue) {
+        return new Change<>(Type.ADDED, key, null, newValue);
+    }
+
+    public static <K, V> Change<K, V> removed(K key, V oldValue) {
+        return new Change<>(Type.REMOVED, key, oldValue, null);
+    }
+
+    public static <K, V> Change<K, V> changed(K key, V oldValue, V newValue) {
+        return new Change<>(Type.CHANGED, key, oldValue, newValue);
+    }
+
+    /**
+     * Вид отличия.
+     */
+    public enum Type {
+
+        /**
+         * Элемента нет в исходной версии.
+         */
+        ADDED,
+
+        /**
+         * Элемента нет в целевой версии.
+         */
+        REMOVED,
+
+        /**
+         * Значение элемента изменилось.
+         */
+        CHANGED
+
+    }
+
+}
@@ -0,0 +1,84 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import java.time.Instant;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Политика хранения истории: определяет самую раннюю версию, которую нужно сохранить.
+ * Сохраняются все версии с номером не меньше этой, а версии с меньшими номерами отбрасываются
+ * при уплотнении.
+ */
+@FunctionalInterface
+public interface RetentionPolicy {
+
+    /**
+     * Возвращает самую раннюю версию, которую нужно сохранить.
+     *
+     * @param firstVersion Самая ранняя сохраненная версия.
+     * @param lastVersion  Последняя версия.
+     * @param createdAt    Время создания версии в миллисекундах от начала эпохи.
+     * @return Самая ранняя версия, которую нужно сохранить.
+     */
+    long oldestRetainedVersion(long firstVersion, long lastVersion, LongUnaryOperator createdAt);
+
+    /**
+     * Возвращает политику, сохраняющую версии, которые сохраняет хотя бы одна из политик.
+     *
+     * @param other Другая политика.
+     * @return Объединение политик.
+     */
+    default RetentionPolicy or(RetentionPolicy other) {
+        return (firstVersion, lastVersion, createdAt) -> Math.min(
+                oldestRetainedVersion(firstVersion, lastVersion, createdAt),
+                other.oldestRetainedVersion(firstVersion, lastVersion, createdAt)
+        );
+    }
+
+    /**
+     * Возвращает политику, сохраняющую всю историю.
+     *
+     * @return Политика без отбрасывания версий.
+     */
+    static RetentionPolicy keepAll() {
+        return (firstVersion, lastVersion, createdAt) -> firstVersion;
+    }
+
+    /**
+     * Возвращает политику, сохраняющую последние count версий.
+     *
+     * @param count Количество версий, не меньше 1.
+     * @return Политика хранения последних версий.
+     */
+    static RetentionPolicy keepLast(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Count must be positive");
+        }
+        return (firstVersion, lastVersion, createdAt) -> Math.max(firstVersion, lastVersion - count + 1);
+    }
+
+    /**
+     * Возвращает политику, сохраняющую версии, созданные не раньше указанного времени, и последнюю
+     * версию.
+     *
+     * @param time Время.
+     * @return Политика хранения новых версий.
+     */
+    static RetentionPolicy keepNewerThan(Instant time) {
+        var millis = time.toEpochMilli();
+        return (firstVersion, lastVersion, createdAt) -> {
+            // время создания версий не убывает
+            long low = firstVersion;
+            long high = lastVersion;
+            while (low < high) {
+                var middle = (low + high) >>> 1;
+                if (createdAt.applyAsLong(middle) >= millis) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low;
+        };
+    }
+
+}
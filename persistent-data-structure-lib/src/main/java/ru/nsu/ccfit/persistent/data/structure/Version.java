@@ -0,0 +1,161 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import ru.nsu.ccfit.persistent.data.structure.node.BranchedVersion;
+
+/**
+ * Вершина дерева версий. Изменение из любой версии создает ее дочернюю версию: изменение последней
+ * версии ветки продолжает ветку, а изменение более ранней версии начинает новую ветку, не трогая
+ * будущее исходной.
+ * <p>
+ * Порядок версий частичный: версия предшествует другой, если она - предок этой версии или
+ * совпадает с ней. Поэтому модификация узла, записанная в версии, видна только версиям ее
+ * поддерева, а проверка предшествования проходит только по веткам, а не по всем версиям.
+ */
+public final class Version implements BranchedVersion<Version> {
+
+    /**
+     * Номер версии.
+     */
+    private final long id;
+
+    /**
+     * Номер родительской версии или -1 для корня.
+     */
+    private final long parentId;
+
+    /**
+     * Ветка версии.
+     */
+    private final Branch branch;
+
+    /**
+     * Номер дочерней версии, в которую переходит redo, или -1.
+     */
+    private long nextId;
+
+    private Version(long id, long parentId, Branch branch) {
+        this.id = id;
+        this.parentId = parentId;
+        this.branch = branch;
+        this.nextId = -1;
+        branch.tip = this;
+    }
+
+    /**
+     * Создает корень дерева версий.
+     *
+     * @param id Номер версии.
+     * @return Версия без родителя.
+     */
+    public static Version root(long id) {
+        return new Version(id, -1, new Branch(null, 0));
+    }
+
+    /**
+     * Создает дочернюю версию и делает ее версией для redo.
+     *
+     * @param childId Номер новой версии, больше номеров всех существующих версий.
+     * @return Дочерняя версия.
+     */
+    public Version createChild(long childId) {
+        var childBranch = branch.tip == this ? branch : new Branch(this, branch.depth + 1);
+        nextId = childId;
+        return new Version(childId, id, childBranch);
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public Object getBranch() {
+        return branch;
+    }
+
+    public long getParentId() {
+        return parentId;
+    }
+
+    public long getNextId() {
+        return nextId;
+    }
+
+    public void setNextId(long nextId) {
+        this.nextId = nextId;
+    }
+
+    @Override
+    public boolean precedes(Version other) {
+        return other.follows(id, branch);
+    }
+
+    @Override
+    public boolean follows(long id, Object branch) {
+        var depth = ((Branch) branch).depth;
+        var target = this;
+        while (target != null) {
+            if (target.branch == branch) {
+                return id <= target.id;
+            }
+            if (target.branch.depth <= depth) {
+                return false;
+            }
+            target = target.branch.fork;
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает ближайшего общего предка версий.
+     *
+     * @param first  Версия.
+     * @param second Версия.
+     * @return Ближайший общий предок.
+     */
+    public static Version commonAncestor(Version first, Version second) {
+        var a = first;
+        var b = second;
+        while (a.branch != b.branch) {
+            if (a.branch.depth >= b.branch.depth) {
+                a = a.branch.fork;
+            } else {
+                b = b.branch.fork;
+            }
+        }
+        return a.id <= b.id ? a : b;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(id);
+    }
+
+    /**
+     * Ветка: цепочка версий, каждая из которых - родитель следующей.
+     */
+    private static final class Branch {
+
+        /**
+         * Версия, от которой начинается ветка, или null для ветки корня.
+         */
+        private final Version fork;
+
+        /**
+         * Количество веток от начальной версии до этой.
+         */
+        private final int depth;
+
+        /**
+         * Последняя версия ветки.
+         */
+        private Version tip;
+
+        private Branch(Version fork, int depth) {
+            this.fork = fork;
+            this.depth = depth;
+        }
+
+    }
+
+}
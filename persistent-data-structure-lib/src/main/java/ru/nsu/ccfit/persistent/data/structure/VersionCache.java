@@ -0,0 +1,159 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Кэш значений, вычисленных по версиям, с вытеснением давно не использованных версий. Версия не
+ * изменяется после создания, поэтому значение остается верным при undo, redo и переходах между
+ * версиями, и при переключении между соседними версиями пересчет не нужен. Размер кэша ограничен
+ * количеством версий и оценкой занимаемой памяти.
+ *
+ * @param <T> Тип значения.
+ */
+public final class VersionCache<T> {
+
+    /**
+     * Значения в порядке использования: первым идет давно не использованное.
+     */
+    private final LinkedHashMap<Long, Cached<T>> values = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Наибольшее количество версий в кэше.
+     */
+    private final int maxVersions;
+
+    /**
+     * Наибольшая оценка памяти значений в кэше в байтах.
+     */
+    private final long maxBytes;
+
+    /**
+     * Оценка памяти значений в кэше в байтах.
+     */
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Создает кэш.
+     *
+     * @param maxVersions Наибольшее количество версий в кэше, не меньше 1.
+     * @param maxBytes    Наибольшая оценка памяти значений в байтах.
+     */
+    public VersionCache(int maxVersions, long maxBytes) {
+        if (maxVersions < 1) {
+            throw new IllegalArgumentException("Max versions must be positive");
+        }
+        this.maxVersions = maxVersions;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Возвращает значение версии и учитывает попадание или промах.
+     *
+     * @param version Версия.
+     * @return Значение или null, если версии нет в кэше.
+     */
+    public T get(long version) {
+        var cached = values.get(version);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.value;
+    }
+
+    /**
+     * Запоминает значение версии и вытесняет давно не использованные версии, пока кэш превышает
+     * ограничения. Значение, оценка памяти которого превышает ограничение, не запоминается.
+     *
+     * @param version Версия.
+     * @param value   Значение.
+     * @param size    Оценка памяти значения в байтах.
+     */
+    public void put(long version, T value, long size) {
+        remove(version);
+        if (size > maxBytes) {
+            return;
+        }
+        values.put(version, new Cached<>(value, size));
+        bytes += size;
+        Iterator<Cached<T>> eldest = values.values().iterator();
+        while (values.size() > maxVersions || bytes > maxBytes) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Забывает значение версии.
+     *
+     * @param version Версия.
+     */
+    public void remove(long version) {
+        var cached = values.remove(version);
+        if (cached != null) {
+            bytes -= cached.size;
+        }
+    }
+
+    /**
+     * Забывает значения версий ниже указанной.
+     *
+     * @param version Самая ранняя сохраняемая версия.
+     */
+    public void discardBefore(long version) {
+        var iterator = values.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey() < version) {
+                bytes -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Возвращает количество версий в кэше.
+     *
+     * @return Количество версий.
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Возвращает оценку памяти значений в кэше.
+     *
+     * @return Оценка памяти в байтах.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Возвращает количество обращений, нашедших значение в кэше.
+     *
+     * @return Количество попаданий.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Возвращает количество обращений, не нашедших значение в кэше.
+     *
+     * @return Количество промахов.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    private record Cached<T>(T value, long size) {
+    }
+
+}
@@ -0,0 +1,133 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Состояние хранения истории структуры: политика хранения, закрепленные версии и снимки, которые
+ * еще читают свои версии. Определяет самую раннюю версию, до которой можно отбросить историю.
+ */
+public final class VersionRetention {
+
+    /**
+     * Политика хранения или null, если хранится вся история.
+     */
+    private RetentionPolicy policy;
+
+    /**
+     * Количество закреплений по версиям.
+     */
+    private final TreeMap<Long, Integer> pins = new TreeMap<>();
+
+    /**
+     * Выданные снимки. Снимок, собранный сборщиком мусора, больше не удерживает свою версию.
+     */
+    private final ArrayList<WeakReference<Object>> snapshots = new ArrayList<>();
+
+    /**
+     * Версии выданных снимков: {@code snapshotVersions[i]} - версия снимка {@code snapshots.get(i)}.
+     */
+    private long[] snapshotVersions = new long[16];
+
+    /**
+     * Количество снимков, при котором собранные снимки удаляются из списка.
+     */
+    private int purgeThreshold = 16;
+
+    public RetentionPolicy getPolicy() {
+        return policy == null ? RetentionPolicy.keepAll() : policy;
+    }
+
+    /**
+     * Задает политику хранения.
+     *
+     * @param policy Политика хранения или null, чтобы хранить всю историю.
+     */
+    public void setPolicy(RetentionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Возвращает true, если задана политика хранения и история уплотняется при изменениях.
+     *
+     * @return true, если задана политика хранения.
+     */
+    public boolean hasPolicy() {
+        return policy != null;
+    }
+
+    /**
+     * Закрепляет версию: она и все последующие версии не отбрасываются до открепления.
+     *
+     * @param version Версия.
+     */
+    public void pin(long version) {
+        pins.merge(version, 1, Integer::sum);
+    }
+
+    /**
+     * Снимает одно закрепление версии.
+     *
+     * @param version Версия.
+     */
+    public void unpin(long version) {
+        pins.computeIfPresent(version, (pinned, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Запоминает снимок версии: пока снимок достижим, его версия не отбрасывается.
+     *
+     * @param snapshot Снимок.
+     * @param version  Версия снимка.
+     */
+    public void registerSnapshot(Object snapshot, long version) {
+        if (snapshots.size() >= purgeThreshold) {
+            purgeSnapshots();
+            purgeThreshold = Math.max(16, 2 * snapshots.size());
+        }
+        if (snapshots.size() == snapshotVersions.length) {
+            snapshotVersions = Arrays.copyOf(snapshotVersions, 2 * snapshotVersions.length);
+        }
+        snapshotVersions[snapshots.size()] = version;
+        snapshots.add(new WeakReference<>(snapshot));
+    }
+
+    /**
+     * Возвращает самую раннюю версию, которую нужно сохранить: ее требует политика, закрепление,
+     * достижимый снимок или текущая версия.
+     *
+     * @param firstVersion   Самая ранняя сохраненная версия.
+     * @param currentVersion Текущая версия.
+     * @param lastVersion    Последняя версия.
+     * @param createdAt      Время создания версии в миллисекундах от начала эпохи.
+     * @return Самая ранняя версия, которую нужно сохранить.
+     */
+    public long oldestRetainedVersion(long firstVersion, long currentVersion, long lastVersion,
+                                      LongUnaryOperator createdAt) {
+        var oldest = Math.min(currentVersion, getPolicy().oldestRetainedVersion(firstVersion, lastVersion, createdAt));
+        if (!pins.isEmpty()) {
+            oldest = Math.min(oldest, pins.firstKey());
+        }
+        purgeSnapshots();
+        for (int i = 0; i < snapshots.size(); i++) {
+            oldest = Math.min(oldest, snapshotVersions[i]);
+        }
+        return Math.max(firstVersion, oldest);
+    }
+
+    private void purgeSnapshots() {
+        var alive = 0;
+        for (int i = 0; i < snapshots.size(); i++) {
+            if (snapshots.get(i).get() != null) {
+                snapshots.set(alive, snapshots.get(i));
+                snapshotVersions[alive] = snapshotVersions[i];
+                alive++;
+            }
+        }
+        snapshots.subList(alive, snapshots.size()).clear();
+    }
+
+}
@@ -0,0 +1,298 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import java.util.Arrays;
+
+/**
+ * Таблица версий: корень структуры, количество элементов и вершина дерева версий для каждой версии.
+ * Версии - плотные неотрицательные числа, поэтому таблица хранит их в растущих массивах
+ * и находит версию по индексу без упаковки ключа и хеширования. Для версий, которые не были
+ * записаны или отброшены, возвращаются null и 0.
+ *
+ * @param <T> Тип корня структуры.
+ */
+public final class VersionTable<T> {
+
+    /**
+     * Начальная емкость таблицы.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Корни по версиям.
+     */
+    private Object[] roots;
+
+    /**
+     * Количество элементов по версиям.
+     */
+    private int[] sizes;
+
+    /**
+     * Время создания версий в миллисекундах от начала эпохи.
+     */
+    private long[] createdAt;
+
+    /**
+     * Вершины дерева версий по версиям.
+     */
+    private Version[] tree;
+
+    /**
+     * Общий предок неотброшенных вершин дерева версий или null, если вершин нет.
+     */
+    private Version commonAncestor;
+
+    /**
+     * Самая ранняя неотброшенная версия на момент последнего пересчета общего предка.
+     */
+    private long commonAncestorFirstVersion;
+
+    /**
+     * Наибольшая версия, для которой записана вершина дерева версий.
+     */
+    private long lastTreeVersion;
+
+    /**
+     * Версия, хранящаяся в начале массивов.
+     */
+    private long offset;
+
+    /**
+     * Самая ранняя неотброшенная версия.
+     */
+    private long firstVersion;
+
+    public VersionTable() {
+        this.roots = new Object[INITIAL_CAPACITY];
+        this.sizes = new int[INITIAL_CAPACITY];
+        this.createdAt = new long[INITIAL_CAPACITY];
+        this.tree = new Version[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Создает копию таблицы. Корни общие с исходной таблицей, а дерево версий строится заново,
+     * поэтому новые версии копии не видны в исходной таблице. Версии, родители которых отброшены,
+     * становятся дочерними версиями копии общего предка, поэтому предшествование версий и общий
+     * предок в копии те же, что в исходной таблице.
+     *
+     * @param other Таблица.
+     */
+    public VersionTable(VersionTable<T> other) {
+        this.roots = other.roots.clone();
+        this.sizes = other.sizes.clone();
+        this.createdAt = other.createdAt.clone();
+        this.tree = new Version[other.tree.length];
+        this.offset = other.offset;
+        this.firstVersion = other.firstVersion;
+        this.lastTreeVersion = other.lastTreeVersion;
+        this.commonAncestorFirstVersion = other.commonAncestorFirstVersion;
+        // общий предок предшествует всем неотброшенным версиям, поэтому отброшенный предок
+        // заменяется одной вершиной вне таблицы
+        Version discardedAncestor = null;
+        if (other.commonAncestor != null && other.getVersion(other.commonAncestor.getId()) == null) {
+            discardedAncestor = Version.root(other.commonAncestor.getId());
+        }
+        // родитель имеет меньший номер, поэтому создается раньше дочерних версий
+        for (int i = 0; i < tree.length; i++) {
+            var source = other.tree[i];
+            if (source != null) {
+                var parent = getVersion(source.getParentId());
+                if (parent == null && source.getParentId() >= 0) {
+                    parent = discardedAncestor;
+                }
+                tree[i] = parent == null ? Version.root(source.getId()) : parent.createChild(source.getId());
+            }
+        }
+        for (int i = 0; i < tree.length; i++) {
+            if (tree[i] != null) {
+                tree[i].setNextId(other.tree[i].getNextId());
+            }
+        }
+        if (other.commonAncestor != null) {
+            this.commonAncestor = discardedAncestor != null ? discardedAncestor : getVersion(other.commonAncestor.getId());
+        }
+    }
+
+    /**
+     * Возвращает корень версии.
+     *
+     * @param version Версия.
+     * @return Корень версии или null, если версия не записана.
+     */
+    @SuppressWarnings("unchecked")
+    public T getRoot(long version) {
+        return contains(version) ? (T) roots[(int) (version - offset)] : null;
+    }
+
+    /**
+     * Возвращает количество элементов версии.
+     *
+     * @param version Версия.
+     * @return Количество элементов версии или 0, если версия не записана.
+     */
+    public int getSize(long version) {
+        return contains(version) ? sizes[(int) (version - offset)] : 0;
+    }
+
+    /**
+     * Возвращает время создания версии.
+     *
+     * @param version Версия.
+     * @return Время создания версии в миллисекундах от начала эпохи или 0, если версия не записана.
+     */
+    public long getCreatedAt(long version) {
+        return contains(version) ? createdAt[(int) (version - offset)] : 0;
+    }
+
+    /**
+     * Возвращает вершину дерева версий.
+     *
+     * @param version Версия.
+     * @return Вершина дерева версий или null, если версия не записана.
+     */
+    public Version getVersion(long version) {
+        return contains(version) ? tree[(int) (version - offset)] : null;
+    }
+
+    /**
+     * Возвращает самую раннюю неотброшенную версию.
+     *
+     * @return Самая ранняя неотброшенная версия.
+     */
+    public long getFirstVersion() {
+        return firstVersion;
+    }
+
+    /**
+     * Записывает корень и количество элементов версии.
+     *
+     * @param version Версия.
+     * @param root    Корень.
+     * @param size    Количество элементов.
+     */
+    public void set(long version, T root, int size) {
+        var index = ensureCapacity(version);
+        roots[index] = root;
+        sizes[index] = size;
+    }
+
+    /**
+     * Записывает корень версии.
+     *
+     * @param version Версия.
+     * @param root    Корень.
+     */
+    public void setRoot(long version, T root) {
+        var index = ensureCapacity(version);
+        roots[index] = root;
+    }
+
+    /**
+     * Записывает количество элементов версии.
+     *
+     * @param version Версия.
+     * @param size    Количество элементов.
+     */
+    public void setSize(long version, int size) {
+        var index = ensureCapacity(version);
+        sizes[index] = size;
+    }
+
+    /**
+     * Начинает версию с корня и количества элементов родительской версии и запоминает время ее
+     * создания.
+     *
+     * @param parent  Родительская версия или null для корня дерева версий.
+     * @param version Новая версия, больше всех записанных.
+     * @return Вершина дерева версий новой версии.
+     */
+    public Version startVersion(Version parent, long version) {
+        var node = parent == null ? Version.root(version) : parent.createChild(version);
+        var index = ensureCapacity(version);
+        commonAncestor = commonAncestor == null ? node : Version.commonAncestor(commonAncestor, node);
+        lastTreeVersion = version;
+        if (parent != null) {
+            roots[index] = getRoot(parent.getId());
+            sizes[index] = getSize(parent.getId());
+        }
+        createdAt[index] = System.currentTimeMillis();
+        tree[index] = node;
+        return node;
+    }
+
+    /**
+     * Возвращает общего предка неотброшенных версий: модификации, совершенные в нем и его предках,
+     * видны всем неотброшенным версиям. После отбрасывания версий предок пересчитывается, только
+     * когда отброшено не меньше версий, чем осталось, поэтому он может быть выше точного, а
+     * пересчет стоит O(1) амортизированно.
+     *
+     * @return Общий предок неотброшенных версий.
+     */
+    public Version getCommonAncestor() {
+        if (2 * (firstVersion - commonAncestorFirstVersion) >= lastTreeVersion - firstVersion + 1) {
+            commonAncestor = null;
+            for (var version = firstVersion; version <= lastTreeVersion; version++) {
+                var node = getVersion(version);
+                if (node != null) {
+                    commonAncestor = commonAncestor == null ? node : Version.commonAncestor(commonAncestor, node);
+                }
+            }
+            commonAncestorFirstVersion = firstVersion;
+        }
+        return commonAncestor;
+    }
+
+    /**
+     * Отбрасывает версии ниже указанной, освобождая их корни.
+     *
+     * @param version Самая ранняя сохраняемая версия.
+     */
+    public void discardBefore(long version) {
+        if (version <= firstVersion) {
+            return;
+        }
+        var from = (int) (firstVersion - offset);
+        var to = (int) Math.min(version - offset, roots.length);
+        Arrays.fill(roots, from, to, null);
+        Arrays.fill(sizes, from, to, 0);
+        Arrays.fill(createdAt, from, to, 0);
+        Arrays.fill(tree, from, to, null);
+        firstVersion = version;
+        // сдвигает массивы, только когда отброшена половина, чтобы сдвиг стоил O(1) амортизированно
+        if (version - offset >= roots.length / 2) {
+            var shift = (int) Math.min(version - offset, roots.length);
+            var length = roots.length - shift;
+            System.arraycopy(roots, shift, roots, 0, length);
+            System.arraycopy(sizes, shift, sizes, 0, length);
+            System.arraycopy(createdAt, shift, createdAt, 0, length);
+            System.arraycopy(tree, shift, tree, 0, length);
+            Arrays.fill(roots, length, roots.length, null);
+            Arrays.fill(sizes, length, sizes.length, 0);
+            Arrays.fill(createdAt, length, createdAt.length, 0);
+            Arrays.fill(tree, length, tree.length, null);
+            offset = version;
+        }
+    }
+
+    private boolean contains(long version) {
+        return version >= firstVersion && version - offset < roots.length;
+    }
+
+    private int ensureCapacity(long version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("Negative version: " + version);
+        }
+        if (version < firstVersion) {
+            throw new IllegalArgumentException("Discarded version: " + version);
+        }
+        if (version - offset >= roots.length) {
+            var capacity = Math.toIntExact(Math.max(version - offset + 1, 2L * roots.length));
+            roots = Arrays.copyOf(roots, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            createdAt = Arrays.copyOf(createdAt, capacity);
+            tree = Arrays.copyOf(tree, capacity);
+        }
+        return (int) (version - offset);
+    }
+
+}
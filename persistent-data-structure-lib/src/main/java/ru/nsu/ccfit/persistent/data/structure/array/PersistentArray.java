@@ -1,16 +1,32 @@
 package ru.nsu.ccfit.persistent.data.structure.array;
 
+import java.util.AbstractList;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Stack;
-
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import ru.nsu.ccfit.persistent.data.structure.Change;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
+import ru.nsu.ccfit.persistent.data.structure.Version;
+import ru.nsu.ccfit.persistent.data.structure.VersionRetention;
+import ru.nsu.ccfit.persistent.data.structure.VersionTable;
 import ru.nsu.ccfit.persistent.data.structure.array.utils.ArrayHead;
 import ru.nsu.ccfit.persistent.data.structure.array.utils.ArrayNode;
 import ru.nsu.ccfit.persistent.data.structure.array.utils.PersistentCollection;
@@ -41,15 +57,47 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
     private final Stack<PersistentArray<?>> insertedRedo = new Stack<>();
 
     /**
-     * Стек для хранения состояний массива, которые могут быть повторно
-     * применены
+     * Таблица версий: головы массива и дерево версий. Изменение более ранней версии создает
+     * новую ветку, не удаляя версии, из которых выполнен возврат.
+     */
+    private final VersionTable<ArrayHead<E>> versions;
+
+    /**
+     * Текущая версия массива.
      */
-    protected final Stack<ArrayHead<E>> redo = new Stack<>();
+    private Version currentVersion;
 
     /**
-     * Стек для хранения состояний массива, которые могут быть отменены
+     * Наибольший номер версии массива.
      */
-    protected final Stack<ArrayHead<E>> undo = new Stack<>();
+    private int lastVersion;
+
+    /**
+     * Узлы, созданные в текущем пакете изменений. Такие узлы не видны ни одной другой версии
+     * и изменяются на месте.
+     */
+    private final Set<ArrayNode<E>> batchNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Флаг выполнения пакета изменений.
+     */
+    private boolean inBatch;
+
+    /**
+     * Флаг создания версии текущего пакета изменений.
+     */
+    private boolean batchVersionCreated;
+
+    /**
+     * Флаг уведомления родительского массива в текущем пакете изменений.
+     */
+    private boolean batchParentNotified;
+
+    /**
+     * Политика хранения истории и закрепленные версии. Снимки хранят свою голову и не зависят
+     * от истории.
+     */
+    private final VersionRetention retention = new VersionRetention();
 
     public PersistentArray() {
         this(6, 5);
@@ -61,42 +109,71 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
 
     public PersistentArray(int depth, int bitPerEdge) {
         super(depth, bitPerEdge);
-        ArrayHead<E> head = new ArrayHead<>();
-        undo.push(head);
-        redo.clear();
+        this.versions = new VersionTable<>();
+        this.currentVersion = versions.startVersion(null, 0);
+        versions.setRoot(0, new ArrayHead<>(width));
     }
 
     public PersistentArray(PersistentArray<E> other) {
         super(other.depth, other.bitPerEdge);
-        this.undo.addAll(other.undo);
-        this.redo.addAll(other.redo);
+        this.versions = new VersionTable<>(other.versions);
+        this.currentVersion = versions.getVersion(other.currentVersion.getId());
+        this.lastVersion = other.lastVersion;
         this.parent = other.parent;
     }
 
     @Override
     public void undo() {
+        checkNotInBatch();
         if (!insertedUndo.empty()) {
             insertedUndo.peek().undo();
             insertedRedo.push(insertedUndo.pop());
         } else {
-            if (!undo.empty()) {
-                redo.push(undo.pop());
+            var parentVersion = versions.getVersion(currentVersion.getParentId());
+            if (parentVersion != null) {
+                parentVersion.setNextId(currentVersion.getId());
+                currentVersion = parentVersion;
             }
         }
     }
 
     @Override
     public void redo() {
+        checkNotInBatch();
         if (!insertedRedo.empty()) {
             insertedRedo.peek().redo();
             insertedUndo.push(insertedRedo.pop());
         } else {
-            if (!redo.empty()) {
-                undo.push(redo.pop());
+            var next = versions.getVersion(currentVersion.getNextId());
+            if (next != null) {
+                currentVersion = next;
             }
         }
     }
 
+    /**
+     * Переходит к запрашиваемой версии. Изменение после перехода создает новую ветку дерева версий,
+     * а дочерние версии остаются доступными.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     */
+    public void checkout(int version) {
+        checkNotInBatch();
+        getHead(version);
+        currentVersion = versions.getVersion(version);
+    }
+
+    /**
+     * Возвращает родительскую версию в дереве версий.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @return Родительская версия или -1 для начальной версии.
+     */
+    public int getParentVersion(int version) {
+        getHead(version);
+        return (int) versions.getVersion(version).getParentId();
+    }
+
     @Override
     public int size() {
         return size(getCurrentHead());
@@ -111,8 +188,168 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
         return getCurrentHead().getSize() <= 0;
     }
 
+    /**
+     * Возвращает количество версий массива, включая отброшенные.
+     *
+     * @return Номер последней созданной версии, увеличенный на 1.
+     */
     public int getVersionCount() {
-        return undo.size() + redo.size();
+        return lastVersion + 1;
+    }
+
+    /**
+     * Возвращает текущую версию массива. Версия 0 соответствует пустому массиву.
+     *
+     * @return Текущая версия.
+     */
+    public int getCurrentVersion() {
+        return (int) currentVersion.getId();
+    }
+
+    /**
+     * Возвращает самую раннюю сохраненную версию массива.
+     *
+     * @return Самая ранняя версия, в которую можно перейти с помощью undo.
+     */
+    public int getFirstVersion() {
+        return (int) versions.getFirstVersion();
+    }
+
+    /**
+     * Задает политику хранения истории. С политикой история уплотняется при каждом изменении.
+     *
+     * @param policy Политика хранения или null, чтобы хранить всю историю.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention.setPolicy(policy);
+        if (policy != null && !inBatch) {
+            compact();
+        }
+    }
+
+    /**
+     * Закрепляет версию: она и все последующие версии не отбрасываются до вызова {@link #unpin(int)}.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     */
+    public void pin(int version) {
+        getHead(version);
+        retention.pin(version);
+    }
+
+    /**
+     * Снимает одно закрепление версии.
+     *
+     * @param version Версия.
+     */
+    public void unpin(int version) {
+        retention.unpin(version);
+    }
+
+    /**
+     * Отбрасывает версии, которые не сохраняются политикой хранения, закреплениями и текущей
+     * версией, освобождая их головы.
+     */
+    public void compact() {
+        if (inBatch) {
+            throw new IllegalStateException("Compaction is not allowed inside a batch");
+        }
+        compactVersions();
+    }
+
+    private void compactVersions() {
+        versions.discardBefore(retention.oldestRetainedVersion(
+                versions.getFirstVersion(),
+                currentVersion.getId(),
+                lastVersion,
+                versions::getCreatedAt
+        ));
+    }
+
+    /**
+     * Возвращает количество элементов в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @return Количество элементов в версии.
+     */
+    public int size(int version) {
+        return size(getHead(version));
+    }
+
+    /**
+     * Возвращает элемент по индексу в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param index   Индекс элемента.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @return Элемент в версии.
+     */
+    public E get(int index, int version) {
+        return get(getHead(version), index);
+    }
+
+    /**
+     * Возвращает элементы запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @return Массив элементов версии.
+     */
+    public Object[] toArray(int version) {
+        return toArray(getHead(version));
+    }
+
+    /**
+     * Возвращает ленивый поток отличий версии toVersion от версии fromVersion в порядке возрастания
+     * индексов, не меняя текущую версию. Узлы версии не изменяются после ее создания, поэтому
+     * поддерево, общее для обеих версий, пропускается без обхода, и стоимость зависит от количества
+     * измененных узлов, а не от размера массива.
+     *
+     * @param fromVersion Исходная версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @param toVersion   Целевая версия от {@link #getFirstVersion()} до {@link #getVersionCount()} - 1.
+     * @return Добавленные, удаленные и измененные элементы с их индексами.
+     */
+    public Stream<Change<Integer, E>> diff(int fromVersion, int toVersion) {
+        var iterator = new DiffIterator(getHead(fromVersion), getHead(toVersion));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Возвращает неизменяемый снимок текущей версии. Узлы версии не изменяются после ее создания,
+     * поэтому снимок может читаться из разных потоков без блокировок одновременно с изменениями
+     * в потоке-писателе.
+     *
+     * @return Неизменяемое представление текущей версии.
+     */
+    public List<E> snapshot() {
+        if (inBatch) {
+            throw new IllegalStateException("Snapshot is not allowed inside a batch");
+        }
+        ArrayHead<E> head = getCurrentHead();
+        return new Snapshot(head, head.getSize());
+    }
+
+    /**
+     * Выполняет изменения пакетом в одной версии: все изменения внутри пакета создают одну версию
+     * и отменяются одним undo. Узлы, скопированные внутри пакета, изменяются на месте. Вложенный
+     * пакет становится частью внешнего. Если пакет прерван исключением, выполненные изменения
+     * остаются в версии пакета.
+     *
+     * @param batch Изменения.
+     */
+    public void applyBatch(Consumer<? super PersistentArray<E>> batch) {
+        if (inBatch) {
+            batch.accept(this);
+            return;
+        }
+        inBatch = true;
+        batchVersionCreated = false;
+        batchParentNotified = false;
+        try {
+            batch.accept(this);
+        } finally {
+            inBatch = false;
+            batchNodes.clear();
+        }
     }
 
     @Override
@@ -121,10 +358,10 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
 
         E result = get(index);
 
-        AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copedNodeP = copyLeafToChange(getCurrentHead(), index);
+        AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copedNodeP = copyLeafToChange(index);
         int leafIndex = copedNodeP.getValue();
         ArrayNode<E> copedNode = copedNodeP.getKey();
-        copedNode.getValue().set(leafIndex, element);
+        copedNode.setValue(leafIndex, element);
 
         tryParentUndo(element);
 
@@ -143,9 +380,7 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
             throw new IllegalStateException("Array is full");
         }
 
-        ArrayHead<E> newHead = new ArrayHead<>(getCurrentHead(), 0);
-        undo.push(newHead);
-        redo.clear();
+        ArrayHead<E> newHead = newVersionHead(0);
         tryParentUndo(element);
 
         return add(newHead, element);
@@ -166,12 +401,8 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
 
         ArrayHead<E> oldHead = getCurrentHead();
 
-        AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copedNodeP = copyLeafToMove(oldHead, index);
-        int leafIndex = copedNodeP.getValue();
-        ArrayNode<E> copedNode = copedNodeP.getKey();
-        copedNode.getValue().set(leafIndex, element);
-
-        ArrayHead<E> newHead = getCurrentHead();
+        ArrayHead<E> newHead = truncate(oldHead, index);
+        add(newHead, element);
         for (int i = index; i < oldHead.getSize(); i++) {
             add(newHead, get(oldHead, i));
         }
@@ -183,31 +414,18 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
             throw new NoSuchElementException("Array is empty");
         }
 
-        ArrayHead<E> newHead = new ArrayHead<>(getCurrentHead(), -1);
-        undo.push(newHead);
-        redo.clear();
-        LinkedList<AbstractMap.SimpleEntry<ArrayNode<E>, Integer>> path = new LinkedList<>();
-        path.add(new AbstractMap.SimpleEntry<>(newHead.getRoot(), 0));
-        for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int index = (newHead.getSize() >> level) & mask;
-            ArrayNode<E> tmp;
-            ArrayNode<E> newNode;
-            tmp = path.getLast().getKey().getChild().get(index);
-            newNode = new ArrayNode<>(tmp);
-            path.getLast().getKey().getChild().set(index, newNode);
-            path.add(new AbstractMap.SimpleEntry<>(newNode, index));
-        }
-
-        int index = newHead.getSize() & mask;
-        E result = path.getLast().getKey().getValue().remove(index);
-
-        for (int i = path.size() - 1; i >= 1; i--) {
-            AbstractMap.SimpleEntry<ArrayNode<E>, Integer> elem = path.get(i);
-            if (elem.getKey().isEmpty()) {
-                path.get(i - 1).getKey().getChild().remove((int) elem.getValue());
-            } else {
-                break;
-            }
+        ArrayHead<E> newHead = newVersionHead(-1);
+        int size = newHead.getSize();
+        E result = newHead.getTail().getValue(size & mask);
+        if (size > tailOffset(size + 1)) {
+            ArrayNode<E> tail = copyNode(newHead.getTail());
+            tail.setValue(size & mask, null);
+            newHead.setTail(tail);
+        } else if (size == 0) {
+            newHead.setTail(track(new ArrayNode<>(width)));
+        } else {
+            // хвост опустел: его место занимает последний лист дерева
+            newHead.setTail(popTail(newHead, size - 1));
         }
 
         return result;
@@ -220,22 +438,7 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
         E result = get(index);
 
         ArrayHead<E> oldHead = getCurrentHead();
-        ArrayHead<E> newHead;
-
-        if (index == 0) {
-            newHead = new ArrayHead<>();
-            undo.push(newHead);
-            redo.clear();
-        } else {
-            AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copedNodeP = copyLeafToMove(oldHead, index);
-            int leafIndex = copedNodeP.getValue();
-            ArrayNode<E> copedNode = copedNodeP.getKey();
-            copedNode.getValue().remove(leafIndex);
-
-            newHead = getCurrentHead();
-            newHead.setSize(newHead.getSize() - 1);
-        }
-
+        ArrayHead<E> newHead = truncate(oldHead, index);
         for (int i = index + 1; i < oldHead.getSize(); i++) {
             add(newHead, get(oldHead, i));
         }
@@ -245,9 +448,7 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
 
     @Override
     public void clear() {
-        ArrayHead<E> head = new ArrayHead<>();
-        undo.push(head);
-        redo.clear();
+        pushHead(new ArrayHead<>(width));
     }
 
     @Override
@@ -256,7 +457,18 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
     }
 
     protected ArrayHead<E> getCurrentHead() {
-        return this.undo.peek();
+        return versions.getRoot(currentVersion.getId());
+    }
+
+    /**
+     * Возвращает голову версии.
+     */
+    private ArrayHead<E> getHead(int version) {
+        var head = version <= lastVersion ? versions.getRoot(version) : null;
+        if (head == null) {
+            throw new IllegalArgumentException("Unknown version: " + version);
+        }
+        return head;
     }
 
     private void tryParentUndo(E value) {
@@ -264,11 +476,66 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
             ((PersistentArray) value).parent = this;
         }
 
-        if (parent != null) {
+        if (parent != null && !batchParentNotified) {
             parent.insertedUndo.push(this);
+            batchParentNotified = inBatch;
         }
     }
 
+    private void checkNotInBatch() {
+        if (inBatch) {
+            throw new IllegalStateException("Undo and redo are not allowed inside a batch");
+        }
+    }
+
+    /**
+     * Возвращает голову новой версии с измененным размером. Внутри пакета изменений после
+     * создания версии пакета возвращается голова этой версии.
+     */
+    private ArrayHead<E> newVersionHead(int sizeDelta) {
+        if (inBatch && batchVersionCreated) {
+            ArrayHead<E> head = getCurrentHead();
+            head.setSize(head.getSize() + sizeDelta);
+            return head;
+        }
+        ArrayHead<E> head = new ArrayHead<>(getCurrentHead(), sizeDelta);
+        pushHead(head);
+        return head;
+    }
+
+    /**
+     * Делает голову текущей версией: создает дочернюю версию текущей, а внутри пакета изменений
+     * заменяет голову версии пакета.
+     */
+    private void pushHead(ArrayHead<E> head) {
+        if (!inBatch || !batchVersionCreated) {
+            lastVersion++;
+            currentVersion = versions.startVersion(currentVersion, lastVersion);
+        }
+        versions.setRoot(currentVersion.getId(), head);
+        batchVersionCreated = inBatch;
+        if (retention.hasPolicy()) {
+            compactVersions();
+        }
+    }
+
+    /**
+     * Копирует узел для изменения. Узел, созданный в текущем пакете изменений, не копируется.
+     */
+    private ArrayNode<E> copyNode(ArrayNode<E> node) {
+        if (batchNodes.contains(node)) {
+            return node;
+        }
+        return track(new ArrayNode<>(node));
+    }
+
+    private ArrayNode<E> track(ArrayNode<E> node) {
+        if (inBatch) {
+            batchNodes.add(node);
+        }
+        return node;
+    }
+
     private int size(ArrayHead<E> head) {
         return head.getSize();
     }
@@ -287,45 +554,93 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
         return head.getSize() >= maxSize;
     }
 
+    /**
+     * Добавляет элемент в хвост головы. Заполненный хвост переносится в дерево целиком, без
+     * копирования, поэтому путь от корня копируется один раз на ширину узла добавлений.
+     */
     private boolean add(ArrayHead<E> head, E newElement) {
-        add(head).getValue().add(newElement);
+        if (isFull(head)) {
+            throw new IllegalStateException("Array is full");
+        }
+
+        int size = head.getSize();
+        ArrayNode<E> tail;
+        if (size - tailOffset(size) < width) {
+            tail = copyNode(head.getTail());
+        } else {
+            pushTail(head, size - width);
+            tail = track(new ArrayNode<>(width));
+        }
+        tail.setValue(size & mask, newElement);
+        head.setTail(tail);
+        head.setSize(size + 1);
 
         return true;
     }
 
-    private ArrayNode<E> add(ArrayHead<E> head) {
-        if (isFull(head)) {
-            throw new IllegalStateException("Array is full");
-        }
+    /**
+     * Возвращает индекс первого элемента хвоста массива указанного размера.
+     */
+    private int tailOffset(int size) {
+        return size == 0 ? 0 : ((size - 1) >>> bitPerEdge) << bitPerEdge;
+    }
 
-        head.setSize(head.getSize() + 1);
-        ArrayNode<E> currentNode = head.getRoot();
+    /**
+     * Переносит заполненный хвост головы в дерево листом с первым индексом offset.
+     */
+    private void pushTail(ArrayHead<E> head, int offset) {
+        ArrayNode<E> currentNode = copyNode(head.getRoot());
+        head.setRoot(currentNode);
         for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
-            int widthIndex = ((head.getSize() - 1) >> level) & mask;
+            int widthIndex = (offset >> level) & mask;
             ArrayNode<E> tmp;
             ArrayNode<E> newNode;
 
-            if (currentNode.getChild() == null) {
-                currentNode.setChild(new LinkedList<>());
-                newNode = new ArrayNode<>();
-                currentNode.getChild().add(newNode);
+            tmp = currentNode.getChild(widthIndex);
+            if (level == bitPerEdge) {
+                newNode = head.getTail();
+            } else if (tmp == null) {
+                newNode = track(new ArrayNode<>(width));
             } else {
-                if (widthIndex == currentNode.getChild().size()) {
-                    newNode = new ArrayNode<>();
-                    currentNode.getChild().add(newNode);
-                } else {
-                    tmp = currentNode.getChild().get(widthIndex);
-                    newNode = new ArrayNode<>(tmp);
-                    currentNode.getChild().set(widthIndex, newNode);
-                }
+                newNode = copyNode(tmp);
             }
+            currentNode.setChild(widthIndex, newNode);
+            currentNode = newNode;
+        }
+    }
+
+    /**
+     * Извлекает из дерева головы последний лист, содержащий элемент с индексом lastIndex.
+     * Узлы, в поддереве которых не осталось элементов, удаляются из дерева.
+     */
+    private ArrayNode<E> popTail(ArrayHead<E> head, int lastIndex) {
+        int offset = lastIndex & ~mask;
+        List<ArrayNode<E>> path = new ArrayList<>(depth);
+        ArrayNode<E> currentNode = copyNode(head.getRoot());
+        head.setRoot(currentNode);
+        path.add(currentNode);
+        for (int level = bitPerEdge * (depth - 1); level > bitPerEdge; level -= bitPerEdge) {
+            int widthIndex = (offset >> level) & mask;
+            ArrayNode<E> newNode = copyNode(currentNode.getChild(widthIndex));
+            currentNode.setChild(widthIndex, newNode);
             currentNode = newNode;
+            path.add(currentNode);
         }
 
-        if (currentNode.getValue() == null) {
-            currentNode.setValue(new ArrayList<>());
+        int leafIndex = (offset >> bitPerEdge) & mask;
+        ArrayNode<E> leaf = currentNode.getChild(leafIndex);
+        currentNode.setChild(leafIndex, null);
+
+        // узел пуст, если извлеченный лист был первым в его поддереве
+        for (int i = path.size() - 1; i >= 1; i--) {
+            if ((offset & ((1 << (bitPerEdge * (depth - i))) - 1)) != 0) {
+                break;
+            }
+            int level = bitPerEdge * (depth - i);
+            path.get(i - 1).setChild((offset >> level) & mask, null);
         }
-        return currentNode;
+
+        return leaf;
     }
 
     @Override
@@ -342,57 +657,89 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
         return Arrays.toString(toArray(head));
     }
 
-    private AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copyLeafToChange(ArrayHead<E> head, int index) {
-        ArrayHead<E> newHead = new ArrayHead<>(head, 0);
-        undo.push(newHead);
-        redo.clear();
+    private AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copyLeafToChange(int index) {
+        ArrayHead<E> newHead = newVersionHead(0);
+
+        if (index >= tailOffset(newHead.getSize())) {
+            ArrayNode<E> tail = copyNode(newHead.getTail());
+            newHead.setTail(tail);
+            return new AbstractMap.SimpleEntry<>(tail, index & mask);
+        }
 
-        ArrayNode<E> currentNode = newHead.getRoot();
+        ArrayNode<E> currentNode = copyNode(newHead.getRoot());
+        newHead.setRoot(currentNode);
         for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
             int widthIndex = (index >> level) & mask;
             ArrayNode<E> tmp;
             ArrayNode<E> newNode;
-            tmp = currentNode.getChild().get(widthIndex);
-            newNode = new ArrayNode<>(tmp);
-            currentNode.getChild().set(widthIndex, newNode);
+            tmp = currentNode.getChild(widthIndex);
+            newNode = copyNode(tmp);
+            currentNode.setChild(widthIndex, newNode);
             currentNode = newNode;
         }
 
         return new AbstractMap.SimpleEntry<>(currentNode, index & mask);
     }
 
-    private AbstractMap.SimpleEntry<ArrayNode<E>, Integer> copyLeafToMove(ArrayHead<E> oldHead, int index) {
+    /**
+     * Создает версию с первыми size элементами головы. Хвостом новой версии становится копия листа
+     * с последним из них, а из дерева копируется только путь к предыдущему листу.
+     */
+    private ArrayHead<E> truncate(ArrayHead<E> oldHead, int size) {
+        ArrayHead<E> newHead;
+        if (size == 0) {
+            newHead = new ArrayHead<>(width);
+        } else if (size > tailOffset(oldHead.getSize())) {
+            newHead = new ArrayHead<>(
+                    oldHead.getRoot(),
+                    track(new ArrayNode<>(oldHead.getTail(), (size - 1) & mask)),
+                    size
+            );
+        } else {
+            int offset = tailOffset(size);
+            ArrayNode<E> tail = track(new ArrayNode<>(getLeaf(oldHead, size - 1), (size - 1) & mask));
+            newHead = new ArrayHead<>(truncateTree(oldHead.getRoot(), offset), tail, size);
+        }
+        pushHead(newHead);
+        return newHead;
+    }
+
+    /**
+     * Возвращает дерево с элементами до индекса size, не включая его. Полные листы не копируются.
+     */
+    private ArrayNode<E> truncateTree(ArrayNode<E> root, int size) {
+        if (size == 0) {
+            return track(new ArrayNode<>(width));
+        }
+        int lastIndex = size - 1;
         int level = bitPerEdge * (depth - 1);
-        ArrayHead<E> newHead = new ArrayHead<>(oldHead, index + 1, (index >> level) & mask);
-        undo.push(newHead);
-        redo.clear();
-        ArrayNode<E> currentNode = newHead.getRoot();
-        for (; level > 0; level -= bitPerEdge) {
-            int widthIndex = (index >> level) & mask;
-            int widthIndexNext = (index >> (level - bitPerEdge)) & mask;
-            ArrayNode<E> tmp;
-            ArrayNode<E> newNode;
-            tmp = currentNode.getChild().get(widthIndex);
-            newNode = new ArrayNode<>(tmp, widthIndexNext);
-            currentNode.getChild().set(widthIndex, newNode);
+        ArrayNode<E> newRoot = track(new ArrayNode<>(root, (lastIndex >> level) & mask));
+        ArrayNode<E> currentNode = newRoot;
+        for (; level > bitPerEdge; level -= bitPerEdge) {
+            int widthIndex = (lastIndex >> level) & mask;
+            int widthIndexNext = (lastIndex >> (level - bitPerEdge)) & mask;
+            ArrayNode<E> newNode = track(new ArrayNode<>(currentNode.getChild(widthIndex), widthIndexNext));
+            currentNode.setChild(widthIndex, newNode);
             currentNode = newNode;
         }
-
-        return new AbstractMap.SimpleEntry<>(currentNode, index & mask);
+        return newRoot;
     }
 
     private E get(ArrayHead<E> head, int index) {
         checkIndex(head, index);
-        return getLeaf(head, index).getValue().get(index & mask);
+        return getLeaf(head, index).getValue(index & mask);
     }
 
     private ArrayNode<E> getLeaf(ArrayHead<E> head, int index) {
         checkIndex(head, index);
 
+        if (index >= tailOffset(head.getSize())) {
+            return head.getTail();
+        }
         ArrayNode<E> node = head.getRoot();
         for (int level = bitPerEdge * (depth - 1); level > 0; level -= bitPerEdge) {
             int widthIndex = (index >> level) & mask;
-            node = node.getChild().get(widthIndex);
+            node = node.getChild(widthIndex);
         }
 
         return node;
@@ -423,7 +770,8 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
 
     @Override
     public boolean addAll(Collection<? extends E> c) {
-        throw new IllegalStateException("Not implemented");
+        applyBatch(array -> c.forEach(array::add));
+        return !c.isEmpty();
     }
 
     @Override
@@ -476,6 +824,162 @@ public class PersistentArray<E> extends PersistentCollection implements List<E>
         return new PersistentArrayIterator<>();
     }
 
+    /**
+     * Неизменяемый снимок версии. Хранит голову и размер версии в final полях, поэтому безопасно
+     * публикуется.
+     */
+    private final class Snapshot extends AbstractList<E> {
+
+        private final ArrayHead<E> head;
+
+        private final int size;
+
+        private Snapshot(ArrayHead<E> head, int size) {
+            this.head = head;
+            this.size = size;
+        }
+
+        @Override
+        public E get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Invalid index");
+            }
+            return getLeaf(head, index).getValue(index & mask);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+    /**
+     * Итератор по отличиям двух версий. Обходит пары узлов деревьев с одинаковыми индексами в обеих
+     * версиях и пропускает пару, если это один и тот же узел. Элементы после деревьев, не больше
+     * ширины узла, сравниваются по одному. Элементы за пределами меньшей из версий добавлены или
+     * удалены.
+     */
+    private final class DiffIterator implements Iterator<Change<Integer, E>> {
+
+        private final ArrayHead<E> from;
+
+        private final ArrayHead<E> to;
+
+        /**
+         * Количество элементов, индексы которых есть в обеих версиях.
+         */
+        private final int commonSize;
+
+        /**
+         * Количество элементов, индексы которых есть в деревьях обеих версий.
+         */
+        private final int commonTreeSize;
+
+        /**
+         * Следующий индекс после деревьев, сравниваемый по элементам.
+         */
+        private int commonIndex;
+
+        /**
+         * Пары узлов, ожидающие обхода: вершина стека - следующая пара.
+         */
+        private final Deque<DiffFrame<E>> stack = new ArrayDeque<>();
+
+        /**
+         * Найденные, но еще не возвращенные отличия.
+         */
+        private final Deque<Change<Integer, E>> pending = new ArrayDeque<>();
+
+        /**
+         * Следующий индекс за пределами меньшей из версий.
+         */
+        private int tailIndex;
+
+        private DiffIterator(ArrayHead<E> from, ArrayHead<E> to) {
+            this.from = from;
+            this.to = to;
+            this.commonSize = Math.min(from.getSize(), to.getSize());
+            this.commonTreeSize = tailOffset(commonSize);
+            this.commonIndex = commonTreeSize;
+            this.tailIndex = commonSize;
+            if (commonTreeSize > 0) {
+                stack.push(new DiffFrame<>(from.getRoot(), to.getRoot(), bitPerEdge * (depth - 1), 0));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pending.isEmpty() && !stack.isEmpty()) {
+                compareNext();
+            }
+            while (pending.isEmpty() && commonIndex < commonSize) {
+                var index = commonIndex++;
+                var fromValue = get(from, index);
+                var toValue = get(to, index);
+                if (!Objects.equals(fromValue, toValue)) {
+                    pending.add(Change.changed(index, fromValue, toValue));
+                }
+            }
+            return !pending.isEmpty() || tailIndex < Math.max(from.getSize(), to.getSize());
+        }
+
+        @Override
+        public Change<Integer, E> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!pending.isEmpty()) {
+                return pending.poll();
+            }
+            var index = tailIndex++;
+            return from.getSize() > index
+                    ? Change.removed(index, get(from, index))
+                    : Change.added(index, get(to, index));
+        }
+
+        private void compareNext() {
+            var frame = stack.pop();
+            var fromNode = frame.from();
+            var toNode = frame.to();
+            var shift = frame.shift();
+            var base = frame.base();
+            if (fromNode == toNode) {
+                return;
+            }
+            if (shift == 0) {
+                for (int i = 0; i <= mask && base + i < commonTreeSize; i++) {
+                    var fromValue = fromNode.getValue(i);
+                    var toValue = toNode.getValue(i);
+                    if (!Objects.equals(fromValue, toValue)) {
+                        pending.add(Change.changed(base + i, fromValue, toValue));
+                    }
+                }
+                return;
+            }
+            // дочерние узлы кладутся в обратном порядке, чтобы обход шел по возрастанию индексов
+            for (int i = mask; i >= 0; i--) {
+                var childBase = base + (i << shift);
+                if (childBase < commonTreeSize) {
+                    stack.push(new DiffFrame<>(
+                            fromNode.getChild(i), toNode.getChild(i), shift - bitPerEdge, childBase));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Пара узлов с одинаковыми индексами в двух версиях.
+     *
+     * @param from  Узел исходной версии.
+     * @param to    Узел целевой версии.
+     * @param shift Сдвиг индекса уровня узлов, 0 для листьев.
+     * @param base  Первый индекс поддерева.
+     */
+    private record DiffFrame<E>(ArrayNode<E> from, ArrayNode<E> to, int shift, int base) {
+    }
+
     /**
      * Итератор над ассоциативным массивом.
      */
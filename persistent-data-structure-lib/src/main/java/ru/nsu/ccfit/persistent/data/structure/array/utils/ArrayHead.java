@@ -1,40 +1,60 @@
 package ru.nsu.ccfit.persistent.data.structure.array.utils;
 
+/**
+ * Голова версии массива: дерево и хвост. Последний неполный или заполненный лист массива хранится
+ * в голове, а не в дереве, поэтому добавление и удаление последнего элемента копирует только хвост,
+ * а путь от корня копируется, когда хвост переносится в дерево или извлекается из него.
+ */
 public class ArrayHead<E> {
 
     /**
-     * Корневой узел массива
+     * Корневой узел массива. Общий для голов версий, пока одна из них не изменит дерево.
      */
-    private final ArrayNode<E> root;
+    private ArrayNode<E> root;
+
+    /**
+     * Лист с последними элементами массива: от 1 до ширины узла элементов непустого массива.
+     */
+    private ArrayNode<E> tail;
 
     /**
      * Текущий размер массива
      */
     private int size = 0;
 
-    public ArrayHead() {
-        this.root = new ArrayNode<>();
-    }
-
-    public ArrayHead(ArrayHead<E> other) {
-        this.root = new ArrayNode<>(other.root);
-        this.size = other.size;
+    public ArrayHead(int width) {
+        this.root = new ArrayNode<>(width);
+        this.tail = new ArrayNode<>(width);
     }
 
     public ArrayHead(ArrayHead<E> other, Integer sizeDelta) {
-        this.root = new ArrayNode<>(other.root);
+        this.root = other.root;
+        this.tail = other.tail;
         this.size = other.size + sizeDelta;
     }
 
-    public ArrayHead(ArrayHead<E> other, Integer newSize, Integer maxIndex) {
-        this.root = new ArrayNode<>(other.root, maxIndex);
-        this.size = newSize;
+    public ArrayHead(ArrayNode<E> root, ArrayNode<E> tail, int size) {
+        this.root = root;
+        this.tail = tail;
+        this.size = size;
     }
 
     public ArrayNode<E> getRoot() {
         return root;
     }
 
+    public void setRoot(ArrayNode<E> root) {
+        this.root = root;
+    }
+
+    public ArrayNode<E> getTail() {
+        return tail;
+    }
+
+    public void setTail(ArrayNode<E> tail) {
+        this.tail = tail;
+    }
+
     public int getSize() {
         return size;
     }
@@ -45,6 +65,6 @@ public class ArrayHead<E> {
 
     @Override
     public String toString() {
-        return String.format("%09x %d", root.hashCode(), size);
+        return String.format("%09x %09x %d", root.hashCode(), tail.hashCode(), size);
     }
 }
@@ -1,109 +1,111 @@
 package ru.nsu.ccfit.persistent.data.structure.array.utils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
- * Узел B-дерева для персистентной коллекции
+ * Узел префиксного дерева для персистентной коллекции. Потомки и значения хранятся в массивах
+ * фиксированной ширины, поэтому переход по индексу на каждом уровне - обращение к элементу массива.
+ * Массивы создаются при первой записи.
  */
 public class ArrayNode<E> {
 
+    /**
+     * Ширина узла: длина массивов потомков и значений.
+     */
+    private final int width;
+
     /**
      * Массив дочерних узлов, который хранит ссылки на дочерние узлы текущего
      * узла.
      */
-    private List<ArrayNode<E>> child;
+    private ArrayNode<E>[] child;
 
     /**
      * Значения элементов узла
      */
-    private List<E> value;
+    private Object[] value;
 
-    public ArrayNode() {
+    public ArrayNode(int width) {
+        this.width = width;
     }
 
     public ArrayNode(ArrayNode<E> other) {
-        if (other != null) {
-            if (other.child != null) {
-                child = new ArrayList<>();
-                child.addAll(other.child);
-            }
-
-            if (other.value != null) {
-                value = new ArrayList<>();
-                value.addAll(other.value);
-            }
-        }
-    }
-
-    public ArrayNode(ArrayNode<E> other, int maxIndex) {
+        this.width = other.width;
         if (other.child != null) {
-            child = new ArrayList<>();
-            for (int i = 0; i <= maxIndex; i++) {
-                child.add(other.child.get(i));
-            }
+            child = newChild(width);
+            System.arraycopy(other.child, 0, child, 0, width);
         }
 
         if (other.value != null) {
-            value = new ArrayList<>();
-            for (int i = 0; i <= maxIndex; i++) {
-                value.add(other.value.get(i));
-            }
+            value = new Object[width];
+            System.arraycopy(other.value, 0, value, 0, width);
         }
     }
 
     /**
-     * Возвращает список потомков этого узла.
+     * Копирует потомков и значения узла с индексами не больше указанного.
      *
-     * @return список потомков этого узла
+     * @param other    Копируемый узел.
+     * @param maxIndex Наибольший копируемый индекс.
      */
-    public List<ArrayNode<E>> getChild() {
-        return child;
+    public ArrayNode(ArrayNode<E> other, int maxIndex) {
+        this.width = other.width;
+        if (other.child != null) {
+            child = newChild(width);
+            System.arraycopy(other.child, 0, child, 0, maxIndex + 1);
+        }
+
+        if (other.value != null) {
+            value = new Object[width];
+            System.arraycopy(other.value, 0, value, 0, maxIndex + 1);
+        }
     }
 
     /**
-     * Устанавливает список потомков этому узлу.
+     * Возвращает потомка этого узла.
      *
-     * @param child список потомков
+     * @param index Индекс потомка.
+     * @return Потомок или null, если потомка нет.
      */
-    public void setChild(List<ArrayNode<E>> child) {
-        this.child = child;
+    public ArrayNode<E> getChild(int index) {
+        return child == null ? null : child[index];
     }
 
     /**
-     * Возвращает список значений этого узла.
+     * Устанавливает потомка этому узлу.
      *
-     * @return список значений этого узла.
+     * @param index Индекс потомка.
+     * @param node  Потомок или null, чтобы удалить потомка.
      */
-    public List<E> getValue() {
-        return value;
+    public void setChild(int index, ArrayNode<E> node) {
+        if (child == null) {
+            child = newChild(width);
+        }
+        child[index] = node;
     }
 
     /**
-     * Устанавливает список значений этому узлу.
+     * Возвращает значение этого узла.
      *
-     * @param value список значений
+     * @param index Индекс значения.
+     * @return Значение.
      */
-    public void setValue(List<E> value) {
-        this.value = value;
+    @SuppressWarnings("unchecked")
+    public E getValue(int index) {
+        return (E) value[index];
     }
 
     /**
-     * Возвращает true, если узел не имеет потомков и не содержит значений.
+     * Устанавливает значение этому узлу.
      *
-     * @return true, если узел не имеет потомков и не содержит значений
+     * @param index Индекс значения.
+     * @param value Значение.
      */
-    public boolean isEmpty() {
-        if ((child == null) && (value == null)) {
-            return true;
+    public void setValue(int index, E value) {
+        if (this.value == null) {
+            this.value = new Object[width];
         }
-
-        if ((value != null) && (!value.isEmpty())) {
-            return false;
-        }
-
-        return (child == null) || (child.isEmpty());
+        this.value[index] = value;
     }
 
     /**
@@ -113,8 +115,13 @@ public class ArrayNode<E> {
      */
     @Override
     public String toString() {
-        String childNodes = child == null ? "[child null]" : Arrays.toString(child.toArray());
-        String values = value == null ? "[value null]" : Arrays.toString(value.toArray());
+        String childNodes = child == null ? "[child null]" : Arrays.toString(child);
+        String values = value == null ? "[value null]" : Arrays.toString(value);
         return String.format("%09x %s %s", hashCode(), childNodes, values);
     }
+
+    @SuppressWarnings("unchecked")
+    private static <E> ArrayNode<E>[] newChild(int width) {
+        return (ArrayNode<E>[]) new ArrayNode<?>[width];
+    }
 }
@@ -1,13 +1,22 @@
 package ru.nsu.ccfit.persistent.data.structure.list;
 
 import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
+import ru.nsu.ccfit.persistent.data.structure.Version;
+import ru.nsu.ccfit.persistent.data.structure.VersionRetention;
+import ru.nsu.ccfit.persistent.data.structure.VersionTable;
 import ru.nsu.ccfit.persistent.data.structure.node.ModificationBox;
 import ru.nsu.ccfit.persistent.data.structure.node.ModificationBoxNode;
+import ru.nsu.ccfit.persistent.data.structure.node.ModificationLog;
 
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
@@ -18,48 +27,115 @@ import java.util.function.Predicate;
 public class PersistentDoubleLinkedList<V> extends AbstractList<V> implements List<V>, PersistentStructure {
 
     /**
-     * Ассоциативный массив: версия -> корень списка.
+     * Таблица версий: первые узлы списка и количество элементов по версиям.
      */
-    private final HashMap<Long, ModificationBoxNode<V, Long>> heads;
+    private final VersionTable<ModificationBoxNode<V, Version>> versions;
+
+    /**
+     * Флаг выполнения пакета изменений.
+     */
+    private boolean inBatch;
+
+    /**
+     * Флаг создания версии текущего пакета изменений.
+     */
+    private boolean batchVersionCreated;
+
+    /**
+     * Журнал модификаций узлов для переноса модификаций отброшенных версий в узлы.
+     */
+    private final ModificationLog<V, Version> modifications;
+
+    /**
+     * Политика хранения истории, закрепленные версии и выданные снимки.
+     */
+    private final VersionRetention retention;
 
     /**
      * Текущая версия структуры.
      */
-    private Long currentVersion;
+    private Version currentVersion;
 
     /**
-     * Последняя доступная версия структуры.
+     * Наибольший номер версии структуры.
      */
-    private Long lastVersion;
+    private long lastVersion;
+
+    /**
+     * Количество ячеек модификаций в узле по умолчанию. На узел ссылаются два соседа, поэтому копия
+     * узла занимает ячейки в двух узлах: при одной ячейке копирование доходит до концов списка,
+     * а при двух копия в среднем копирует O(1) соседей.
+     */
+    public static final int DEFAULT_MODIFICATION_SLOTS = 2;
 
     public PersistentDoubleLinkedList() {
-        this.heads = new HashMap<>();
-        this.currentVersion = 0L;
+        this(DEFAULT_MODIFICATION_SLOTS);
     }
 
+    /**
+     * Создает список с несколькими ячейками модификаций в узлах. Узел копируется только после
+     * заполнения всех ячеек, поэтому изменения реже переписывают ссылки соседей на узел.
+     *
+     * @param modificationSlots Количество ячеек модификаций в узле, не меньше 1.
+     */
+    public PersistentDoubleLinkedList(int modificationSlots) {
+        this.versions = new VersionTable<>();
+        this.modifications = new ModificationLog<>(modificationSlots);
+        this.retention = new VersionRetention();
+        this.currentVersion = versions.startVersion(null, 0);
+        this.lastVersion = 0L;
+    }
+
+    /**
+     * Переходит к родительской версии. Следующий redo вернет в версию, из которой выполнен переход.
+     */
     @Override
     public void undo() {
-        if (currentVersion > 0) {
-            this.currentVersion--;
+        checkNotInBatch();
+        var parent = versions.getVersion(currentVersion.getParentId());
+        if (parent != null) {
+            parent.setNextId(currentVersion.getId());
+            currentVersion = parent;
         }
     }
 
+    /**
+     * Переходит к дочерней версии, из которой выполнен последний undo, или к последней созданной
+     * дочерней версии.
+     */
     @Override
     public void redo() {
-        if (currentVersion < lastVersion) {
-            currentVersion++;
+        checkNotInBatch();
+        var next = versions.getVersion(currentVersion.getNextId());
+        if (next != null) {
+            currentVersion = next;
         }
     }
 
+    /**
+     * Переходит к запрашиваемой версии. Изменение после перехода создает новую ветку дерева версий,
+     * а дочерние версии остаются доступными.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     */
+    public void checkout(long version) {
+        checkNotInBatch();
+        currentVersion = checkVersion(version);
+    }
+
+    /**
+     * Возвращает родительскую версию в дереве версий.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Родительская версия или -1 для начальной версии.
+     */
+    public long getParentVersion(long version) {
+        return checkVersion(version).getParentId();
+    }
+
     @Override
     public int size() {
-        int result = 0;
-        var node = getCurrentHead();
-        while (node != null) {
-            node = node.getRight(currentVersion);
-            result++;
-        }
-        return result;
+        return versions.getSize(currentVersion.getId());
     }
 
     @Override
@@ -74,14 +150,10 @@ public class PersistentDoubleLinkedList<V> extends AbstractList<V> implements Li
 
     @Override
     public boolean add(V v) {
-        var last = getNode(size() - 1);
         doBeforeModifyAction();
-        var newHead = addAfter(
-                currentVersion,
-                last,
-                new ModificationBoxNode<>(last, null, v)
-        );
-        heads.put(currentVersion, newHead);
+        var last = getNode(size() - 1);
+        var newHead = link(currentVersion, new ModificationBoxNode<>(last, null, v), getCurrentHead());
+        versions.set(currentVersion.getId(), newHead, size() + 1);
         return true;
     }
 
@@ -102,14 +174,14 @@ public class PersistentDoubleLinkedList<V> extends AbstractList<V> implements Li
 
     @Override
     public boolean addAll(Collection<? extends V> c) {
-        c.forEach(this::add);
+        applyBatch(list -> c.forEach(list::add));
         return !c.isEmpty();
     }
 
     @Override
     public void clear() {
         doBeforeModifyAction();
-        heads.put(currentVersion, null);
+        versions.set(currentVersion.getId(), null, 0);
     }
 
     @Override
@@ -121,62 +193,216 @@ public class PersistentDoubleLinkedList<V> extends AbstractList<V> implements Li
         return node.getValue(currentVersion);
     }
 
-    @Override
-    public V set(int index, V element) {
-        var node = getNode(index);
+    /**
+     * Возвращает текущую версию структуры.
+     *
+     * @return Текущая версия.
+     */
+    public long getCurrentVersion() {
+        return currentVersion.getId();
+    }
+
+    /**
+     * Возвращает наибольший номер версии структуры.
+     *
+     * @return Номер последней созданной версии.
+     */
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * Возвращает количество элементов в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Количество элементов в версии.
+     */
+    public int size(long version) {
+        checkVersion(version);
+        return versions.getSize(version);
+    }
+
+    /**
+     * Возвращает элемент по индексу в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param index   Индекс элемента.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Элемент в версии.
+     */
+    public V get(int index, long version) {
+        var versionNode = checkVersion(version);
+        var node = getNode(index, versionNode);
         if (node == null) {
             throw new IndexOutOfBoundsException();
         }
+        return node.getValue(versionNode);
+    }
+
+    /**
+     * Возвращает неизменяемую копию списка в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Элементы версии в порядке следования.
+     */
+    public List<V> toList(long version) {
+        var versionNode = checkVersion(version);
+        List<V> result = new ArrayList<>(versions.getSize(version));
+        var node = versions.getRoot(version);
+        while (node != null) {
+            result.add(node.getValue(versionNode));
+            node = node.getRight(versionNode);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Возвращает неизменяемый снимок текущей версии. Снимок не меняется при дальнейших изменениях,
+     * отменах и отбрасывании истории, не обращается к таблицам версий и может читаться из разных
+     * потоков без блокировок одновременно с изменениями в потоке-писателе.
+     *
+     * @return Неизменяемое представление текущей версии.
+     */
+    public List<V> snapshot() {
+        if (inBatch) {
+            throw new IllegalStateException("Snapshot is not allowed inside a batch");
+        }
+        var snapshot = new Snapshot<>(getCurrentHead(), currentVersion, size());
+        retention.registerSnapshot(snapshot, currentVersion.getId());
+        return snapshot;
+    }
+
+    /**
+     * Возвращает самую раннюю сохраненную версию структуры.
+     *
+     * @return Самая ранняя версия, в которую можно перейти с помощью undo.
+     */
+    public long getFirstVersion() {
+        return versions.getFirstVersion();
+    }
+
+    /**
+     * Задает политику хранения истории. С политикой история уплотняется при каждом изменении.
+     *
+     * @param policy Политика хранения или null, чтобы хранить всю историю.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention.setPolicy(policy);
+        if (policy != null && !inBatch) {
+            compact();
+        }
+    }
+
+    /**
+     * Закрепляет версию: она и все последующие версии не отбрасываются до вызова {@link #unpin(long)}.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     */
+    public void pin(long version) {
+        checkVersion(version);
+        retention.pin(version);
+    }
+
+    /**
+     * Снимает одно закрепление версии.
+     *
+     * @param version Версия.
+     */
+    public void unpin(long version) {
+        retention.unpin(version);
+    }
+
+    /**
+     * Отбрасывает версии, которые не сохраняются политикой хранения, закреплениями, снимками
+     * и текущей версией. Модификации отброшенных версий переносятся в поля узлов, а первые узлы
+     * отброшенных версий освобождаются.
+     */
+    public void compact() {
+        if (inBatch) {
+            throw new IllegalStateException("Compaction is not allowed inside a batch");
+        }
+        compactVersions();
+    }
+
+    private void compactVersions() {
+        var firstVersion = retention.oldestRetainedVersion(
+                versions.getFirstVersion(), currentVersion.getId(), lastVersion, versions::getCreatedAt);
+        if (firstVersion > versions.getFirstVersion()) {
+            versions.discardBefore(firstVersion);
+            // модификации переносятся в узлы, только если их видят все сохраняемые версии
+            modifications.fold(versions.getCommonAncestor());
+        }
+    }
+
+    /**
+     * Возвращает количество записей журнала модификаций, еще не перенесенных в узлы.
+     *
+     * @return Количество записей журнала.
+     */
+    int getModificationLogSize() {
+        return modifications.size();
+    }
+
+    @Override
+    public V set(int index, V element) {
+        checkIndex(index);
         doBeforeModifyAction();
+        var node = getNode(index);
         var previousValue = node.getValue(currentVersion);
-        var newNode = node.modify(
-                ModificationBox.createValueModification(currentVersion, element)
+        var newHead = modify(
+                currentVersion,
+                node,
+                ModificationBox.createValueModification(currentVersion, element),
+                getCurrentHead()
         );
-        final ModificationBoxNode<V, Long> newHead;
-        if (newNode == node) {
-            newHead = getCurrentHead();
-        } else {
-            newHead = propagateModification(currentVersion, newNode);
-        }
-        heads.put(currentVersion, newHead);
+        versions.setRoot(currentVersion.getId(), newHead);
         return previousValue;
     }
 
     @Override
     public void add(int index, V element) {
-        var node = getNode(index);
-        if (node == null) {
-            throw new IndexOutOfBoundsException();
-        }
+        checkIndex(index);
         doBeforeModifyAction();
-        addAfter(
+        var node = getNode(index);
+        var newHead = link(
                 currentVersion,
-                node,
-                new ModificationBoxNode<>(
-                        node,
-                        node.getRight(currentVersion),
-                        element
-                )
+                new ModificationBoxNode<>(node, node.getRight(currentVersion), element),
+                getCurrentHead()
         );
+        versions.set(currentVersion.getId(), newHead, size() + 1);
     }
 
     @Override
     public V remove(int index) {
+        checkIndex(index);
+        doBeforeModifyAction();
         var node = getNode(index);
-        if (node == null) {
-            throw new IndexOutOfBoundsException();
-        }
         var previousValue = node.getValue(currentVersion);
-        doBeforeModifyAction();
         var left = node.getLeft(currentVersion);
         var right = node.getRight(currentVersion);
-        final ModificationBoxNode<V, Long> newRoot;
+        var newHead = getCurrentHead();
+        if (right != null) {
+            var modifiedRight = modifications.modify(
+                    right,
+                    ModificationBox.createLeftModification(currentVersion, left)
+            );
+            if (modifiedRight != right) {
+                // ссылку на копию правого узла запишет левый узел
+                newHead = link(currentVersion, modifiedRight, newHead);
+                versions.set(currentVersion.getId(), newHead, size() - 1);
+                return previousValue;
+            }
+        }
         if (left == null) {
-            newRoot = right;
+            newHead = right;
         } else {
-            newRoot = addAfter(currentVersion, left, right);
+            newHead = modify(
+                    currentVersion,
+                    left,
+                    ModificationBox.createRightModification(currentVersion, right),
+                    newHead
+            );
         }
-        heads.put(currentVersion, newRoot);
+        versions.set(currentVersion.getId(), newHead, size() - 1);
         return previousValue;
     }
 
@@ -212,78 +438,221 @@ public class PersistentDoubleLinkedList<V> extends AbstractList<V> implements Li
         return result;
     }
 
-    private ModificationBoxNode<V, Long> addAfter(
-            Long version,
-            ModificationBoxNode<V, Long> node,
-            ModificationBoxNode<V, Long> newNode) {
-        if (node == null) {
-            return newNode;
-        }
-        var modifiedNode = node.modify(
-                ModificationBox.createRightModification(version, newNode)
-        );
+    /**
+     * Записывает модификацию в узел, а если узел скопирован, связывает копию с соседями.
+     *
+     * @return Первый узел списка.
+     */
+    private ModificationBoxNode<V, Version> modify(
+            Version version,
+            ModificationBoxNode<V, Version> node,
+            ModificationBox<V, Version> modification,
+            ModificationBoxNode<V, Version> head) {
+        var modifiedNode = modifications.modify(node, modification);
         if (modifiedNode == node) {
-            return getCurrentHead();
+            return head;
         }
-        return propagateModification(version, modifiedNode);
+        return link(version, modifiedNode, head);
     }
 
-    private ModificationBoxNode<V, Long> propagateModification(
-            Long version,
-            ModificationBoxNode<V, Long> modifiedNode) {
-        var lastCreated = modifiedNode;
-        var node = lastCreated;
-        while (node != null) {
-            var prev = node.getLeft(version);
-            if (prev == null) {
+    /**
+     * Связывает с соседями новый узел, ссылки которого уже верны в версии: предыдущий узел получает
+     * ссылку на него как на следующий, а следующий - как на предыдущий. Если для ссылки в соседе нет
+     * свободной ячейки, сосед копируется, и связывание продолжается от копии в ту же сторону.
+     * Ссылки на предыдущий узел хранятся в модификациях так же, как на следующий, поэтому соседи
+     * находятся без прохода от начала списка, а копия узла с p > 1 ячейками в среднем копирует
+     * O(1) соседей: каждая копия освобождает p ячеек и занимает одну ячейку соседа.
+     *
+     * @return Первый узел списка.
+     */
+    private ModificationBoxNode<V, Version> link(
+            Version version,
+            ModificationBoxNode<V, Version> node,
+            ModificationBoxNode<V, Version> head) {
+        var current = node;
+        while (true) {
+            var previous = current.getLeft(version);
+            if (previous == null) {
+                head = current;
+                break;
+            }
+            var modified = modifications.modify(
+                    previous,
+                    ModificationBox.createRightModification(version, current)
+            );
+            if (modified == previous) {
+                break;
+            }
+            current.linkLeft(modified);
+            current = modified;
+        }
+        current = node;
+        while (true) {
+            var next = current.getRight(version);
+            if (next == null) {
                 break;
             }
-            lastCreated = prev.modify(
-                    ModificationBox.createRightModification(version, lastCreated)
+            var modified = modifications.modify(
+                    next,
+                    ModificationBox.createLeftModification(version, current)
             );
-            if (lastCreated == prev) {
-                return getCurrentHead();
+            if (modified == next) {
+                break;
             }
-            node = prev;
+            current.linkRight(modified);
+            current = modified;
         }
-        return lastCreated;
+        return head;
     }
 
-    private ModificationBoxNode<V, Long> getNode(int index) {
-        var condition = new Predicate<ModificationBoxNode<V, Long>>() {
+    private ModificationBoxNode<V, Version> getNode(int index) {
+        return getNode(index, currentVersion);
+    }
+
+    private ModificationBoxNode<V, Version> getNode(int index, Version version) {
+        var condition = new Predicate<ModificationBoxNode<V, Version>>() {
 
             int currentIndex = 0;
 
             @Override
-            public boolean test(ModificationBoxNode<V, Long> node) {
+            public boolean test(ModificationBoxNode<V, Version> node) {
                 return currentIndex++ == index;
             }
         };
-        return iterateUntilCondition(condition);
+        return iterateUntilCondition(condition, version);
     }
 
-    private ModificationBoxNode<V, Long> iterateUntilCondition(Predicate<ModificationBoxNode<V, Long>> condition) {
-        var node = getCurrentHead();
+    private ModificationBoxNode<V, Version> iterateUntilCondition(
+            Predicate<ModificationBoxNode<V, Version>> condition,
+            Version version) {
+        var node = versions.getRoot(version.getId());
         while (node != null) {
             if (condition.test(node)) {
                 break;
             }
-            node = node.getRight(currentVersion);
+            node = node.getRight(version);
+        }
+        return node;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private Version checkVersion(long version) {
+        var node = version <= lastVersion ? versions.getVersion(version) : null;
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown version: " + version);
         }
         return node;
     }
 
-    private ModificationBoxNode<V, Long> getCurrentHead() {
-        return heads.get(currentVersion);
+    private ModificationBoxNode<V, Version> getCurrentHead() {
+        return versions.getRoot(currentVersion.getId());
+    }
+
+    /**
+     * Выполняет изменения пакетом в одной версии: все изменения внутри пакета создают одну версию
+     * и отменяются одним undo. Узлы, измененные внутри пакета, обновляются на месте. Вложенный пакет
+     * становится частью внешнего. Если пакет прерван исключением, выполненные изменения остаются
+     * в версии пакета.
+     *
+     * @param batch Изменения.
+     */
+    public void applyBatch(Consumer<? super PersistentDoubleLinkedList<V>> batch) {
+        if (inBatch) {
+            batch.accept(this);
+            return;
+        }
+        inBatch = true;
+        batchVersionCreated = false;
+        try {
+            batch.accept(this);
+        } finally {
+            inBatch = false;
+        }
+    }
+
+    private void checkNotInBatch() {
+        if (inBatch) {
+            throw new IllegalStateException("Undo and redo are not allowed inside a batch");
+        }
     }
 
     private void doBeforeModifyAction() {
-        currentVersion++;
-        if (currentVersion != 1 && lastVersion >= currentVersion) {
-            heads.get(currentVersion - 1).cleanFromVersion(currentVersion);
+        if (inBatch && batchVersionCreated) {
+            return;
+        }
+        batchVersionCreated = inBatch;
+        // изменение более ранней версии начинает новую ветку: модификации новой версии видны
+        // только ее потомкам, поэтому будущее исходной ветки сохраняется
+        lastVersion++;
+        currentVersion = versions.startVersion(currentVersion, lastVersion);
+        if (retention.hasPolicy()) {
+            compactVersions();
+        }
+    }
+
+    /**
+     * Неизменяемый снимок версии. Хранит первый узел и размер версии в final полях, поэтому безопасно
+     * публикуется, а узлы читаются только в зафиксированной версии.
+     */
+    private static final class Snapshot<V> extends AbstractList<V> {
+
+        private final ModificationBoxNode<V, Version> head;
+
+        private final Version version;
+
+        private final int size;
+
+        private Snapshot(ModificationBoxNode<V, Version> head, Version version, int size) {
+            this.head = head;
+            this.version = version;
+            this.size = size;
+        }
+
+        @Override
+        public V get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException();
+            }
+            var node = head;
+            for (int i = 0; i < index; i++) {
+                node = node.getRight(version);
+            }
+            return node.getValue(version);
         }
-        lastVersion = currentVersion;
-        heads.put(currentVersion, heads.get(currentVersion - 1));
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new Iterator<>() {
+
+                private ModificationBoxNode<V, Version> next = head;
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public V next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    var value = next.getValue(version);
+                    next = next.getRight(version);
+                    return value;
+                }
+            };
+        }
+
     }
 
 }
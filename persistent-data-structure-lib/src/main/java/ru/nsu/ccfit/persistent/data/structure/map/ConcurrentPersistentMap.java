@@ -0,0 +1,512 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Ассоциативный массив поддерживающий операции возврата к предыдущему состоянию и одновременные
+ * изменения из нескольких потоков без блокировок.
+ * В отличие от {@link PersistentMap} узлы AVL-дерева неизменяемы: изменение копирует путь от корня,
+ * а новая версия публикуется одной операцией compare-and-set над ссылкой на состояние. При
+ * конфликте изменение повторяется от новой версии. Чтение фиксирует одну версию и не блокирует
+ * ни писателей, ни других читателей. Ключи упорядочены в естественном порядке, null в качестве
+ * ключа или значения не допускается.
+ *
+ * @param <K> Тип ключа ассоциативного массива.
+ * @param <V> Тип значения ассоциативного массива.
+ */
+public class ConcurrentPersistentMap<K, V> extends AbstractMap<K, V>
+        implements ConcurrentMap<K, V>, PersistentStructure {
+
+    /**
+     * Текущее состояние: текущая версия и стек отмененных версий.
+     */
+    private final AtomicReference<State<K, V>> state;
+
+    public ConcurrentPersistentMap() {
+        this.state = new AtomicReference<>(new State<>(new Version<>(null, 0, 0L, null), null));
+    }
+
+    @Override
+    public void undo() {
+        update(current -> current.version.previous == null
+                ? current
+                : new State<>(current.version.previous, new Redo<>(current.version, current.redo)));
+    }
+
+    @Override
+    public void redo() {
+        update(current -> current.redo == null
+                ? current
+                : new State<>(current.redo.version, current.redo.next));
+    }
+
+    /**
+     * Возвращает номер текущей версии.
+     *
+     * @return Текущая версия.
+     */
+    public long getCurrentVersion() {
+        return state.get().version.number;
+    }
+
+    @Override
+    public int size() {
+        return state.get().version.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(state.get().version.root, key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        var node = find(state.get().version.root, key);
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (write(current, insert(current.version.root, key, value), previous == null ? 1 : 0)) {
+                return previous == null ? null : previous.value;
+            }
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (previous != null) {
+                return previous.value;
+            }
+            if (write(current, insert(current.version.root, key, value), 1)) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (previous == null) {
+                return null;
+            }
+            if (write(current, delete(current.version.root, key), -1)) {
+                return previous.value;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (previous == null || !previous.value.equals(value)) {
+                return false;
+            }
+            if (write(current, delete(current.version.root, key), -1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(newValue);
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (previous == null || !previous.value.equals(oldValue)) {
+                return false;
+            }
+            if (write(current, insert(current.version.root, key, newValue), 0)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        while (true) {
+            var current = state.get();
+            var previous = find(current.version.root, key);
+            if (previous == null) {
+                return null;
+            }
+            if (write(current, insert(current.version.root, key, value), 0)) {
+                return previous.value;
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        while (true) {
+            var current = state.get();
+            if (write(current, null, -current.version.size)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Возвращает неизменяемый снимок текущей версии.
+     *
+     * @return Неизменяемое представление текущей версии.
+     */
+    public Map<K, V> snapshot() {
+        return Collections.unmodifiableMap(new VersionMap<>(state.get().version));
+    }
+
+    /**
+     * Возвращает набор пар ключ - значение версии, текущей на момент создания итератора. Удаление
+     * через итератор создает новую версию.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                var iterator = new EntryIterator<K, V>(state.get().version.root);
+                return new Iterator<>() {
+
+                    private Entry<K, V> lastReturned;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        lastReturned = iterator.next();
+                        return lastReturned;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (lastReturned == null) {
+                            throw new IllegalStateException();
+                        }
+                        ConcurrentPersistentMap.this.remove(lastReturned.getKey(), lastReturned.getValue());
+                        lastReturned = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentPersistentMap.this.size();
+            }
+        };
+    }
+
+    private void update(UnaryOperator<State<K, V>> function) {
+        while (true) {
+            var current = state.get();
+            if (state.compareAndSet(current, function.apply(current))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Публикует новую версию, если состояние не изменилось с момента чтения.
+     *
+     * @param expected  Прочитанное состояние.
+     * @param root      Корень новой версии.
+     * @param sizeDelta Изменение количества элементов.
+     * @return true, если новая версия опубликована.
+     */
+    private boolean write(State<K, V> expected, Node<K, V> root, int sizeDelta) {
+        var version = expected.version;
+        var next = new State<>(new Version<>(root, version.size + sizeDelta, version.number + 1, version), null);
+        return state.compareAndSet(expected, next);
+    }
+
+    private static <K, V> Node<K, V> find(Node<K, V> root, Object key) {
+        Objects.requireNonNull(key);
+        var node = root;
+        while (node != null) {
+            var compareResult = PersistentMap.compare(key, node.key);
+            if (compareResult == 0) {
+                return node;
+            }
+            node = compareResult < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    private static <K, V> Node<K, V> insert(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        var compareResult = PersistentMap.compare(key, node.key);
+        if (compareResult == 0) {
+            return new Node<>(node.key, value, node.left, node.right);
+        } else if (compareResult < 0) {
+            return balance(node.key, node.value, insert(node.left, key, value), node.right);
+        } else {
+            return balance(node.key, node.value, node.left, insert(node.right, key, value));
+        }
+    }
+
+    private static <K, V> Node<K, V> delete(Node<K, V> node, Object key) {
+        var compareResult = PersistentMap.compare(key, node.key);
+        if (compareResult < 0) {
+            return balance(node.key, node.value, delete(node.left, key), node.right);
+        } else if (compareResult > 0) {
+            return balance(node.key, node.value, node.left, delete(node.right, key));
+        } else if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
+        }
+        var successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.value, node.left, deleteMin(node.right));
+    }
+
+    private static <K, V> Node<K, V> deleteMin(Node<K, V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.key, node.value, deleteMin(node.left), node.right);
+    }
+
+    /**
+     * Создает узел с заданными потомками и восстанавливает AVL-инвариант поворотами.
+     */
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        var leftHeight = height(left);
+        var rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            var pivot = left.right;
+            return new Node<>(
+                    pivot.key,
+                    pivot.value,
+                    new Node<>(left.key, left.value, left.left, pivot.left),
+                    new Node<>(key, value, pivot.right, right)
+            );
+        } else if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            }
+            var pivot = right.left;
+            return new Node<>(
+                    pivot.key,
+                    pivot.value,
+                    new Node<>(key, value, left, pivot.left),
+                    new Node<>(right.key, right.value, pivot.right, right.right)
+            );
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * Неизменяемый узел AVL-дерева.
+     */
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final int height;
+
+        private final Node<K, V> left;
+
+        private final Node<K, V> right;
+
+        private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Map.Entry<?, ?> e
+                    && Objects.equals(key, e.getKey())
+                    && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+
+    }
+
+    /**
+     * Версия ассоциативного массива.
+     *
+     * @param root     Корень дерева.
+     * @param size     Количество элементов.
+     * @param number   Номер версии.
+     * @param previous Предыдущая версия.
+     */
+    private record Version<K, V>(Node<K, V> root, int size, long number, Version<K, V> previous) {
+    }
+
+    /**
+     * Стек отмененных версий.
+     *
+     * @param version Последняя отмененная версия.
+     * @param next    Остальные отмененные версии.
+     */
+    private record Redo<K, V>(Version<K, V> version, Redo<K, V> next) {
+    }
+
+    /**
+     * Состояние ассоциативного массива.
+     *
+     * @param version Текущая версия.
+     * @param redo    Отмененные версии или null.
+     */
+    private record State<K, V>(Version<K, V> version, Redo<K, V> redo) {
+    }
+
+    /**
+     * Представление одной версии.
+     */
+    private static final class VersionMap<K, V> extends AbstractMap<K, V> {
+
+        private final Version<K, V> version;
+
+        private VersionMap(Version<K, V> version) {
+            this.version = version;
+        }
+
+        @Override
+        public int size() {
+            return version.size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(version.root, key) != null;
+        }
+
+        @Override
+        public V get(Object key) {
+            var node = find(version.root, key);
+            return node == null ? null : node.value;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<>() {
+
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<>(version.root);
+                }
+
+                @Override
+                public int size() {
+                    return version.size;
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Итератор по парам ключ - значение в порядке ключей.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+
+        private EntryIterator(Node<K, V> root) {
+            pushLeft(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            var node = stack.pop();
+            pushLeft(node.right);
+            return node;
+        }
+
+        private void pushLeft(Node<K, V> node) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,42 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+/**
+ * Разрешение конфликта трехстороннего слияния: ключ изменен в обеих ветках по-разному.
+ * Отсутствие ключа обозначается значением null.
+ *
+ * @param <K> Тип ключа.
+ * @param <V> Тип значения.
+ */
+@FunctionalInterface
+public interface ConflictResolver<K, V> {
+
+    /**
+     * Возвращает значение ключа в результате слияния.
+     *
+     * @param key    Ключ.
+     * @param base   Значение в общей версии или null.
+     * @param ours   Значение в нашей версии или null.
+     * @param theirs Значение в их версии или null.
+     * @return Значение в результате слияния или null, чтобы удалить ключ.
+     */
+    V resolve(K key, V base, V ours, V theirs);
+
+    /**
+     * Возвращает разрешение, выбирающее значение нашей версии.
+     *
+     * @return Разрешение в пользу нашей версии.
+     */
+    static <K, V> ConflictResolver<K, V> ours() {
+        return (key, base, ours, theirs) -> ours;
+    }
+
+    /**
+     * Возвращает разрешение, выбирающее значение их версии.
+     *
+     * @return Разрешение в пользу их версии.
+     */
+    static <K, V> ConflictResolver<K, V> theirs() {
+        return (key, base, ours, theirs) -> theirs;
+    }
+
+}
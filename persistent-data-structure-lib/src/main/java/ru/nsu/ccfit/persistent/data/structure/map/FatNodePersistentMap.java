@@ -1,15 +1,21 @@
 package ru.nsu.ccfit.persistent.data.structure.map;
 
 import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+import ru.nsu.ccfit.persistent.data.structure.VersionTable;
 import ru.nsu.ccfit.persistent.data.structure.node.FatNode;
 import ru.nsu.ccfit.persistent.data.structure.node.SlimNode;
 
 import java.beans.BeanProperty;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -18,28 +24,39 @@ import java.util.stream.Stream;
 public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructure {
 
     /**
-     * Ассоциативный массив: версия -> корень двоичного дерева.
+     * Таблица версий: корни двоичного дерева и количество элементов по версиям.
      */
-    private final HashMap<Long, FatNode<Map.Entry<K, V>, Long>> roots;
+    private final VersionTable<FatNode<Map.Entry<K, V>>> versions;
+
+    /**
+     * Узлы, в которые записывались состояния, в порядке версий. Нужны, чтобы при новом изменении
+     * после undo забыть состояния отмененных версий.
+     */
+    private final ArrayList<FatNode<Map.Entry<K, V>>> written = new ArrayList<>();
+
+    /**
+     * Индекс первой записи {@link #written} каждой версии.
+     */
+    private int[] writtenFrom = new int[16];
 
     /**
      * Текущая версия структуры.
      */
-    private Long currentVersion;
+    private long currentVersion;
 
     /**
      * Последняя доступная версия структуры.
      */
-    private Long lastVersion;
+    private long lastVersion;
 
     public FatNodePersistentMap() {
-        this.roots = new HashMap<>();
+        this.versions = new VersionTable<>();
         this.currentVersion = 0L;
     }
 
     @Override
     public int size() {
-        return entrySet().size();
+        return versions.getSize(currentVersion);
     }
 
     @BeanProperty
@@ -71,15 +88,17 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
         Comparable<? super K> k = (Comparable<? super K>) key;
         var previousRoot = getCurrentRoot();
         var entryWithParent = getEntryWithParent(key, false);
+        var size = size();
         doBeforeModifyAction();
         var entry = entryWithParent.get(0);
         var parent = entryWithParent.get(1);
-        final FatNode<Map.Entry<K, V>, Long> newRoot;
+        final FatNode<Map.Entry<K, V>> newRoot;
 
         V oldValue = null;
         if (entry != null) {
             oldValue = entry.getValue(currentVersion).getValue();
             newRoot = previousRoot;
+            logWrite(entry);
             entry.updateValue(currentVersion, Map.entry(key, value));
         } else if (parent == null) {
             newRoot = new FatNode<>(
@@ -98,19 +117,66 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
                     currentVersion,
                     new SlimNode<>(Map.entry(key, value), null, null)
             );
+            logWrite(parent);
             if (compareResult > 0) {
                 parent.updateRight(currentVersion, newNode);
             } else {
                 parent.updateLeft(currentVersion, newNode);
             }
         }
-        roots.put(currentVersion, newRoot);
+        versions.set(currentVersion, newRoot, entry == null ? size + 1 : size);
         return oldValue;
     }
 
+    /**
+     * Удаляет ключ. Узел с двумя потомками получает пару следующего ключа, а узел следующего ключа
+     * заменяется своим правым потомком.
+     */
     @Override
     public V remove(Object key) {
-        throw new IllegalStateException("not implemented");
+        var entryWithParent = getEntryWithParent(key, true);
+        if (entryWithParent == null) {
+            return null;
+        }
+        var entry = entryWithParent.get(0);
+        var parent = entryWithParent.get(1);
+        var oldValue = entry.getValue(currentVersion).getValue();
+        var newRoot = getCurrentRoot();
+        var size = size();
+        doBeforeModifyAction();
+
+        var left = entry.getLeft(currentVersion);
+        var right = entry.getRight(currentVersion);
+        if (left != null && right != null) {
+            var successorParent = entry;
+            var successor = right;
+            while (successor.getLeft(currentVersion) != null) {
+                successorParent = successor;
+                successor = successor.getLeft(currentVersion);
+            }
+            logWrite(entry);
+            entry.updateValue(currentVersion, successor.getValue(currentVersion));
+            logWrite(successorParent);
+            if (successorParent == entry) {
+                entry.updateRight(currentVersion, successor.getRight(currentVersion));
+            } else {
+                successorParent.updateLeft(currentVersion, successor.getRight(currentVersion));
+            }
+        } else {
+            var child = left != null ? left : right;
+            if (parent == null) {
+                newRoot = child;
+            } else {
+                logWrite(parent);
+                if (parent.getLeft(currentVersion) == entry) {
+                    parent.updateLeft(currentVersion, child);
+                } else {
+                    parent.updateRight(currentVersion, child);
+                }
+            }
+        }
+        versions.set(currentVersion, newRoot, size - 1);
+        return oldValue;
     }
 
     @Override
@@ -123,7 +189,7 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
     @Override
     public void clear() {
         doBeforeModifyAction();
-        roots.put(currentVersion, null);
+        versions.set(currentVersion, null, 0);
     }
 
     @Override
@@ -140,9 +206,40 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Возвращает неизменяемый набор пар ключ - значение текущей версии. Пары не копируются, а
+     * обходятся по мере чтения в порядке ключей.
+     */
     @Override
     public Set<Entry<K, V>> entrySet() {
-        return getRootEntrySet(getCurrentRoot(), new HashSet<>());
+        var root = getCurrentRoot();
+        var version = currentVersion;
+        var size = size();
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<>(root, version);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry<?, ?> entry) || entry.getKey() == null) {
+                    return false;
+                }
+                try {
+                    var node = find(root, entry.getKey(), version);
+                    return node != null && Objects.equals(node.getValue(version).getValue(), entry.getValue());
+                } catch (ClassCastException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     @Override
@@ -159,7 +256,7 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
         }
     }
 
-    private FatNode<Map.Entry<K, V>, Long> getEntry(Object key) {
+    private FatNode<Map.Entry<K, V>> getEntry(Object key) {
         var entryWithParent = getEntryWithParent(key, true);
         if (entryWithParent == null || entryWithParent.isEmpty()) {
             return null;
@@ -167,14 +264,14 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
         return entryWithParent.get(0);
     }
 
-    private List<FatNode<Entry<K, V>, Long>> getEntryWithParent(
+    private List<FatNode<Entry<K, V>>> getEntryWithParent(
             Object key,
             boolean exact) {
         Objects.requireNonNull(key);
         @SuppressWarnings("unchecked")
         Comparable<? super K> k = (Comparable<? super K>) key;
         var entry = getCurrentRoot();
-        FatNode<Map.Entry<K, V>, Long> previous = null;
+        FatNode<Map.Entry<K, V>> previous = null;
         while (entry != null) {
             var internalEntry = entry.getValue(currentVersion);
             if (internalEntry == null) {
@@ -199,26 +296,99 @@ public class FatNodePersistentMap<K, V> implements Map<K, V>, PersistentStructur
         }
     }
 
-    private Set<Entry<K, V>> getRootEntrySet(
-            FatNode<Entry<K, V>, Long> root,
-            Set<Entry<K, V>> internalEntrySet) {
-        if (root == null) {
-            return internalEntrySet;
+    private static <K, V> FatNode<Entry<K, V>> find(FatNode<Entry<K, V>> root, Object key, long version) {
+        @SuppressWarnings("unchecked")
+        Comparable<? super K> k = (Comparable<? super K>) key;
+        var node = root;
+        while (node != null) {
+            var compareResult = k.compareTo(node.getValue(version).getKey());
+            if (compareResult == 0) {
+                return node;
+            }
+            node = compareResult > 0 ? node.getRight(version) : node.getLeft(version);
         }
-        getRootEntrySet(root.getLeft(currentVersion), internalEntrySet);
-        getRootEntrySet(root.getRight(currentVersion), internalEntrySet);
-        internalEntrySet.add(root.getValue(currentVersion));
-        return internalEntrySet;
+        return null;
     }
 
-    private FatNode<Map.Entry<K, V>, Long> getCurrentRoot() {
-        return roots.get(currentVersion);
+    private FatNode<Map.Entry<K, V>> getCurrentRoot() {
+        return versions.getRoot(currentVersion);
     }
 
     private void doBeforeModifyAction() {
+        if (currentVersion < lastVersion) {
+            discardRedoHistory();
+        }
         currentVersion++;
         lastVersion = currentVersion;
-        roots.remove(currentVersion);
+        versions.setRoot(currentVersion, null);
+        if (currentVersion == writtenFrom.length) {
+            writtenFrom = Arrays.copyOf(writtenFrom, writtenFrom.length * 2);
+        }
+        writtenFrom[(int) currentVersion] = written.size();
+    }
+
+    /**
+     * Забывает состояния версий после текущей: новая версия получит номер первой из них, и узлы
+     * не должны отдавать ей состояния отмененной ветки.
+     */
+    private void discardRedoHistory() {
+        var from = writtenFrom[(int) currentVersion + 1];
+        for (var i = written.size() - 1; i >= from; i--) {
+            written.get(i).truncateAfter(currentVersion);
+        }
+        written.subList(from, written.size()).clear();
+    }
+
+    /**
+     * Записывает в журнал узел перед изменением, если в текущей версии он еще не изменялся.
+     * Новые узлы не записываются: из предыдущих версий они недостижимы.
+     */
+    private void logWrite(FatNode<Map.Entry<K, V>> node) {
+        if (node.getLatestVersion() != currentVersion) {
+            written.add(node);
+        }
+    }
+
+    /**
+     * Итератор по парам ключ - значение версии в порядке ключей с явным стеком вместо рекурсии,
+     * поэтому вырожденное дерево не переполняет стек вызовов.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final long version;
+
+        /**
+         * Узлы, ожидающие обхода: вершина стека - следующий узел.
+         */
+        private final Deque<FatNode<Entry<K, V>>> stack = new ArrayDeque<>();
+
+        private EntryIterator(FatNode<Entry<K, V>> root, long version) {
+            this.version = version;
+            pushEdge(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            var node = stack.pop();
+            pushEdge(node.getRight(version));
+            return node.getValue(version);
+        }
+
+        private void pushEdge(FatNode<Entry<K, V>> node) {
+            while (node != null) {
+                stack.push(node);
+                node = node.getLeft(version);
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,398 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+
+import java.util.Arrays;
+
+/**
+ * Ассоциативный массив long -> long поддерживающий операции возврата к предыдущему состоянию.
+ * Устроен так же, как {@link PersistentMap}, но ключи, значения и версии хранятся в узлах
+ * примитивными полями, а модификация узла хранится в самом узле. Операции не упаковывают
+ * значения и не создают объектов пар ключ - значение.
+ */
+public class LongLongPersistentMap implements PersistentStructure {
+
+    /**
+     * Начальная емкость таблицы версий.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Корни дерева по версиям.
+     */
+    private Node[] roots;
+
+    /**
+     * Количество элементов по версиям.
+     */
+    private int[] sizes;
+
+    /**
+     * Журнал модификаций: узлы, в которые записывалась модификация, в порядке версий.
+     */
+    private Node[] modifiedNodes;
+
+    /**
+     * Количество записей журнала модификаций.
+     */
+    private int modifiedCount;
+
+    /**
+     * Текущая версия структуры.
+     */
+    private long currentVersion;
+
+    /**
+     * Последняя доступная версия структуры.
+     */
+    private long lastVersion;
+
+    public LongLongPersistentMap() {
+        this.roots = new Node[INITIAL_CAPACITY];
+        this.sizes = new int[INITIAL_CAPACITY];
+        this.modifiedNodes = new Node[INITIAL_CAPACITY];
+        this.currentVersion = 0L;
+        this.lastVersion = 0L;
+    }
+
+    @Override
+    public void undo() {
+        if (currentVersion > 0) {
+            currentVersion--;
+        }
+    }
+
+    @Override
+    public void redo() {
+        if (currentVersion < lastVersion) {
+            currentVersion++;
+        }
+    }
+
+    public int size() {
+        return sizes[(int) currentVersion];
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return getNode(key) != null;
+    }
+
+    /**
+     * Возвращает значение по ключу.
+     *
+     * @param key Ключ.
+     * @return Значение по ключу или 0, если ключа нет.
+     */
+    public long get(long key) {
+        return getOrDefault(key, 0L);
+    }
+
+    /**
+     * Возвращает значение по ключу.
+     *
+     * @param key          Ключ.
+     * @param defaultValue Значение, возвращаемое при отсутствии ключа.
+     * @return Значение по ключу или defaultValue, если ключа нет.
+     */
+    public long getOrDefault(long key, long defaultValue) {
+        var node = getNode(key);
+        return node == null ? defaultValue : node.getValue(currentVersion);
+    }
+
+    /**
+     * Связывает значение с ключом в новой версии.
+     *
+     * @param key   Ключ.
+     * @param value Значение.
+     * @return Предыдущее значение по ключу или 0, если ключа не было.
+     */
+    public long put(long key, long value) {
+        var previous = getNode(key);
+        var previousValue = previous == null ? 0L : previous.getValue(currentVersion);
+        var root = getCurrentRoot();
+        var size = size();
+        doBeforeModifyAction();
+        roots[(int) currentVersion] = insert(root, key, value);
+        sizes[(int) currentVersion] = previous == null ? size + 1 : size;
+        return previousValue;
+    }
+
+    /**
+     * Удаляет ключ в новой версии. Если ключа нет, новая версия не создается.
+     *
+     * @param key Ключ.
+     * @return Удаленное значение или 0, если ключа не было.
+     */
+    public long remove(long key) {
+        var previous = getNode(key);
+        if (previous == null) {
+            return 0L;
+        }
+        var previousValue = previous.getValue(currentVersion);
+        var root = getCurrentRoot();
+        var size = size();
+        doBeforeModifyAction();
+        roots[(int) currentVersion] = delete(root, key);
+        sizes[(int) currentVersion] = size - 1;
+        return previousValue;
+    }
+
+    public void clear() {
+        doBeforeModifyAction();
+        roots[(int) currentVersion] = null;
+        sizes[(int) currentVersion] = 0;
+    }
+
+    private Node insert(Node node, long key, long value) {
+        if (node == null) {
+            return new Node(key, value, 1, null, null);
+        }
+        var left = node.getLeft(currentVersion);
+        var right = node.getRight(currentVersion);
+        if (key == node.key) {
+            return link(node, key, value, left, right);
+        } else if (key < node.key) {
+            return balance(node, node.key, node.getValue(currentVersion), insert(left, key, value), right);
+        } else {
+            return balance(node, node.key, node.getValue(currentVersion), left, insert(right, key, value));
+        }
+    }
+
+    private Node delete(Node node, long key) {
+        if (node == null) {
+            return null;
+        }
+        var left = node.getLeft(currentVersion);
+        var right = node.getRight(currentVersion);
+        if (key < node.key) {
+            return balance(node, node.key, node.getValue(currentVersion), delete(left, key), right);
+        } else if (key > node.key) {
+            return balance(node, node.key, node.getValue(currentVersion), left, delete(right, key));
+        } else if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        }
+        var successor = right;
+        while (successor.getLeft(currentVersion) != null) {
+            successor = successor.getLeft(currentVersion);
+        }
+        return balance(node, successor.key, successor.getValue(currentVersion), left, deleteMin(right));
+    }
+
+    private Node deleteMin(Node node) {
+        var left = node.getLeft(currentVersion);
+        if (left == null) {
+            return node.getRight(currentVersion);
+        }
+        return balance(node, node.key, node.getValue(currentVersion), deleteMin(left), node.getRight(currentVersion));
+    }
+
+    /**
+     * Связывает узел с новыми потомками и восстанавливает AVL-инвариант поворотами.
+     */
+    private Node balance(Node node, long key, long value, Node left, Node right) {
+        var leftHeight = height(left);
+        var rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            var leftValue = left.getValue(currentVersion);
+            var leftLeft = left.getLeft(currentVersion);
+            var leftRight = left.getRight(currentVersion);
+            if (height(leftLeft) >= height(leftRight)) {
+                return link(left, left.key, leftValue, leftLeft, link(node, key, value, leftRight, right));
+            }
+            var pivotValue = leftRight.getValue(currentVersion);
+            var pivotLeft = leftRight.getLeft(currentVersion);
+            var pivotRight = leftRight.getRight(currentVersion);
+            return link(
+                    leftRight,
+                    leftRight.key,
+                    pivotValue,
+                    link(left, left.key, leftValue, leftLeft, pivotLeft),
+                    link(node, key, value, pivotRight, right)
+            );
+        } else if (rightHeight > leftHeight + 1) {
+            var rightValue = right.getValue(currentVersion);
+            var rightLeft = right.getLeft(currentVersion);
+            var rightRight = right.getRight(currentVersion);
+            if (height(rightRight) >= height(rightLeft)) {
+                return link(right, right.key, rightValue, link(node, key, value, left, rightLeft), rightRight);
+            }
+            var pivotValue = rightLeft.getValue(currentVersion);
+            var pivotLeft = rightLeft.getLeft(currentVersion);
+            var pivotRight = rightLeft.getRight(currentVersion);
+            return link(
+                    rightLeft,
+                    rightLeft.key,
+                    pivotValue,
+                    link(node, key, value, left, pivotLeft),
+                    link(right, right.key, rightValue, pivotRight, rightRight)
+            );
+        }
+        return link(node, key, value, left, right);
+    }
+
+    /**
+     * Приводит узел к требуемому состоянию в текущей версии. Единственное изменение записывается
+     * в модификацию узла, иначе создается новый узел.
+     */
+    private Node link(Node node, long key, long value, Node left, Node right) {
+        var height = Math.max(height(left), height(right)) + 1;
+        if (node.key != key) {
+            return new Node(key, value, height, left, right);
+        }
+        var leftChanged = node.getLeft(currentVersion) != left;
+        var rightChanged = node.getRight(currentVersion) != right;
+        var valueChanged = node.getValue(currentVersion) != value || node.getHeight(currentVersion) != height;
+        var changes = (leftChanged ? 1 : 0) + (rightChanged ? 1 : 0) + (valueChanged ? 1 : 0);
+        if (changes == 0) {
+            return node;
+        } else if (changes > 1 || node.modificationType != Node.NO_MODIFICATION) {
+            return new Node(key, value, height, left, right);
+        }
+        node.modificationVersion = currentVersion;
+        logModification(node);
+        if (leftChanged) {
+            node.modificationType = Node.LEFT;
+            node.nodeModification = left;
+        } else if (rightChanged) {
+            node.modificationType = Node.RIGHT;
+            node.nodeModification = right;
+        } else {
+            node.modificationType = Node.VALUE;
+            node.valueModification = value;
+            node.heightModification = height;
+        }
+        return node;
+    }
+
+    private int height(Node node) {
+        return node == null ? 0 : node.getHeight(currentVersion);
+    }
+
+    private Node getNode(long key) {
+        var node = getCurrentRoot();
+        while (node != null && node.key != key) {
+            node = key < node.key
+                    ? node.getLeft(currentVersion)
+                    : node.getRight(currentVersion);
+        }
+        return node;
+    }
+
+    private Node getCurrentRoot() {
+        return roots[(int) currentVersion];
+    }
+
+    private void doBeforeModifyAction() {
+        currentVersion++;
+        if (lastVersion >= currentVersion) {
+            truncateModifications(currentVersion);
+        }
+        lastVersion = currentVersion;
+        if (currentVersion >= roots.length) {
+            var capacity = Math.toIntExact(Math.max(currentVersion + 1, 2L * roots.length));
+            roots = Arrays.copyOf(roots, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+    }
+
+    private void logModification(Node node) {
+        if (modifiedCount == modifiedNodes.length) {
+            modifiedNodes = Arrays.copyOf(modifiedNodes, 2 * modifiedCount);
+        }
+        modifiedNodes[modifiedCount++] = node;
+    }
+
+    /**
+     * Удаляет модификации, совершенные в версиях не ниже указанной. Версии в журнале не убывают,
+     * поэтому обходятся только узлы, измененные после этой версии.
+     */
+    private void truncateModifications(long version) {
+        while (modifiedCount > 0) {
+            var node = modifiedNodes[modifiedCount - 1];
+            if (node.modificationType != Node.NO_MODIFICATION && node.modificationVersion < version) {
+                break;
+            }
+            node.modificationType = Node.NO_MODIFICATION;
+            node.nodeModification = null;
+            modifiedNodes[--modifiedCount] = null;
+        }
+    }
+
+    /**
+     * Узел AVL-дерева с одной встроенной модификацией.
+     */
+    private static final class Node {
+
+        static final byte NO_MODIFICATION = 0;
+
+        static final byte LEFT = 1;
+
+        static final byte RIGHT = 2;
+
+        /**
+         * Модификация значения и высоты поддерева.
+         */
+        static final byte VALUE = 3;
+
+        private final long key;
+
+        private final long value;
+
+        private final int height;
+
+        private final Node left;
+
+        private final Node right;
+
+        /**
+         * Тип модификации узла.
+         */
+        private byte modificationType;
+
+        /**
+         * Версия модификации.
+         */
+        private long modificationVersion;
+
+        /**
+         * Новое значение левого или правого узла.
+         */
+        private Node nodeModification;
+
+        private long valueModification;
+
+        private int heightModification;
+
+        private Node(long key, long value, int height, Node left, Node right) {
+            this.key = key;
+            this.value = value;
+            this.height = height;
+            this.left = left;
+            this.right = right;
+        }
+
+        private Node getLeft(long version) {
+            return modificationType == LEFT && modificationVersion <= version ? nodeModification : left;
+        }
+
+        private Node getRight(long version) {
+            return modificationType == RIGHT && modificationVersion <= version ? nodeModification : right;
+        }
+
+        private long getValue(long version) {
+            return modificationType == VALUE && modificationVersion <= version ? valueModification : value;
+        }
+
+        private int getHeight(long version) {
+            return modificationType == VALUE && modificationVersion <= version ? heightModification : height;
+        }
+
+    }
+
+}
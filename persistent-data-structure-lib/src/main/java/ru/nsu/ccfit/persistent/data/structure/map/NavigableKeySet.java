@@ -0,0 +1,176 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+
+/**
+ * Упорядоченное множество ключей, являющееся представлением упорядоченного ассоциативного массива.
+ *
+ * @param <K> Тип ключа.
+ */
+class NavigableKeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+
+    /**
+     * Ассоциативный массив, ключи которого представляет множество.
+     */
+    private final NavigableMap<K, ?> map;
+
+    NavigableKeySet(NavigableMap<K, ?> map) {
+        this.map = map;
+    }
+
+    /**
+     * Возвращает итератор по ключам. Удаление выполняется через ассоциативный массив: итераторы
+     * {@link PersistentMap} зафиксированы на версии, поэтому удаление не нарушает обход.
+     */
+    @Override
+    public Iterator<K> iterator() {
+        var entries = map.entrySet().iterator();
+        return new Iterator<>() {
+
+            private K lastReturned;
+
+            private boolean canRemove;
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public K next() {
+                lastReturned = entries.next().getKey();
+                canRemove = true;
+                return lastReturned;
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                map.remove(lastReturned);
+                canRemove = false;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!map.containsKey(o)) {
+            return false;
+        }
+        map.remove(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public K lower(K k) {
+        return map.lowerKey(k);
+    }
+
+    @Override
+    public K floor(K k) {
+        return map.floorKey(k);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return map.ceilingKey(k);
+    }
+
+    @Override
+    public K higher(K k) {
+        return map.higherKey(k);
+    }
+
+    @Override
+    public K pollFirst() {
+        return PersistentMap.keyOrNull(map.pollFirstEntry());
+    }
+
+    @Override
+    public K pollLast() {
+        return PersistentMap.keyOrNull(map.pollLastEntry());
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return map.comparator();
+    }
+
+    @Override
+    public K first() {
+        return map.firstKey();
+    }
+
+    @Override
+    public K last() {
+        return map.lastKey();
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+        return new NavigableKeySet<>(map.descendingMap());
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+        return descendingSet().iterator();
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+        return new NavigableKeySet<>(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+        return new NavigableKeySet<>(map.headMap(toElement, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+        return new NavigableKeySet<>(map.tailMap(fromElement, inclusive));
+    }
+
+    @Override
+    public SortedSet<K> subSet(K fromElement, K toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> headSet(K toElement) {
+        return headSet(toElement, false);
+    }
+
+    @Override
+    public SortedSet<K> tailSet(K fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+}
@@ -0,0 +1,371 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Представление диапазона ключей {@link PersistentMap}. Представление отражает текущую версию
+ * ассоциативного массива, изменения через представление создают новые версии исходного массива.
+ *
+ * @param <K> Тип ключа ассоциативного массива.
+ * @param <V> Тип значения ассоциативного массива.
+ */
+class NavigableSubMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+    /**
+     * Исходный ассоциативный массив.
+     */
+    private final PersistentMap<K, V> map;
+
+    /**
+     * Флаг отсутствия нижней границы.
+     */
+    private final boolean fromStart;
+
+    /**
+     * Нижняя граница диапазона в порядке исходного массива.
+     */
+    private final K lo;
+
+    private final boolean loInclusive;
+
+    /**
+     * Флаг отсутствия верхней границы.
+     */
+    private final boolean toEnd;
+
+    /**
+     * Верхняя граница диапазона в порядке исходного массива.
+     */
+    private final K hi;
+
+    private final boolean hiInclusive;
+
+    /**
+     * Флаг обратного порядка ключей.
+     */
+    private final boolean descending;
+
+    NavigableSubMap(
+            PersistentMap<K, V> map,
+            boolean fromStart,
+            K lo,
+            boolean loInclusive,
+            boolean toEnd,
+            K hi,
+            boolean hiInclusive,
+            boolean descending) {
+        if (!fromStart && !toEnd && PersistentMap.compare(lo, hi) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        this.map = map;
+        this.fromStart = fromStart;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.toEnd = toEnd;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+
+    @Override
+    public int size() {
+        var result = 0;
+        var iterator = entryIterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            result++;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return absLowest() == null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return inRange(key) && map.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        return inRange(key) ? map.get(key) : null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+        return map.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return inRange(key) ? map.remove(key) : null;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return entryIterator();
+            }
+
+            @Override
+            public int size() {
+                return NavigableSubMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return NavigableSubMap.this.isEmpty();
+            }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return descending ? Collections.reverseOrder() : null;
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return descending ? absHigher(key) : absLower(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return PersistentMap.keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return descending ? absCeiling(key) : absFloor(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return PersistentMap.keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return descending ? absFloor(key) : absCeiling(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return PersistentMap.keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return descending ? absLower(key) : absHigher(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return PersistentMap.keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return descending ? absHighest() : absLowest();
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return descending ? absLowest() : absHighest();
+    }
+
+    @Override
+    public K firstKey() {
+        return PersistentMap.key(firstEntry());
+    }
+
+    @Override
+    public K lastKey() {
+        return PersistentMap.key(lastEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        var entry = firstEntry();
+        if (entry != null) {
+            map.remove(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        var entry = lastEntry();
+        if (entry != null) {
+            map.remove(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return new NavigableSubMap<>(map, fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new NavigableKeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        checkRange(fromKey, fromInclusive);
+        checkRange(toKey, toInclusive);
+        if (descending) {
+            return new NavigableSubMap<>(map, false, toKey, toInclusive, false, fromKey, fromInclusive, true);
+        }
+        return new NavigableSubMap<>(map, false, fromKey, fromInclusive, false, toKey, toInclusive, false);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        checkRange(toKey, inclusive);
+        if (descending) {
+            return new NavigableSubMap<>(map, false, toKey, inclusive, toEnd, hi, hiInclusive, true);
+        }
+        return new NavigableSubMap<>(map, fromStart, lo, loInclusive, false, toKey, inclusive, false);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        checkRange(fromKey, inclusive);
+        if (descending) {
+            return new NavigableSubMap<>(map, fromStart, lo, loInclusive, false, fromKey, inclusive, true);
+        }
+        return new NavigableSubMap<>(map, false, fromKey, inclusive, toEnd, hi, hiInclusive, false);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    private Iterator<Entry<K, V>> entryIterator() {
+        if (descending) {
+            return map.entryIterator(toEnd ? null : hi, hiInclusive, this::tooLow, true);
+        }
+        return map.entryIterator(fromStart ? null : lo, loInclusive, this::tooHigh, false);
+    }
+
+    private boolean tooLow(Object key) {
+        if (fromStart) {
+            return false;
+        }
+        var compareResult = PersistentMap.compare(key, lo);
+        return compareResult < 0 || (compareResult == 0 && !loInclusive);
+    }
+
+    private boolean tooHigh(Object key) {
+        if (toEnd) {
+            return false;
+        }
+        var compareResult = PersistentMap.compare(key, hi);
+        return compareResult > 0 || (compareResult == 0 && !hiInclusive);
+    }
+
+    private boolean inRange(Object key) {
+        Objects.requireNonNull(key);
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    /**
+     * Проверяет, что граница нового представления не выходит за границы текущего.
+     */
+    private void checkRange(Object key, boolean inclusive) {
+        Objects.requireNonNull(key);
+        var inClosedRange = (fromStart || PersistentMap.compare(key, lo) >= 0)
+                && (toEnd || PersistentMap.compare(hi, key) >= 0);
+        if (!(inclusive ? inRange(key) : inClosedRange)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+    }
+
+    private Entry<K, V> absLowest() {
+        var entry = fromStart
+                ? map.firstEntry()
+                : loInclusive ? map.ceilingEntry(lo) : map.higherEntry(lo);
+        return entry == null || tooHigh(entry.getKey()) ? null : entry;
+    }
+
+    private Entry<K, V> absHighest() {
+        var entry = toEnd
+                ? map.lastEntry()
+                : hiInclusive ? map.floorEntry(hi) : map.lowerEntry(hi);
+        return entry == null || tooLow(entry.getKey()) ? null : entry;
+    }
+
+    private Entry<K, V> absCeiling(K key) {
+        if (tooLow(key)) {
+            return absLowest();
+        }
+        var entry = map.ceilingEntry(key);
+        return entry == null || tooHigh(entry.getKey()) ? null : entry;
+    }
+
+    private Entry<K, V> absHigher(K key) {
+        if (tooLow(key)) {
+            return absLowest();
+        }
+        var entry = map.higherEntry(key);
+        return entry == null || tooHigh(entry.getKey()) ? null : entry;
+    }
+
+    private Entry<K, V> absFloor(K key) {
+        if (tooHigh(key)) {
+            return absHighest();
+        }
+        var entry = map.floorEntry(key);
+        return entry == null || tooLow(entry.getKey()) ? null : entry;
+    }
+
+    private Entry<K, V> absLower(K key) {
+        if (tooHigh(key)) {
+            return absHighest();
+        }
+        var entry = map.lowerEntry(key);
+        return entry == null || tooLow(entry.getKey()) ? null : entry;
+    }
+
+}
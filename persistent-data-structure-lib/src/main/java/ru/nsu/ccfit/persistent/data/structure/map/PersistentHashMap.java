@@ -0,0 +1,572 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+import ru.nsu.ccfit.persistent.data.structure.VersionTable;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Ассоциативный массив поддерживающий операции возврата к предыдущему состоянию, основанный
+ * на префиксном дереве хешей (hash array mapped trie). Не требует сравнимости ключей: поиск
+ * выполняется по 5 битам хеша на уровень, изменение копирует не более log32(n) узлов.
+ *
+ * @param <K> Тип ключа ассоциативного массива.
+ * @param <V> Тип значения ассоциативного массива.
+ */
+public class PersistentHashMap<K, V> implements Map<K, V>, PersistentStructure {
+
+    /**
+     * Количество бит хеша, используемых на одном уровне дерева.
+     */
+    private static final int BITS_PER_LEVEL = 5;
+
+    /**
+     * Маска для выделения индекса на уровне дерева.
+     */
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+    /**
+     * Максимальная глубина дерева: 7 уровней по 5 бит и узел коллизий.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Таблица версий: корни префиксного дерева и количество элементов по версиям.
+     */
+    private final VersionTable<Node> versions;
+
+    /**
+     * Текущая версия структуры.
+     */
+    private long currentVersion;
+
+    /**
+     * Последняя доступная версия структуры.
+     */
+    private long lastVersion;
+
+    public PersistentHashMap() {
+        this.versions = new VersionTable<>();
+        this.currentVersion = 0L;
+        this.lastVersion = 0L;
+    }
+
+    @Override
+    public void undo() {
+        if (currentVersion > 0) {
+            this.currentVersion--;
+        }
+    }
+
+    @Override
+    public void redo() {
+        if (currentVersion < lastVersion) {
+            currentVersion++;
+        }
+    }
+
+    @Override
+    public int size() {
+        return versions.getSize(currentVersion);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getEntry(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        var entry = getEntry(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public V put(K key, V value) {
+        var previous = getEntry(key);
+        var root = getCurrentRoot();
+        var size = size();
+        doBeforeModifyAction();
+        var entry = new AbstractMap.SimpleImmutableEntry<>(key, value);
+        var newRoot = root == null
+                ? BitmapNode.EMPTY.put(hash(key), 0, entry)
+                : root.put(hash(key), 0, entry);
+        versions.set(currentVersion, newRoot, previous == null ? size + 1 : size);
+        return previous == null ? null : previous.getValue();
+    }
+
+    @Override
+    public V remove(Object key) {
+        var previous = getEntry(key);
+        if (previous == null) {
+            return null;
+        }
+        var root = getCurrentRoot();
+        var size = size();
+        doBeforeModifyAction();
+        versions.set(currentVersion, root.remove(hash(key), 0, key), size - 1);
+        return previous.getValue();
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (final var entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        doBeforeModifyAction();
+        versions.set(currentVersion, null, 0);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<K> iterator() {
+                var entries = entrySet().iterator();
+                return new Iterator<>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return entries.next().getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return PersistentHashMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+
+            @Override
+            public Iterator<V> iterator() {
+                var entries = entrySet().iterator();
+                return new Iterator<>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        return entries.next().getValue();
+                    }
+
+                    @Override
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return PersistentHashMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator(getCurrentRoot());
+            }
+
+            @Override
+            public int size() {
+                return PersistentHashMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry<?, ?> e) || e.getKey() == null) {
+                    return false;
+                }
+                var entry = getEntry(e.getKey());
+                return entry != null && Objects.equals(entry.getValue(), e.getValue());
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Map<?, ?> m) || m.size() != size()) {
+            return false;
+        }
+        return entrySet().containsAll(m.entrySet());
+    }
+
+    @Override
+    public int hashCode() {
+        return entrySet().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return entrySet().toString();
+    }
+
+    private Entry<K, V> getEntry(Object key) {
+        Objects.requireNonNull(key);
+        var root = getCurrentRoot();
+        return root == null ? null : root.find(hash(key), 0, key);
+    }
+
+    private Node getCurrentRoot() {
+        return versions.getRoot(currentVersion);
+    }
+
+    private void doBeforeModifyAction() {
+        currentVersion++;
+        lastVersion = currentVersion;
+        versions.setRoot(currentVersion, null);
+    }
+
+    /**
+     * Перемешивает старшие биты хеша с младшими, чтобы первые уровни дерева использовали весь хеш.
+     */
+    private static int hash(Object key) {
+        var h = Objects.requireNonNull(key).hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & LEVEL_MASK);
+    }
+
+    /**
+     * Неизменяемый узел дерева. Изменение возвращает новый узел, копируя только путь от корня.
+     */
+    private abstract static class Node {
+
+        /**
+         * Элементы узла: пары ключ - значение или дочерние узлы.
+         */
+        final Object[] slots;
+
+        Node(Object[] slots) {
+            this.slots = slots;
+        }
+
+        abstract <K, V> Entry<K, V> find(int hash, int shift, Object key);
+
+        abstract Node put(int hash, int shift, Entry<?, ?> entry);
+
+        /**
+         * Возвращает узел без ключа или null, если узел стал пустым.
+         */
+        abstract Node remove(int hash, int shift, Object key);
+
+        /**
+         * Возвращает единственную пару ключ - значение узла, если узел не содержит ничего другого.
+         */
+        Entry<?, ?> singleEntry() {
+            return slots.length == 1 && slots[0] instanceof Entry<?, ?> e ? e : null;
+        }
+
+    }
+
+    /**
+     * Узел, элементы которого адресуются битовой маской занятых позиций.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        /**
+         * Битовая маска занятых позиций уровня.
+         */
+        private final int bitmap;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            super(slots);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        <K, V> Entry<K, V> find(int hash, int shift, Object key) {
+            var bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            var slot = slots[index(bit)];
+            if (slot instanceof Node node) {
+                return node.find(hash, shift + BITS_PER_LEVEL, key);
+            }
+            var entry = (Entry<K, V>) slot;
+            return key.equals(entry.getKey()) ? entry : null;
+        }
+
+        @Override
+        Node put(int hash, int shift, Entry<?, ?> entry) {
+            var bit = bit(hash, shift);
+            var index = index(bit);
+            if ((bitmap & bit) == 0) {
+                var newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, index);
+                newSlots[index] = entry;
+                System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            var slot = slots[index];
+            final Object newSlot;
+            if (slot instanceof Node node) {
+                newSlot = node.put(hash, shift + BITS_PER_LEVEL, entry);
+            } else if (((Entry<?, ?>) slot).getKey().equals(entry.getKey())) {
+                newSlot = entry;
+            } else {
+                var existing = (Entry<?, ?>) slot;
+                newSlot = merge(shift + BITS_PER_LEVEL, existing, hash(existing.getKey()), entry, hash);
+            }
+            return withSlot(index, newSlot);
+        }
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+            var bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            var index = index(bit);
+            var slot = slots[index];
+            if (slot instanceof Node node) {
+                var newNode = node.remove(hash, shift + BITS_PER_LEVEL, key);
+                if (newNode == node) {
+                    return this;
+                } else if (newNode == null) {
+                    return withoutSlot(bit, index);
+                }
+                var single = newNode.singleEntry();
+                return withSlot(index, single == null ? newNode : single);
+            }
+            if (!((Entry<?, ?>) slot).getKey().equals(key)) {
+                return this;
+            }
+            return withoutSlot(bit, index);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode withSlot(int index, Object slot) {
+            var newSlots = slots.clone();
+            newSlots[index] = slot;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        private BitmapNode withoutSlot(int bit, int index) {
+            if (slots.length == 1) {
+                return null;
+            }
+            var newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            System.arraycopy(slots, index + 1, newSlots, index, newSlots.length - index);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        /**
+         * Создает узел из двух пар с разными ключами, попавших в одну позицию уровня.
+         */
+        private static Node merge(int shift, Entry<?, ?> first, int firstHash, Entry<?, ?> second, int secondHash) {
+            if (firstHash == secondHash) {
+                return new CollisionNode(firstHash, new Object[]{first, second});
+            }
+            return EMPTY.put(firstHash, shift, first).put(secondHash, shift, second);
+        }
+
+    }
+
+    /**
+     * Узел для ключей с полностью совпадающими хешами.
+     */
+    private static final class CollisionNode extends Node {
+
+        /**
+         * Общий хеш ключей узла.
+         */
+        private final int hash;
+
+        CollisionNode(int hash, Object[] slots) {
+            super(slots);
+            this.hash = hash;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        <K, V> Entry<K, V> find(int hash, int shift, Object key) {
+            var index = indexOf(key);
+            return index == -1 ? null : (Entry<K, V>) slots[index];
+        }
+
+        @Override
+        Node put(int hash, int shift, Entry<?, ?> entry) {
+            if (hash != this.hash) {
+                return new BitmapNode(bit(this.hash, shift), new Object[]{this}).put(hash, shift, entry);
+            }
+            var index = indexOf(entry.getKey());
+            final Object[] newSlots;
+            if (index == -1) {
+                newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, slots.length);
+                newSlots[slots.length] = entry;
+            } else {
+                newSlots = slots.clone();
+                newSlots[index] = entry;
+            }
+            return new CollisionNode(hash, newSlots);
+        }
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+            var index = indexOf(key);
+            if (index == -1) {
+                return this;
+            } else if (slots.length == 1) {
+                return null;
+            }
+            var newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            System.arraycopy(slots, index + 1, newSlots, index, newSlots.length - index);
+            return new CollisionNode(hash, newSlots);
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < slots.length; i++) {
+                if (((Entry<?, ?>) slots[i]).getKey().equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    /**
+     * Итератор по парам ключ - значение, зафиксированный на корне версии.
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+
+        /**
+         * Элементы узлов на пути от корня до текущего узла.
+         */
+        private final Object[][] path = new Object[MAX_DEPTH][];
+
+        /**
+         * Позиция следующего элемента в каждом узле пути.
+         */
+        private final int[] positions = new int[MAX_DEPTH];
+
+        private int depth;
+
+        private Entry<K, V> next;
+
+        private Entry<K, V> lastReturned;
+
+        private EntryIterator(Node root) {
+            if (root == null) {
+                depth = -1;
+            } else {
+                path[0] = root.slots;
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = next;
+            advance();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            PersistentHashMap.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (depth >= 0) {
+                if (positions[depth] == path[depth].length) {
+                    depth--;
+                    continue;
+                }
+                var slot = path[depth][positions[depth]++];
+                if (slot instanceof Node node) {
+                    depth++;
+                    path[depth] = node.slots;
+                    positions[depth] = 0;
+                } else {
+                    next = (Entry<K, V>) slot;
+                    return;
+                }
+            }
+            next = null;
+        }
+
+    }
+
+}
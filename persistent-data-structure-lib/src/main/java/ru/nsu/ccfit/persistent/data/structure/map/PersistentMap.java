@@ -1,84 +1,248 @@
 package ru.nsu.ccfit.persistent.data.structure.map;
 
+import ru.nsu.ccfit.persistent.data.structure.Change;
 import ru.nsu.ccfit.persistent.data.structure.PersistentStructure;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
+import ru.nsu.ccfit.persistent.data.structure.Version;
+import ru.nsu.ccfit.persistent.data.structure.VersionCache;
+import ru.nsu.ccfit.persistent.data.structure.VersionRetention;
+import ru.nsu.ccfit.persistent.data.structure.VersionTable;
 import ru.nsu.ccfit.persistent.data.structure.node.ModificationBox;
 import ru.nsu.ccfit.persistent.data.structure.node.ModificationBoxNode;
+import ru.nsu.ccfit.persistent.data.structure.node.ModificationLog;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Ассоциативный массив поддерживающий операции возврата к предыдущему состоянию.
+ * Основан на AVL-дереве, поэтому глубина дерева O(log n) при любом порядке вставки ключей.
+ * Ключи упорядочены в естественном порядке, навигационные операции выполняются за O(log n).
  *
  * @param <K> Тип ключа ассоциативного массива.
  * @param <V> Тип значения ассоциативного массива.
  */
-public class PersistentMap<K, V> implements Map<K, V>, PersistentStructure {
+public class PersistentMap<K, V> implements NavigableMap<K, V>, PersistentStructure {
 
     /**
-     * Ассоциативный массив: версия -> корень двоичного дерева.
+     * Таблица версий: корни двоичного дерева и количество элементов по версиям.
      */
-    private final HashMap<Long, ModificationBoxNode<Map.Entry<K, V>, Long>> roots;
+    private final VersionTable<ModificationBoxNode<TreeEntry<K, V>, Version>> versions;
+
+    /**
+     * Флаг выполнения пакета изменений.
+     */
+    private boolean inBatch;
+
+    /**
+     * Флаг создания версии текущего пакета изменений.
+     */
+    private boolean batchVersionCreated;
 
     /**
      * Текущая версия структуры.
      */
-    private Long currentVersion;
+    private Version currentVersion;
+
+    /**
+     * Наибольший номер версии структуры.
+     */
+    private long lastVersion;
+
+    /**
+     * Журнал модификаций узлов для переноса модификаций отброшенных версий в узлы.
+     */
+    private final ModificationLog<TreeEntry<K, V>, Version> modifications;
 
     /**
-     * Последняя доступная версия структуры.
+     * Политика хранения истории, закрепленные версии и выданные снимки.
      */
-    private Long lastVersion;
+    private final VersionRetention retention;
 
     /**
-     * Флаг использования мемоизации (по умолчанию false).
+     * Количество версий в кэше мемоизации по умолчанию.
      */
-    private final boolean useMemoize;
+    private static final int DEFAULT_MEMOIZED_VERSIONS = 16;
 
     /**
-     * Мемоизированный набор пар ключ - значение (используется при useMemoize=true).
+     * Оценка памяти мемоизированных значений на одну пару ключ - значение: узел и ячейка таблицы
+     * LinkedHashSet и ячейка списка значений.
      */
-    private Set<Entry<K, V>> memoizedEntrySet;
+    private static final long MEMOIZED_BYTES_PER_ENTRY = 56;
+
+    /**
+     * Мемоизированные наборы пар ключ - значение, значения и хеш-коды по версиям или null, если
+     * мемоизация не используется.
+     */
+    private final VersionCache<Memoized<K, V>> memoized;
 
     public PersistentMap() {
         this(false);
     }
 
+    /**
+     * Создает ассоциативный массив.
+     *
+     * @param useMemoize Мемоизировать entrySet, values и hashCode последних использованных версий.
+     */
     public PersistentMap(boolean useMemoize) {
-        this.useMemoize = useMemoize;
-        this.roots = new HashMap<>();
-        this.currentVersion = 0L;
-        this.memoizedEntrySet = null;
+        this(useMemoize ? new VersionCache<>(DEFAULT_MEMOIZED_VERSIONS, Long.MAX_VALUE) : null, 1);
+    }
+
+    /**
+     * Создает ассоциативный массив, мемоизирующий entrySet, values и hashCode последних
+     * использованных версий.
+     *
+     * @param maxMemoizedVersions Наибольшее количество мемоизированных версий.
+     * @param maxMemoizedBytes    Наибольшая оценка памяти мемоизированных значений в байтах.
+     */
+    public PersistentMap(int maxMemoizedVersions, long maxMemoizedBytes) {
+        this(new VersionCache<>(maxMemoizedVersions, maxMemoizedBytes), 1);
+    }
+
+    /**
+     * Создает ассоциативный массив с несколькими ячейками модификаций в узлах. Узел копируется
+     * только после заполнения всех ячеек, поэтому повторные изменения узла реже копируют путь
+     * от него к корню ценой более долгого поиска модификации при чтении.
+     *
+     * @param modificationSlots Количество ячеек модификаций в узле, не меньше 1.
+     */
+    public PersistentMap(int modificationSlots) {
+        this(null, modificationSlots);
+    }
+
+    private PersistentMap(VersionCache<Memoized<K, V>> memoized, int modificationSlots) {
+        this.memoized = memoized;
+        this.versions = new VersionTable<>();
+        this.modifications = new ModificationLog<>(modificationSlots);
+        this.retention = new VersionRetention();
+        this.currentVersion = versions.startVersion(null, 0);
+        this.lastVersion = 0L;
+    }
+
+    /**
+     * Создает ассоциативный массив из пар ключ - значение, упорядоченных по возрастанию ключей.
+     * Сбалансированное дерево строится снизу вверх за O(n) без поиска места вставки и без
+     * поворотов. Все пары добавляются в версии 1.
+     *
+     * @param entries Пары ключ - значение в порядке строгого возрастания ключей.
+     * @param <K>     Тип ключа ассоциативного массива.
+     * @param <V>     Тип значения ассоциативного массива.
+     * @return Ассоциативный массив в версии 1.
+     * @throws IllegalArgumentException Если ключи не упорядочены строго по возрастанию.
+     */
+    public static <K extends Comparable<? super K>, V> PersistentMap<K, V> fromSorted(
+            Iterator<? extends Entry<? extends K, ? extends V>> entries) {
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        while (entries.hasNext()) {
+            var entry = entries.next();
+            K key = Objects.requireNonNull(entry.getKey());
+            if (!keys.isEmpty() && key.compareTo(keys.get(keys.size() - 1)) <= 0) {
+                throw new IllegalArgumentException("Keys are not strictly ascending: " + key);
+            }
+            keys.add(key);
+            values.add(entry.getValue());
+        }
+        PersistentMap<K, V> map = new PersistentMap<>();
+        map.doBeforeModifyAction();
+        map.versions.set(map.currentVersion.getId(), buildBalanced(keys, values, 0, keys.size()), keys.size());
+        return map;
+    }
+
+    /**
+     * Строит идеально сбалансированное поддерево из пар с индексами [from, to). Пара каждого узла
+     * создается один раз, уже с высотой и размером поддерева.
+     */
+    private static <K, V> ModificationBoxNode<TreeEntry<K, V>, Version> buildBalanced(
+            List<K> keys,
+            List<V> values,
+            int from,
+            int to) {
+        if (from >= to) {
+            return null;
+        }
+        var middle = (from + to) >>> 1;
+        var left = buildBalanced(keys, values, from, middle);
+        var right = buildBalanced(keys, values, middle + 1, to);
+        // высота дерева из n узлов, разделенного по середине, равна floor(log2(n)) + 1
+        var height = Integer.SIZE - Integer.numberOfLeadingZeros(to - from);
+        return new ModificationBoxNode<>(left, right, new TreeEntry<>(keys.get(middle), values.get(middle), height, to - from));
     }
 
+    /**
+     * Переходит к родительской версии. Следующий redo вернет в версию, из которой выполнен переход.
+     */
     @Override
     public void undo() {
-        if (currentVersion > 0) {
-            this.currentVersion--;
-            deleteMemoized();
+        checkNotInBatch();
+        var parent = versions.getVersion(currentVersion.getParentId());
+        if (parent != null) {
+            parent.setNextId(currentVersion.getId());
+            currentVersion = parent;
         }
     }
 
+    /**
+     * Переходит к дочерней версии, из которой выполнен последний undo, или к последней созданной
+     * дочерней версии.
+     */
     @Override
     public void redo() {
-        if (currentVersion < lastVersion) {
-            currentVersion++;
-            deleteMemoized();
+        checkNotInBatch();
+        var next = versions.getVersion(currentVersion.getNextId());
+        if (next != null) {
+            currentVersion = next;
         }
     }
 
+    /**
+     * Переходит к запрашиваемой версии. Изменение после перехода создает новую ветку дерева версий,
+     * а дочерние версии остаются доступными.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     */
+    public void checkout(long version) {
+        checkNotInBatch();
+        currentVersion = checkVersion(version);
+    }
+
+    /**
+     * Возвращает родительскую версию в дереве версий.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Родительская версия или -1 для начальной версии.
+     */
+    public long getParentVersion(long version) {
+        return checkVersion(version).getParentId();
+    }
+
     @Override
     public int size() {
-        return entrySet().size();
+        return versions.getSize(currentVersion.getId());
     }
 
     @Override
@@ -108,375 +272,1581 @@ public class PersistentMap<K, V> implements Map<K, V>, PersistentStructure {
         Objects.requireNonNull(key);
         @SuppressWarnings("unchecked")
         Comparable<? super K> k = (Comparable<? super K>) key;
-        var root = getCurrentRoot();
+        var previous = getEntry(key);
+        var previousValue = previous == null ? null : previous.getValue(currentVersion).getValue();
         doBeforeModifyAction();
-        if (root == null) {
-            roots.put(
-                    currentVersion,
-                    new ModificationBoxNode<>(
-                            null,
-                            null,
-                            Map.entry(key, value)
-                    )
-            );
-            return null;
-        }
-        List<ModificationBoxNode<Entry<K, V>, Long>> path = new ArrayList<>();
-        List<Boolean> isLeftMove = new ArrayList<>();
-        boolean found = false;
-        var entry = root;
-        while (entry != null) {
-            path.add(entry);
-            var internalEntry = entry.getValue(currentVersion - 1);
-            if (internalEntry == null) {
-                throw new IllegalArgumentException("entry value can not be null");
-            }
-            var entryKey = internalEntry.getKey();
-            var compareResult = k.compareTo(entryKey);
-            if (compareResult == 0) {
-                found = true;
-                break;
-            }
-            if (compareResult > 0) {
-                isLeftMove.add(Boolean.FALSE);
-                entry = entry.getRight(currentVersion - 1);
-            } else {
-                isLeftMove.add(Boolean.TRUE);
-                entry = entry.getLeft(currentVersion - 1);
-            }
-        }
-        var last = path.getLast();
-        final ModificationBoxNode<Entry<K, V>, Long> newNode;
-        if (found) {
-            newNode = last.modify(
-                    ModificationBox.createValueModification(
-                            currentVersion,
-                            Map.entry(key, value)
-                    )
-            );
-            if (newNode == last) {
-                roots.put(currentVersion, roots.get(currentVersion - 1));
-                return last.getValue(currentVersion - 1).getValue();
-            }
-            path.remove(path.size() - 1);
-        } else {
-            newNode = new ModificationBoxNode<>(
-                    null,
-                    null,
-                    Map.entry(key, value)
-            );
-        }
-        var newRoot = upperLink(
-                currentVersion,
-                path,
-                isLeftMove,
-                newNode
-        );
-        if (newRoot == null) {
-            roots.put(currentVersion, roots.get(currentVersion - 1));
-        } else {
-            roots.put(currentVersion, newRoot);
-        }
-        return null;
+        var root = getCurrentRoot();
+        var size = size();
+        versions.set(currentVersion.getId(), insert(root, k, key, value), previous == null ? size + 1 : size);
+        return previousValue;
     }
 
     @Override
     public V remove(Object key) {
-        var entryWithParent = getEntryWithParent(key);
-        if (entryWithParent == null || entryWithParent.isEmpty()) {
+        var entry = getEntry(key);
+        if (entry == null) {
             return null;
         }
-        doBeforeModifyAction();
-        var entry = entryWithParent.get(0);
-        var parent = entryWithParent.size() > 1
-                ? entryWithParent.get(1)
-                : null;
-        var left = entry.getLeft(currentVersion - 1);
-        var right = entry.getRight(currentVersion - 1);
-        final ModificationBoxNode<Map.Entry<K, V>, Long> newRoot;
-        if (left == null && right == null) {
-            newRoot = removeLeaf(parent, entry);
-        } else if (left == null) {
-            newRoot = removeByReplace(parent, entry, entry.getRight(currentVersion - 1));
-        } else if (right == null) {
-            newRoot = removeByReplace(parent, entry, entry.getLeft(currentVersion - 1));
-        } else {
-            newRoot = removeFullNode(parent, entry);
-        }
-        roots.put(currentVersion, newRoot);
-        return entry.getValue(currentVersion - 1).getValue();
-    }
-
-    private ModificationBoxNode<Entry<K, V>, Long> removeLeaf(
-            ModificationBoxNode<Entry<K, V>, Long> parent,
-            ModificationBoxNode<Entry<K, V>, Long> entry) {
-        // leaf is root case
-        if (parent == null) {
-            return null; // null is new root -- no root
-        }
-        @SuppressWarnings("unchecked")
-        Comparable<? super K> ek = (Comparable<? super K>) entry.getValue(currentVersion - 1).getKey();
-        @SuppressWarnings("unchecked")
-        Comparable<? super K> pk = (Comparable<? super K>) parent.getValue(currentVersion - 1).getKey();
-        var isLeft = ek.compareTo(parent.getValue(currentVersion - 1).getKey()) < 0;
-        return modifyInSubtree(
-                currentVersion,
-                roots.get(currentVersion - 1),
-                pk::compareTo,
-                isLeft
-                        ? ModificationBox.createLeftModification(currentVersion, null)
-                        : ModificationBox.createRightModification(currentVersion, null)
-        );
-    }
-
-    private ModificationBoxNode<Entry<K, V>, Long> removeByReplace(
-            ModificationBoxNode<Entry<K, V>, Long> parent,
-            ModificationBoxNode<Entry<K, V>, Long> entry,
-            ModificationBoxNode<Entry<K, V>, Long> newEntry) {
-        // entry is root case
-        if (parent == null) {
-            return newEntry; // newEntry is new root
-        }
         @SuppressWarnings("unchecked")
-        Comparable<? super K> ek = (Comparable<? super K>) entry.getValue(currentVersion - 1).getKey();
-        @SuppressWarnings("unchecked")
-        Comparable<? super K> pk = (Comparable<? super K>) parent.getValue(currentVersion - 1).getKey();
-        var isLeft = ek.compareTo(parent.getValue(currentVersion - 1).getKey()) < 0;
-        return modifyInSubtree(
-                currentVersion,
-                roots.get(currentVersion - 1),
-                pk::compareTo,
-                isLeft
-                        ? ModificationBox.createLeftModification(currentVersion, newEntry)
-                        : ModificationBox.createRightModification(currentVersion, newEntry)
-        );
-    }
-
-    private ModificationBoxNode<Entry<K, V>, Long> removeFullNode(
-            ModificationBoxNode<Entry<K, V>, Long> parent,
-            ModificationBoxNode<Entry<K, V>, Long> toRemove) {
-        var entry = toRemove.getLeft(currentVersion);
-        ModificationBoxNode<Map.Entry<K, V>, Long> valueToCopyParent = null;
-        Map.Entry<K, V> valueToCopy = entry.getValue(currentVersion);
-        while (entry != null) {
-            if (entry.getRight(currentVersion) != null) {
-                valueToCopyParent = entry;
-            }
-            valueToCopy = entry.getValue(currentVersion);
-            entry = entry.getRight(currentVersion);
-        }
-        final ModificationBoxNode<Entry<K, V>, Long> leftSubtree;
-        if (valueToCopyParent == null) {
-            leftSubtree = null;
-        } else {
-            @SuppressWarnings("unchecked")
-            Comparable<? super K> pk = (Comparable<? super K>) valueToCopyParent.getValue(currentVersion - 1).getKey();
-            leftSubtree = modifyInSubtree(
-                    currentVersion,
-                    toRemove.getLeft(currentVersion),
-                    pk::compareTo,
-                    ModificationBox.createRightModification(currentVersion, null)
-            );
-        }
-        var replaceNode = new ModificationBoxNode<>(
-                leftSubtree,
-                toRemove.getRight(currentVersion),
-                valueToCopy
-        );
-        return removeByReplace(
-                parent,
-                toRemove,
-                replaceNode
-        );
+        Comparable<? super K> k = (Comparable<? super K>) key;
+        var previousValue = entry.getValue(currentVersion).getValue();
+        doBeforeModifyAction();
+        var root = getCurrentRoot();
+        var size = size();
+        versions.set(currentVersion.getId(), delete(root, k), size - 1);
+        return previousValue;
     }
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
-        for (final var entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
-        }
+        applyBatch(map -> {
+            for (final var entry : m.entrySet()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+        });
     }
 
     @Override
     public void clear() {
         doBeforeModifyAction();
-        roots.put(currentVersion, null);
+        versions.set(currentVersion.getId(), null, 0);
     }
 
     @Override
     public Set<K> keySet() {
-        return entrySet().stream()
-                .map(Entry::getKey)
-                .collect(Collectors.toSet());
+        return navigableKeySet();
     }
 
     @Override
     public Collection<V> values() {
-        return entrySet().stream()
-                .map(Entry::getValue)
-                .collect(Collectors.toSet());
+        if (memoized != null) {
+            var memo = getMemoized();
+            if (memo.values == null) {
+                memo.values = valuesOf(memo.entrySet);
+            }
+            return memo.values;
+        }
+        return valuesOf(entrySet());
     }
 
     @Override
     public Set<Entry<K, V>> entrySet() {
-        if (useMemoize && memoizedEntrySet != null) {
-            return memoizedEntrySet;
-        }
-        var result = getRootEntrySet(getCurrentRoot(), new HashSet<>());
-        if (useMemoize) {
-            memoizedEntrySet = result;
+        if (memoized != null) {
+            return getMemoized().entrySet;
         }
-        return result;
+        return entrySet(currentVersion);
     }
 
-    private ModificationBoxNode<Entry<K, V>, Long> modifyInSubtree(
-            Long version,
-            ModificationBoxNode<Entry<K, V>, Long> subRoot,
-            Function<K, Integer> moveFunction,
-            ModificationBox<Entry<K, V>, Long> modification) {
-        if (subRoot == null) {
-            return null;
-        }
-        // Search
-        var entry = subRoot;
-        ArrayList<ModificationBoxNode<Entry<K, V>, Long>> path = new ArrayList<>();
-        while (entry != null) {
-            path.add(entry);
-            var move = moveFunction.apply(entry.getValue(version).getKey());
-            if (move == 0) {
-                break;
-            } else if (move > 0) {
-                entry = entry.getRight(version);
-            } else {
-                entry = entry.getLeft(version);
+    @Override
+    public int hashCode() {
+        if (memoized != null) {
+            var memo = getMemoized();
+            if (!memo.hashCodeComputed) {
+                memo.hashCode = hashCodeOf(memo.entrySet);
+                memo.hashCodeComputed = true;
             }
+            return memo.hashCode;
         }
-        // Copy until reach unmodified
-        var reversePath = path.reversed();
-        var pathIterator = reversePath.iterator();
-        // Node searched for modify
-        var target = pathIterator.next();
-        var lastCopy = target.modify(modification);
-        if (lastCopy == target) {
-            return null;
+        Iterable<Entry<K, V>> entries = () -> entryIterator(null, true, null, false);
+        return hashCodeOf(entries);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
         }
-        while (pathIterator.hasNext()) {
-            var copyCandidate = pathIterator.next();
-            lastCopy = copyCandidate.modify(
-                    moveFunction.apply(copyCandidate.getValue(version).getKey()) > 0
-                            ? ModificationBox.createRightModification(version, lastCopy)
-                            : ModificationBox.createLeftModification(version, lastCopy)
-            );
-            if (lastCopy == copyCandidate) {
-                return null;
-            }
-        }
-        return lastCopy;
-    }
-
-    private ModificationBoxNode<Entry<K, V>, Long> upperLink(
-            Long version,
-            List<ModificationBoxNode<Entry<K, V>, Long>> path,
-            List<Boolean> isLeftMove,
-            ModificationBoxNode<Entry<K, V>, Long> newNode) {
-        ModificationBoxNode<Entry<K, V>, Long> lastCreated = newNode;
-        for (int i = path.size() - 1; i >= 0; --i) {
-            var isLeft = isLeftMove.get(i);
-            var current = path.get(i);
-            var modification = current.getModificationBox();
-            if (modification == null) {
-                current.modify(
-                        isLeft
-                                ? ModificationBox.createLeftModification(version, lastCreated)
-                                : ModificationBox.createRightModification(version, lastCreated)
-                );
-                return null;
-            } else {
-                var rawNewNode = new ModificationBoxNode<>(
-                        current.getLeft(version),
-                        current.getRight(version),
-                        current.getValue(version)
-                ).modify(
-                        isLeft
-                                ? ModificationBox.createLeftModification(version, lastCreated)
-                                : ModificationBox.createRightModification(version, lastCreated)
-                );
-                lastCreated = new ModificationBoxNode<>(
-                        rawNewNode.getLeft(version),
-                        rawNewNode.getRight(version),
-                        rawNewNode.getValue(version)
-                );
-            }
-        }
-        return lastCreated;
-    }
-
-    private Set<Entry<K, V>> getRootEntrySet(
-            ModificationBoxNode<Map.Entry<K, V>, Long> root,
-            Set<Entry<K, V>> internalEntrySet) {
-        if (root == null) {
-            return internalEntrySet;
-        }
-        getRootEntrySet(root.getLeft(currentVersion), internalEntrySet);
-        getRootEntrySet(root.getRight(currentVersion), internalEntrySet);
-        internalEntrySet.add(root.getValue(currentVersion));
-        return internalEntrySet;
-    }
-
-    private ModificationBoxNode<Map.Entry<K, V>, Long> getEntry(Object key) {
-        var entryWithParent = getEntryWithParent(key);
-        if (entryWithParent == null || entryWithParent.isEmpty()) {
-            return null;
+        if (!(o instanceof Map<?, ?> other) || other.size() != size()) {
+            return false;
+        }
+        try {
+            for (var entry : other.entrySet()) {
+                var node = getEntry(entry.getKey());
+                if (node == null || !Objects.equals(node.getValue(currentVersion).getValue(), entry.getValue())) {
+                    return false;
+                }
+            }
+        } catch (ClassCastException | NullPointerException e) {
+            // ключ другого массива несравним с ключами этого массива
+            return false;
         }
-        return entryWithParent.get(0);
+        return true;
     }
 
-    private List<ModificationBoxNode<Map.Entry<K, V>, Long>> getEntryWithParent(Object key) {
-        Objects.requireNonNull(key);
-        @SuppressWarnings("unchecked")
-        Comparable<? super K> k = (Comparable<? super K>) key;
-        var entry = getCurrentRoot();
-        ModificationBoxNode<Map.Entry<K, V>, Long> previous = null;
-        while (entry != null) {
-            var internalEntry = entry.getValue(currentVersion);
-            if (internalEntry == null) {
-                return null;
+    /**
+     * Возвращает количество обращений к мемоизированным значениям, нашедших версию в кэше.
+     *
+     * @return Количество попаданий или 0, если мемоизация не используется.
+     */
+    public long getMemoizedHits() {
+        return memoized == null ? 0 : memoized.getHits();
+    }
+
+    /**
+     * Возвращает количество обращений к мемоизированным значениям, не нашедших версию в кэше.
+     *
+     * @return Количество промахов или 0, если мемоизация не используется.
+     */
+    public long getMemoizedMisses() {
+        return memoized == null ? 0 : memoized.getMisses();
+    }
+
+    /**
+     * Возвращает текущую версию структуры.
+     *
+     * @return Текущая версия.
+     */
+    public long getCurrentVersion() {
+        return currentVersion.getId();
+    }
+
+    /**
+     * Возвращает наибольший номер версии структуры.
+     *
+     * @return Номер последней созданной версии.
+     */
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * Возвращает количество элементов в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Количество элементов в версии.
+     */
+    public int size(long version) {
+        checkVersion(version);
+        return versions.getSize(version);
+    }
+
+    /**
+     * Проверяет наличие ключа в запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param key     Ключ.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return true, если ключ есть в версии.
+     */
+    public boolean containsKey(Object key, long version) {
+        return getEntry(key, checkVersion(version)) != null;
+    }
+
+    /**
+     * Возвращает значение по ключу в запрашиваемой версии за O(log n), не меняя текущую версию.
+     *
+     * @param key     Ключ.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Значение по ключу или null, если ключа нет в версии.
+     */
+    public V get(Object key, long version) {
+        return get(key, checkVersion(version));
+    }
+
+    private V get(Object key, Version version) {
+        var entry = getEntry(key, version);
+        return entry == null ? null : entry.getValue(version).getValue();
+    }
+
+    /**
+     * Возвращает неизменяемый набор пар ключ - значение запрашиваемой версии, не меняя текущую версию.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Пары ключ - значение в порядке возрастания ключей.
+     */
+    public Set<Entry<K, V>> entrySet(long version) {
+        return entrySet(checkVersion(version));
+    }
+
+    /**
+     * Возвращает количество ключей, меньших указанного, за O(log n).
+     *
+     * @param key Ключ.
+     * @return Номер ключа в порядке возрастания, если ключ есть в массиве.
+     */
+    public int rank(K key) {
+        return rank(key, false, currentVersion);
+    }
+
+    /**
+     * Возвращает количество ключей запрашиваемой версии, меньших указанного, за O(log n).
+     *
+     * @param key     Ключ.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Номер ключа в порядке возрастания, если ключ есть в версии.
+     */
+    public int rank(K key, long version) {
+        return rank(key, false, checkVersion(version));
+    }
+
+    /**
+     * Возвращает пару с index-м по возрастанию ключом за O(log n).
+     *
+     * @param index Номер пары от 0 до size() - 1.
+     * @return Пара ключ - значение.
+     * @throws IndexOutOfBoundsException Если номер вне границ.
+     */
+    public Entry<K, V> select(int index) {
+        return select(index, currentVersion);
+    }
+
+    /**
+     * Возвращает пару запрашиваемой версии с index-м по возрастанию ключом за O(log n).
+     *
+     * @param index   Номер пары от 0 до size(version) - 1.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Пара ключ - значение.
+     * @throws IndexOutOfBoundsException Если номер вне границ.
+     */
+    public Entry<K, V> select(int index, long version) {
+        return select(index, checkVersion(version));
+    }
+
+    /**
+     * Возвращает количество ключей из полуинтервала [fromKey, toKey) за O(log n).
+     *
+     * @param fromKey Нижняя граница, включительно.
+     * @param toKey   Верхняя граница, не включительно.
+     * @return Количество ключей.
+     */
+    public int countRange(K fromKey, K toKey) {
+        return countRange(fromKey, toKey, currentVersion);
+    }
+
+    /**
+     * Возвращает количество ключей запрашиваемой версии из полуинтервала [fromKey, toKey) за O(log n).
+     *
+     * @param fromKey Нижняя граница, включительно.
+     * @param toKey   Верхняя граница, не включительно.
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Количество ключей.
+     */
+    public int countRange(K fromKey, K toKey, long version) {
+        return countRange(fromKey, toKey, checkVersion(version));
+    }
+
+    /**
+     * Возвращает ленивый поток отличий версии toVersion от версии fromVersion в порядке возрастания
+     * ключей, не меняя текущую версию. Обход пропускает поддерево, общее для обеих версий, если
+     * в нем нет узлов, модифицированных в версиях на пути между ними в дереве версий, поэтому
+     * стоимость зависит от количества изменений между версиями, а не от размера массива.
+     *
+     * @param fromVersion Исходная версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @param toVersion   Целевая версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     * @return Добавленные, удаленные и измененные пары ключ - значение.
+     */
+    public Stream<Change<K, V>> diff(long fromVersion, long toVersion) {
+        var from = checkVersion(fromVersion);
+        var to = checkVersion(toVersion);
+        var iterator = new DiffIterator(from, to, modifiedKeys(from, to));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Сливает изменения двух версий относительно общей версии и делает результат текущей версией.
+     * Результат - дочерняя версия нашей версии, в которую перенесены отличия их версии от общей:
+     * поддеревья нашей версии используются без копирования, а отличия находятся с помощью
+     * {@link #diff(long, long)}, поэтому стоимость зависит от количества изменений, а не от размера
+     * массива. Ключ, измененный в обеих версиях по-разному, передается разрешению конфликтов.
+     *
+     * @param base     Общая версия.
+     * @param ours     Наша версия.
+     * @param theirs   Их версия.
+     * @param resolver Разрешение конфликтов.
+     * @return Версия результата слияния или наша версия, если переносить нечего.
+     */
+    public long merge(long base, long ours, long theirs, ConflictResolver<? super K, V> resolver) {
+        checkNotInBatch();
+        Objects.requireNonNull(resolver);
+        var oursVersion = checkVersion(ours);
+        // изменения собираются до создания новой версии: уплотнение может отбросить исходные версии
+        List<Entry<K, V>> merged = new ArrayList<>();
+        diff(base, theirs).forEach(change -> {
+            var oursValue = get(change.key(), oursVersion);
+            if (Objects.equals(oursValue, change.newValue())) {
+                return;
             }
-            var entryKey = internalEntry.getKey();
-            var compareResult = k.compareTo(entryKey);
-            if (compareResult == 0) {
-                return previous == null
-                        ? Collections.singletonList(entry)
-                        : List.of(entry, previous);
+            var value = Objects.equals(oursValue, change.oldValue())
+                    ? change.newValue()
+                    : resolver.resolve(change.key(), change.oldValue(), oursValue, change.newValue());
+            if (!Objects.equals(oursValue, value)) {
+                merged.add(new AbstractMap.SimpleEntry<>(change.key(), value));
             }
-            previous = entry;
-            if (compareResult > 0) {
-                entry = entry.getRight(currentVersion);
-            } else {
-                entry = entry.getLeft(currentVersion);
+        });
+        checkout(ours);
+        applyBatch(map -> {
+            for (var entry : merged) {
+                if (entry.getValue() == null) {
+                    map.remove(entry.getKey());
+                } else {
+                    map.put(entry.getKey(), entry.getValue());
+                }
             }
+        });
+        return currentVersion.getId();
+    }
+
+    /**
+     * Возвращает неизменяемый снимок текущей версии. Снимок не меняется при дальнейших изменениях,
+     * отменах и отбрасывании истории, не обращается к таблицам версий и может читаться из разных
+     * потоков без блокировок одновременно с изменениями в потоке-писателе.
+     *
+     * @return Неизменяемое представление текущей версии.
+     */
+    public Map<K, V> snapshot() {
+        if (inBatch) {
+            throw new IllegalStateException("Snapshot is not allowed inside a batch");
         }
-        return null;
+        var snapshot = new Snapshot(getCurrentRoot(), currentVersion, size());
+        retention.registerSnapshot(snapshot, currentVersion.getId());
+        return snapshot;
+    }
+
+    /**
+     * Возвращает самую раннюю сохраненную версию структуры.
+     *
+     * @return Самая ранняя версия, в которую можно перейти с помощью undo.
+     */
+    public long getFirstVersion() {
+        return versions.getFirstVersion();
     }
 
-    private ModificationBoxNode<Map.Entry<K, V>, Long> getCurrentRoot() {
-        return roots.get(currentVersion);
+    /**
+     * Задает политику хранения истории. С политикой история уплотняется при каждом изменении,
+     * поэтому память ограничена сохраняемыми версиями.
+     *
+     * @param policy Политика хранения или null, чтобы хранить всю историю.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        retention.setPolicy(policy);
+        if (policy != null && !inBatch) {
+            compact();
+        }
     }
 
-    private void doBeforeModifyAction() {
-        deleteMemoized();
-        currentVersion++;
-        if (currentVersion != 1 && lastVersion >= currentVersion) {
-            roots.get(currentVersion - 1).cleanFromVersion(currentVersion);
+    /**
+     * Закрепляет версию: она и все последующие версии не отбрасываются до вызова {@link #unpin(long)}.
+     *
+     * @param version Версия от {@link #getFirstVersion()} до {@link #getLastVersion()}.
+     */
+    public void pin(long version) {
+        checkVersion(version);
+        retention.pin(version);
+    }
+
+    /**
+     * Снимает одно закрепление версии.
+     *
+     * @param version Версия.
+     */
+    public void unpin(long version) {
+        retention.unpin(version);
+    }
+
+    /**
+     * Отбрасывает версии, которые не сохраняются политикой хранения, закреплениями, снимками
+     * и текущей версией. Модификации отброшенных версий переносятся в поля узлов, поэтому узлы
+     * больше не удерживают поддеревья этих версий, а корни отброшенных версий освобождаются.
+     */
+    public void compact() {
+        if (inBatch) {
+            throw new IllegalStateException("Compaction is not allowed inside a batch");
         }
-        lastVersion = currentVersion;
-        roots.remove(currentVersion);
+        compactVersions();
     }
 
-    private void deleteMemoized() {
-        if (useMemoize) {
-            memoizedEntrySet = null;
+    private void compactVersions() {
+        var firstVersion = retention.oldestRetainedVersion(
+                versions.getFirstVersion(), currentVersion.getId(), lastVersion, versions::getCreatedAt);
+        if (firstVersion > versions.getFirstVersion()) {
+            versions.discardBefore(firstVersion);
+            if (memoized != null) {
+                memoized.discardBefore(firstVersion);
+            }
+            // модификации переносятся в узлы, только если их видят все сохраняемые версии
+            modifications.fold(versions.getCommonAncestor());
         }
     }
 
+    /**
+     * Возвращает количество записей журнала модификаций, еще не перенесенных в узлы.
+     *
+     * @return Количество записей журнала.
+     */
+    int getModificationLogSize() {
+        return modifications.size();
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return null;
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return getFloorEntry(key, false);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return getFloorEntry(key, true);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return getCeilingEntry(key, true);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return getCeilingEntry(key, false);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return getEdgeEntry(false);
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return getEdgeEntry(true);
+    }
+
+    @Override
+    public K firstKey() {
+        return key(firstEntry());
+    }
+
+    @Override
+    public K lastKey() {
+        return key(lastEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        var entry = firstEntry();
+        if (entry != null) {
+            remove(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        var entry = lastEntry();
+        if (entry != null) {
+            remove(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return new NavigableSubMap<>(this, true, null, true, true, null, true, true);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new NavigableKeySet<>(this);
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return new NavigableSubMap<>(this, false, fromKey, fromInclusive, false, toKey, toInclusive, false);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        Objects.requireNonNull(toKey);
+        return new NavigableSubMap<>(this, true, null, true, false, toKey, inclusive, false);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        Objects.requireNonNull(fromKey);
+        return new NavigableSubMap<>(this, false, fromKey, inclusive, true, null, true, false);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    /**
+     * Возвращает итератор по парам ключ - значение в порядке ключей. Итератор зафиксирован на текущей
+     * версии и обходит узлы дерева без рекурсии.
+     *
+     * @param from          Ключ, с которого начинается обход (null - с крайнего элемента).
+     * @param fromInclusive Включается ли ключ from в обход.
+     * @param fence         Условие, при выполнении которого для ключа обход прекращается (может быть null).
+     * @param descending    Обход в порядке убывания ключей.
+     * @return Итератор по парам ключ - значение.
+     */
+    Iterator<Entry<K, V>> entryIterator(
+            K from,
+            boolean fromInclusive,
+            Predicate<? super K> fence,
+            boolean descending) {
+        return new EntryIterator(getCurrentRoot(), currentVersion, from, fromInclusive, fence, descending);
+    }
+
+    /**
+     * Сравнивает ключи в их естественном порядке.
+     */
+    @SuppressWarnings("unchecked")
+    static int compare(Object first, Object second) {
+        return ((Comparable<Object>) Objects.requireNonNull(first)).compareTo(Objects.requireNonNull(second));
+    }
+
+    static <K> K keyOrNull(Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    static <K> K key(Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    private TreeEntry<K, V> getCeilingEntry(Object key, boolean inclusive) {
+        TreeEntry<K, V> result = null;
+        var node = getCurrentRoot();
+        while (node != null) {
+            var entry = node.getValue(currentVersion);
+            var compareResult = compare(key, entry.getKey());
+            if (compareResult < 0 || (compareResult == 0 && inclusive)) {
+                result = entry;
+                if (compareResult == 0) {
+                    break;
+                }
+                node = node.getLeft(currentVersion);
+            } else {
+                node = node.getRight(currentVersion);
+            }
+        }
+        return result;
+    }
+
+    private TreeEntry<K, V> getFloorEntry(Object key, boolean inclusive) {
+        TreeEntry<K, V> result = null;
+        var node = getCurrentRoot();
+        while (node != null) {
+            var entry = node.getValue(currentVersion);
+            var compareResult = compare(key, entry.getKey());
+            if (compareResult > 0 || (compareResult == 0 && inclusive)) {
+                result = entry;
+                if (compareResult == 0) {
+                    break;
+                }
+                node = node.getRight(currentVersion);
+            } else {
+                node = node.getLeft(currentVersion);
+            }
+        }
+        return result;
+    }
+
+    private TreeEntry<K, V> getEdgeEntry(boolean last) {
+        var node = getCurrentRoot();
+        if (node == null) {
+            return null;
+        }
+        var next = last ? node.getRight(currentVersion) : node.getLeft(currentVersion);
+        while (next != null) {
+            node = next;
+            next = last ? node.getRight(currentVersion) : node.getLeft(currentVersion);
+        }
+        return node.getValue(currentVersion);
+    }
+
+    /**
+     * Вставляет пару ключ - значение в поддерево и балансирует его в текущей версии.
+     *
+     * @return Корень поддерева после вставки.
+     */
+    private ModificationBoxNode<TreeEntry<K, V>, Version> insert(
+            ModificationBoxNode<TreeEntry<K, V>, Version> node,
+            Comparable<? super K> k,
+            K key,
+            V value) {
+        if (node == null) {
+            return new ModificationBoxNode<>(null, null, new TreeEntry<>(key, value, 1, 1));
+        }
+        var entry = node.getValue(currentVersion);
+        var left = node.getLeft(currentVersion);
+        var right = node.getRight(currentVersion);
+        var compareResult = k.compareTo(entry.getKey());
+        if (compareResult == 0) {
+            return update(node, left, right, new TreeEntry<>(key, value, entry.height, entry.size));
+        } else if (compareResult < 0) {
+            return balance(node, entry, insert(left, k, key, value), right);
+        } else {
+            return balance(node, entry, left, insert(right, k, key, value));
+        }
+    }
+
+    /**
+     * Удаляет ключ из поддерева и балансирует его в текущей версии.
+     *
+     * @return Корень поддерева после удаления.
+     */
+    private ModificationBoxNode<TreeEntry<K, V>, Version> delete(
+            ModificationBoxNode<TreeEntry<K, V>, Version> node,
+            Comparable<? super K> k) {
+        if (node == null) {
+            return null;
+        }
+        var entry = node.getValue(currentVersion);
+        var left = node.getLeft(currentVersion);
+        var right = node.getRight(currentVersion);
+        var compareResult = k.compareTo(entry.getKey());
+        if (compareResult < 0) {
+            return balance(node, entry, delete(left, k), right);
+        } else if (compareResult > 0) {
+            return balance(node, entry, left, delete(right, k));
+        } else if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        }
+        var successor = right;
+        while (successor.getLeft(currentVersion) != null) {
+            successor = successor.getLeft(currentVersion);
+        }
+        return balance(node, successor.getValue(currentVersion), left, deleteMin(right));
+    }
+
+    private ModificationBoxNode<TreeEntry<K, V>, Version> deleteMin(ModificationBoxNode<TreeEntry<K, V>, Version> node) {
+        var left = node.getLeft(currentVersion);
+        if (left == null) {
+            return node.getRight(currentVersion);
+        }
+        return balance(node, node.getValue(currentVersion), deleteMin(left), node.getRight(currentVersion));
+    }
+
+    /**
+     * Связывает узел с новыми потомками и восстанавливает AVL-инвариант поворотами.
+     * Повороты выражаются через модификации узлов, поэтому старые версии остаются доступными.
+     *
+     * @param node  Узел, становящийся корнем поддерева.
+     * @param entry Пара ключ - значение узла.
+     * @param left  Новое левое поддерево.
+     * @param right Новое правое поддерево.
+     * @return Корень сбалансированного поддерева.
+     */
+    private ModificationBoxNode<TreeEntry<K, V>, Version> balance(
+            ModificationBoxNode<TreeEntry<K, V>, Version> node,
+            TreeEntry<K, V> entry,
+            ModificationBoxNode<TreeEntry<K, V>, Version> left,
+            ModificationBoxNode<TreeEntry<K, V>, Version> right) {
+        var leftHeight = height(left);
+        var rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            var leftEntry = left.getValue(currentVersion);
+            var leftLeft = left.getLeft(currentVersion);
+            var leftRight = left.getRight(currentVersion);
+            if (height(leftLeft) >= height(leftRight)) {
+                return link(left, leftEntry, leftLeft, link(node, entry, leftRight, right));
+            }
+            var pivotEntry = leftRight.getValue(currentVersion);
+            var pivotLeft = leftRight.getLeft(currentVersion);
+            var pivotRight = leftRight.getRight(currentVersion);
+            return link(
+                    leftRight,
+                    pivotEntry,
+                    link(left, leftEntry, leftLeft, pivotLeft),
+                    link(node, entry, pivotRight, right)
+            );
+        } else if (rightHeight > leftHeight + 1) {
+            var rightEntry = right.getValue(currentVersion);
+            var rightLeft = right.getLeft(currentVersion);
+            var rightRight = right.getRight(currentVersion);
+            if (height(rightRight) >= height(rightLeft)) {
+                return link(right, rightEntry, link(node, entry, left, rightLeft), rightRight);
+            }
+            var pivotEntry = rightLeft.getValue(currentVersion);
+            var pivotLeft = rightLeft.getLeft(currentVersion);
+            var pivotRight = rightLeft.getRight(currentVersion);
+            return link(
+                    rightLeft,
+                    pivotEntry,
+                    link(node, entry, left, pivotLeft),
+                    link(right, rightEntry, pivotRight, rightRight)
+            );
+        }
+        return link(node, entry, left, right);
+    }
+
+    private ModificationBoxNode<TreeEntry<K, V>, Version> link(
+            ModificationBoxNode<TreeEntry<K, V>, Version> node,
+            TreeEntry<K, V> entry,
+            ModificationBoxNode<TreeEntry<K, V>, Version> left,
+            ModificationBoxNode<TreeEntry<K, V>, Version> right) {
+        var height = Math.max(height(left), height(right)) + 1;
+        var size = subtreeSize(left, currentVersion) + subtreeSize(right, currentVersion) + 1;
+        var newEntry = entry.height == height && entry.size == size
+                ? entry
+                : new TreeEntry<>(entry.getKey(), entry.getValue(), height, size);
+        return update(node, left, right, newEntry);
+    }
+
+    /**
+     * Приводит узел к требуемому состоянию в текущей версии. Изменение одного потомка вместе со
+     * значением или одно изменение записывается в модификацию узла, при изменении обоих потомков
+     * создается новый узел.
+     *
+     * @return Узел в требуемом состоянии.
+     */
+    private ModificationBoxNode<TreeEntry<K, V>, Version> update(
+            ModificationBoxNode<TreeEntry<K, V>, Version> node,
+            ModificationBoxNode<TreeEntry<K, V>, Version> left,
+            ModificationBoxNode<TreeEntry<K, V>, Version> right,
+            TreeEntry<K, V> entry) {
+        var leftChanged = node.getLeft(currentVersion) != left;
+        var rightChanged = node.getRight(currentVersion) != right;
+        var valueChanged = node.getValue(currentVersion) != entry;
+        if (leftChanged && rightChanged) {
+            return new ModificationBoxNode<>(left, right, entry);
+        } else if (leftChanged) {
+            return modifications.modify(node, valueChanged
+                    ? ModificationBox.createLeftModification(currentVersion, left, entry)
+                    : ModificationBox.createLeftModification(currentVersion, left));
+        } else if (rightChanged) {
+            return modifications.modify(node, valueChanged
+                    ? ModificationBox.createRightModification(currentVersion, right, entry)
+                    : ModificationBox.createRightModification(currentVersion, right));
+        } else if (!valueChanged) {
+            return node;
+        } else {
+            return modifications.modify(node, ModificationBox.createValueModification(currentVersion, entry));
+        }
+    }
+
+    private int height(ModificationBoxNode<TreeEntry<K, V>, Version> node) {
+        return node == null ? 0 : node.getValue(currentVersion).height;
+    }
+
+    private int subtreeSize(ModificationBoxNode<TreeEntry<K, V>, Version> node, Version version) {
+        return node == null ? 0 : node.getValue(version).size;
+    }
+
+    /**
+     * Возвращает количество ключей версии, меньших указанного (или не больших при inclusive), спускаясь
+     * от корня и суммируя размеры левых поддеревьев.
+     */
+    private int rank(Object key, boolean inclusive, Version version) {
+        var rank = 0;
+        var node = versions.getRoot(version.getId());
+        while (node != null) {
+            var entry = node.getValue(version);
+            var compareResult = compare(key, entry.getKey());
+            if (compareResult < 0 || (compareResult == 0 && !inclusive)) {
+                node = node.getLeft(version);
+            } else {
+                rank += subtreeSize(node.getLeft(version), version) + 1;
+                node = node.getRight(version);
+            }
+        }
+        return rank;
+    }
+
+    private Entry<K, V> select(int index, Version version) {
+        if (index < 0 || index >= versions.getSize(version.getId())) {
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+        }
+        var rest = index;
+        var node = versions.getRoot(version.getId());
+        while (true) {
+            var leftSize = subtreeSize(node.getLeft(version), version);
+            if (rest < leftSize) {
+                node = node.getLeft(version);
+            } else if (rest > leftSize) {
+                rest -= leftSize + 1;
+                node = node.getRight(version);
+            } else {
+                return node.getValue(version);
+            }
+        }
+    }
+
+    private int countRange(K fromKey, K toKey, Version version) {
+        if (compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return rank(toKey, false, version) - rank(fromKey, false, version);
+    }
+
+    private ModificationBoxNode<TreeEntry<K, V>, Version> getEntry(Object key) {
+        return getEntry(key, currentVersion);
+    }
+
+    private ModificationBoxNode<TreeEntry<K, V>, Version> getEntry(Object key, Version version) {
+        return find(versions.getRoot(version.getId()), key, version);
+    }
+
+    private static <K, V> ModificationBoxNode<TreeEntry<K, V>, Version> find(
+            ModificationBoxNode<TreeEntry<K, V>, Version> root,
+            Object key,
+            Version version) {
+        Objects.requireNonNull(key);
+        @SuppressWarnings("unchecked")
+        Comparable<? super K> k = (Comparable<? super K>) key;
+        var entry = root;
+        while (entry != null) {
+            var compareResult = k.compareTo(entry.getValue(version).getKey());
+            if (compareResult == 0) {
+                return entry;
+            }
+            entry = compareResult > 0
+                    ? entry.getRight(version)
+                    : entry.getLeft(version);
+        }
+        return null;
+    }
+
+    /**
+     * Возвращает ключи узлов, модификации которых видны только одной из версий: модификации
+     * записаны в версиях на пути между версиями в дереве версий. Удаление переносит в узел пару
+     * преемника, поэтому ключ узла читается в обеих версиях: обход каждой версии проверяет
+     * интервал поддерева по ключам своей версии. Возвращает null, если путь проходит через
+     * отброшенную версию.
+     */
+    private NavigableSet<K> modifiedKeys(Version from, Version to) {
+        var ancestor = Version.commonAncestor(from, to);
+        NavigableSet<K> keys = new TreeSet<>(PersistentMap::compare);
+        for (var version : List.of(from, to)) {
+            var node = version;
+            while (node != ancestor) {
+                if (node == null) {
+                    return null;
+                }
+                modifications.forEachModifiedIn(node.getId(), Version::getId, modified -> {
+                    keys.add(modified.getValue(from).getKey());
+                    keys.add(modified.getValue(to).getKey());
+                });
+                node = versions.getVersion(node.getParentId());
+            }
+        }
+        return keys;
+    }
+
+    private Version checkVersion(long version) {
+        var node = version <= lastVersion ? versions.getVersion(version) : null;
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown version: " + version);
+        }
+        return node;
+    }
+
+    private ModificationBoxNode<TreeEntry<K, V>, Version> getCurrentRoot() {
+        return versions.getRoot(currentVersion.getId());
+    }
+
+    /**
+     * Выполняет изменения пакетом в одной версии: все изменения внутри пакета создают одну версию
+     * и отменяются одним undo. Узлы, измененные внутри пакета, обновляются на месте. Вложенный пакет
+     * становится частью внешнего. Если пакет прерван исключением, выполненные изменения остаются
+     * в версии пакета.
+     *
+     * @param batch Изменения.
+     */
+    public void applyBatch(Consumer<? super PersistentMap<K, V>> batch) {
+        if (inBatch) {
+            batch.accept(this);
+            return;
+        }
+        inBatch = true;
+        batchVersionCreated = false;
+        try {
+            batch.accept(this);
+        } finally {
+            inBatch = false;
+        }
+    }
+
+    private void checkNotInBatch() {
+        if (inBatch) {
+            throw new IllegalStateException("Undo and redo are not allowed inside a batch");
+        }
+    }
+
+    private void doBeforeModifyAction() {
+        if (inBatch && batchVersionCreated) {
+            // версия пакета изменяется на месте, поэтому ее мемоизированные значения устаревают
+            if (memoized != null) {
+                memoized.remove(currentVersion.getId());
+            }
+            return;
+        }
+        batchVersionCreated = inBatch;
+        // изменение более ранней версии начинает новую ветку: модификации новой версии видны
+        // только ее потомкам, поэтому будущее исходной ветки сохраняется
+        lastVersion++;
+        currentVersion = versions.startVersion(currentVersion, lastVersion);
+        if (retention.hasPolicy()) {
+            compactVersions();
+        }
+    }
+
+    /**
+     * Возвращает мемоизированные значения текущей версии, вычисляя набор пар при промахе.
+     */
+    private Memoized<K, V> getMemoized() {
+        var version = currentVersion.getId();
+        var memo = memoized.get(version);
+        if (memo == null) {
+            memo = new Memoized<>(Collections.unmodifiableSet(new LinkedHashSet<>(entrySet(currentVersion))));
+            memoized.put(version, memo, MEMOIZED_BYTES_PER_ENTRY * memo.entrySet.size());
+        }
+        return memo;
+    }
+
+    /**
+     * Возвращает набор пар версии без копирования. Набор не удерживает версию от отбрасывания
+     * политикой хранения: версию, которая читается одновременно с изменениями, удерживает
+     * {@link #snapshot()} или {@link #pin(long)}.
+     */
+    private Set<Entry<K, V>> entrySet(Version version) {
+        return new VersionEntrySet(versions.getRoot(version.getId()), version, versions.getSize(version.getId()));
+    }
+
+    private static <V> List<V> valuesOf(Set<? extends Entry<?, V>> entries) {
+        return entries.stream()
+                .map(Entry::getValue)
+                .toList();
+    }
+
+    private static int hashCodeOf(Iterable<? extends Entry<?, ?>> entries) {
+        var hashCode = 0;
+        for (var entry : entries) {
+            hashCode += entry.hashCode();
+        }
+        return hashCode;
+    }
+
+    /**
+     * Неизменяемый снимок версии. Хранит корень и размер версии в final полях, поэтому безопасно
+     * публикуется, а узлы читаются только в зафиксированной версии.
+     */
+    private final class Snapshot extends AbstractMap<K, V> {
+
+        private final ModificationBoxNode<TreeEntry<K, V>, Version> root;
+
+        private final Version version;
+
+        private final int size;
+
+        private Snapshot(ModificationBoxNode<TreeEntry<K, V>, Version> root, Version version, int size) {
+            this.root = root;
+            this.version = version;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(root, key, version) != null;
+        }
+
+        @Override
+        public V get(Object key) {
+            var entry = find(root, key, version);
+            return entry == null ? null : entry.getValue(version).getValue();
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new VersionEntrySet(root, version, size);
+        }
+
+    }
+
+    /**
+     * Неизменяемый набор пар ключ - значение версии. Пары не копируются: итератор и сплитератор
+     * обходят дерево версии по мере чтения.
+     */
+    private final class VersionEntrySet extends AbstractSet<Entry<K, V>> {
+
+        private final ModificationBoxNode<TreeEntry<K, V>, Version> root;
+
+        private final Version version;
+
+        private final int size;
+
+        private VersionEntrySet(ModificationBoxNode<TreeEntry<K, V>, Version> root, Version version, int size) {
+            this.root = root;
+            this.version = version;
+            this.size = size;
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            var iterator = new EntryIterator(root, version, null, true, null, false);
+            return new Iterator<>() {
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Entry<K, V> next() {
+                    return iterator.next();
+                }
+            };
+        }
+
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return new EntrySpliterator(version, null, root);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry<?, ?> entry) || entry.getKey() == null) {
+                return false;
+            }
+            try {
+                var node = find(root, entry.getKey(), version);
+                return node != null && Objects.equals(node.getValue(version).getValue(), entry.getValue());
+            } catch (ClassCastException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+    /**
+     * Сплитератор по парам ключ - значение версии в порядке ключей. До начала обхода он описывает
+     * пару узла head и следующее за ней поддерево и делится по границам поддеревьев: отделяемая
+     * часть получает head и левое поддерево, а у этого сплитератора остаются корень и правое
+     * поддерево. Размеры поддеревьев хранятся в узлах, поэтому размер каждой части точный.
+     */
+    private final class EntrySpliterator implements Spliterator<Entry<K, V>> {
+
+        private final Version version;
+
+        /**
+         * Узел, пара которого идет первой, или null.
+         */
+        private ModificationBoxNode<TreeEntry<K, V>, Version> head;
+
+        /**
+         * Поддерево, пары которого идут после пары head.
+         */
+        private ModificationBoxNode<TreeEntry<K, V>, Version> subtree;
+
+        /**
+         * Узлы, ожидающие обхода, или null до начала обхода.
+         */
+        private Deque<ModificationBoxNode<TreeEntry<K, V>, Version>> stack;
+
+        /**
+         * Количество оставшихся пар.
+         */
+        private long remaining;
+
+        private EntrySpliterator(
+                Version version,
+                ModificationBoxNode<TreeEntry<K, V>, Version> head,
+                ModificationBoxNode<TreeEntry<K, V>, Version> subtree) {
+            this.version = version;
+            this.head = head;
+            this.subtree = subtree;
+            this.remaining = (head == null ? 0 : 1) + subtreeSize(subtree, version);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<K, V>> action) {
+            Objects.requireNonNull(action);
+            ModificationBoxNode<TreeEntry<K, V>, Version> node;
+            if (head != null) {
+                node = head;
+                head = null;
+                start();
+            } else {
+                start();
+                if (stack.isEmpty()) {
+                    return false;
+                }
+                node = stack.pop();
+                pushEdge(node.getRight(version));
+            }
+            remaining--;
+            action.accept(node.getValue(version));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Entry<K, V>> trySplit() {
+            while (stack == null && subtree != null) {
+                var left = subtree.getLeft(version);
+                var prefixHead = head;
+                head = subtree;
+                subtree = subtree.getRight(version);
+                if (prefixHead != null || left != null) {
+                    remaining = 1 + subtreeSize(subtree, version);
+                    return new EntrySpliterator(version, prefixHead, left);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED | IMMUTABLE;
+        }
+
+        private void start() {
+            if (stack == null) {
+                stack = new ArrayDeque<>();
+                pushEdge(subtree);
+                subtree = null;
+            }
+        }
+
+        private void pushEdge(ModificationBoxNode<TreeEntry<K, V>, Version> node) {
+            while (node != null) {
+                stack.push(node);
+                node = node.getLeft(version);
+            }
+        }
+
+    }
+
+    /**
+     * Итератор по парам ключ - значение в порядке ключей с явным стеком вместо рекурсии.
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+
+        /**
+         * Версия, на которой зафиксирован обход.
+         */
+        private final Version version;
+
+        private final Predicate<? super K> fence;
+
+        private final boolean descending;
+
+        /**
+         * Узлы, ожидающие обхода: вершина стека - следующий узел.
+         */
+        private final Deque<ModificationBoxNode<TreeEntry<K, V>, Version>> stack;
+
+        private TreeEntry<K, V> next;
+
+        private TreeEntry<K, V> lastReturned;
+
+        private EntryIterator(
+                ModificationBoxNode<TreeEntry<K, V>, Version> root,
+                Version version,
+                K from,
+                boolean fromInclusive,
+                Predicate<? super K> fence,
+                boolean descending) {
+            this.version = version;
+            this.fence = fence;
+            this.descending = descending;
+            this.stack = new ArrayDeque<>();
+            var node = root;
+            if (from == null) {
+                pushEdge(node);
+            } else {
+                while (node != null) {
+                    var compareResult = compare(from, node.getValue(version).getKey());
+                    var take = descending
+                            ? compareResult > 0 || (compareResult == 0 && fromInclusive)
+                            : compareResult < 0 || (compareResult == 0 && fromInclusive);
+                    if (take) {
+                        stack.push(node);
+                    }
+                    node = take != descending
+                            ? node.getLeft(version)
+                            : node.getRight(version);
+                }
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = next;
+            advance();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            PersistentMap.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+
+        private void advance() {
+            if (stack.isEmpty()) {
+                next = null;
+                return;
+            }
+            var node = stack.pop();
+            var entry = node.getValue(version);
+            if (fence != null && fence.test(entry.getKey())) {
+                next = null;
+                stack.clear();
+                return;
+            }
+            next = entry;
+            pushEdge(descending ? node.getLeft(version) : node.getRight(version));
+        }
+
+        private void pushEdge(ModificationBoxNode<TreeEntry<K, V>, Version> node) {
+            while (node != null) {
+                stack.push(node);
+                node = descending ? node.getRight(version) : node.getLeft(version);
+            }
+        }
+
+    }
+
+    /**
+     * Мемоизированные значения версии. Набор пар вычисляется сразу, а значения и хеш-код - при
+     * первом обращении.
+     */
+    private static final class Memoized<K, V> {
+
+        private final Set<Entry<K, V>> entrySet;
+
+        private List<V> values;
+
+        private int hashCode;
+
+        private boolean hashCodeComputed;
+
+        private Memoized(Set<Entry<K, V>> entrySet) {
+            this.entrySet = entrySet;
+        }
+
+    }
+
+    /**
+     * Итератор по отличиям двух версий. Обходит деревья обеих версий одновременно в порядке ключей:
+     * из двух поддеревьев раскрывается более высокое, пока вершины стеков не совпадут, и поддерево,
+     * общее для обеих версий, пропускается целиком, если в его интервале ключей нет
+     * модифицированных узлов.
+     */
+    private final class DiffIterator implements Iterator<Change<K, V>> {
+
+        private final Version fromVersion;
+
+        private final Version toVersion;
+
+        /**
+         * Узлы исходной версии, ожидающие обхода: вершина стека - следующий узел.
+         */
+        private final Deque<DiffFrame<K, V>> fromStack = new ArrayDeque<>();
+
+        /**
+         * Узлы целевой версии, ожидающие обхода: вершина стека - следующий узел.
+         */
+        private final Deque<DiffFrame<K, V>> toStack = new ArrayDeque<>();
+
+        /**
+         * Ключи модифицированных узлов или null, если общие поддеревья не пропускаются.
+         */
+        private final NavigableSet<K> modifiedKeys;
+
+        private Change<K, V> next;
+
+        private DiffIterator(Version fromVersion, Version toVersion, NavigableSet<K> modifiedKeys) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.modifiedKeys = modifiedKeys;
+            push(fromStack, versions.getRoot(fromVersion.getId()), fromVersion, null, null);
+            push(toStack, versions.getRoot(toVersion.getId()), toVersion, null, null);
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Change<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            var result = next;
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !(fromStack.isEmpty() && toStack.isEmpty())) {
+                var from = fromStack.peek();
+                var to = toStack.peek();
+                if (from == null) {
+                    if (expand(toStack, toVersion)) {
+                        next = Change.added(to.entry.getKey(), to.entry.getValue());
+                    }
+                } else if (to == null) {
+                    if (expand(fromStack, fromVersion)) {
+                        next = Change.removed(from.entry.getKey(), from.entry.getValue());
+                    }
+                } else if (!from.expanded && !to.expanded) {
+                    if (from.node == to.node && isUnmodified(from)) {
+                        fromStack.pop();
+                        toStack.pop();
+                    } else if (from.entry.height >= to.entry.height) {
+                        expand(fromStack, fromVersion);
+                    } else {
+                        expand(toStack, toVersion);
+                    }
+                } else if (!from.expanded) {
+                    if (compare(to.entry.getKey(), minKey(from, fromVersion)) < 0) {
+                        toStack.pop();
+                        next = Change.added(to.entry.getKey(), to.entry.getValue());
+                    } else {
+                        expand(fromStack, fromVersion);
+                    }
+                } else if (!to.expanded) {
+                    if (compare(from.entry.getKey(), minKey(to, toVersion)) < 0) {
+                        fromStack.pop();
+                        next = Change.removed(from.entry.getKey(), from.entry.getValue());
+                    } else {
+                        expand(toStack, toVersion);
+                    }
+                } else {
+                    var compareResult = compare(from.entry.getKey(), to.entry.getKey());
+                    if (compareResult < 0) {
+                        fromStack.pop();
+                        next = Change.removed(from.entry.getKey(), from.entry.getValue());
+                    } else if (compareResult > 0) {
+                        toStack.pop();
+                        next = Change.added(to.entry.getKey(), to.entry.getValue());
+                    } else {
+                        fromStack.pop();
+                        toStack.pop();
+                        if (!Objects.equals(from.entry.getValue(), to.entry.getValue())) {
+                            next = Change.changed(from.entry.getKey(), from.entry.getValue(), to.entry.getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Раскрывает поддерево на вершине стека или снимает с вершины раскрытый узел.
+         *
+         * @return true, если с вершины снят раскрытый узел.
+         */
+        private boolean expand(Deque<DiffFrame<K, V>> stack, Version version) {
+            var frame = stack.pop();
+            if (frame.expanded) {
+                return true;
+            }
+            var key = frame.entry.getKey();
+            push(stack, frame.node.getRight(version), version, key, frame.upper);
+            stack.push(new DiffFrame<>(frame.node, frame.entry, true, frame.lower, frame.upper));
+            push(stack, frame.node.getLeft(version), version, frame.lower, key);
+            return false;
+        }
+
+        private void push(
+                Deque<DiffFrame<K, V>> stack,
+                ModificationBoxNode<TreeEntry<K, V>, Version> node,
+                Version version,
+                K lower,
+                K upper) {
+            if (node != null) {
+                stack.push(new DiffFrame<>(node, node.getValue(version), false, lower, upper));
+            }
+        }
+
+        /**
+         * Возвращает true, если в интервале ключей поддерева нет модифицированных узлов. Тогда узлы
+         * поддерева одинаковы в обеих версиях: первый узел, в котором версии различаются, достижим
+         * в обеих версиях и лежит в интервале поддерева.
+         */
+        private boolean isUnmodified(DiffFrame<K, V> frame) {
+            if (modifiedKeys == null) {
+                return false;
+            }
+            var key = frame.lower == null ? (modifiedKeys.isEmpty() ? null : modifiedKeys.first())
+                    : modifiedKeys.higher(frame.lower);
+            return key == null || (frame.upper != null && compare(key, frame.upper) >= 0);
+        }
+
+        private K minKey(DiffFrame<K, V> frame, Version version) {
+            var node = frame.node;
+            var left = node.getLeft(version);
+            while (left != null) {
+                node = left;
+                left = node.getLeft(version);
+            }
+            return node.getValue(version).getKey();
+        }
+
+    }
+
+    /**
+     * Узел, ожидающий обхода при сравнении версий, с границами ключей его поддерева. Нераскрытый
+     * узел обозначает поддерево целиком, раскрытый - только свою пару ключ - значение.
+     */
+    private static final class DiffFrame<K, V> {
+
+        private final ModificationBoxNode<TreeEntry<K, V>, Version> node;
+
+        private final TreeEntry<K, V> entry;
+
+        private final boolean expanded;
+
+        /**
+         * Ключ, меньший всех ключей поддерева, или null.
+         */
+        private final K lower;
+
+        /**
+         * Ключ, больший всех ключей поддерева, или null.
+         */
+        private final K upper;
+
+        private DiffFrame(
+                ModificationBoxNode<TreeEntry<K, V>, Version> node,
+                TreeEntry<K, V> entry,
+                boolean expanded,
+                K lower,
+                K upper) {
+            this.node = node;
+            this.entry = entry;
+            this.expanded = expanded;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+    }
+
+    /**
+     * Пара ключ - значение узла дерева вместе с высотой и размером поддерева.
+     */
+    private static final class TreeEntry<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        /**
+         * Высота поддерева с корнем в узле.
+         */
+        private final int height;
+
+        /**
+         * Количество узлов поддерева с корнем в узле.
+         */
+        private final int size;
+
+        private TreeEntry(K key, V value, int height, int size) {
+            this.key = key;
+            this.value = value;
+            this.height = height;
+            this.size = size;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Map.Entry<?, ?> e
+                    && Objects.equals(key, e.getKey())
+                    && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+
+    }
+
 }
@@ -0,0 +1,49 @@
+package ru.nsu.ccfit.persistent.data.structure.node;
+
+/**
+ * Версия в ветке дерева версий. Версии одной ветки упорядочены по номеру, поэтому узел хранит
+ * номер и ветку модификации в своих полях и проверяет ее видимость для версии той же ветки
+ * сравнением чисел, не обращаясь к объекту версии модификации.
+ * <p>
+ * Версии упорядочены частично, поэтому видимость модификации проверяется предшествованием,
+ * а не сравнением: версии разных ветвей не предшествуют друг другу.
+ *
+ * @param <V> Тип версии.
+ */
+public interface BranchedVersion<V> {
+
+    /**
+     * Возвращает true, если версия - предок указанной версии или совпадает с ней.
+     *
+     * @param other Версия.
+     * @return true, если модификация этой версии видна указанной.
+     */
+    boolean precedes(V other);
+
+    /**
+     * Возвращает true, если версия с указанными номером и веткой - предок этой версии или
+     * совпадает с ней. Позволяет проверить видимость модификации по номеру и ветке без объекта
+     * ее версии.
+     *
+     * @param id     Номер версии.
+     * @param branch Ветка версии.
+     * @return true, если модификация указанной версии видна этой.
+     */
+    boolean follows(long id, Object branch);
+
+    /**
+     * Возвращает номер версии: в одной ветке версия с меньшим номером предшествует версии
+     * с большим.
+     *
+     * @return Номер версии.
+     */
+    long getId();
+
+    /**
+     * Возвращает ветку версии. Ветки сравниваются только по ссылке.
+     *
+     * @return Ветка версии.
+     */
+    Object getBranch();
+
+}
@@ -1,63 +1,128 @@
 package ru.nsu.ccfit.persistent.data.structure.node;
 
-import java.util.TreeMap;
+import java.util.Arrays;
 
-public class FatNode<T, V extends Comparable<V>> {
+/**
+ * Толстый узел: состояния узла по версиям в параллельных отсортированных массивах номеров версий
+ * и состояний. Состояние версии - последнее состояние с номером не больше нее, оно находится
+ * двоичным поиском по массиву примитивных номеров.
+ *
+ * @param <T> Тип значения в узле.
+ */
+public class FatNode<T> {
 
-    private TreeMap<V, SlimNode<T, V>> versions;
+    /**
+     * Номера версий состояний по возрастанию.
+     */
+    private long[] versions;
 
-    private FatNode() {
-        this.versions = new TreeMap<>();
+    /**
+     * Состояния узла, {@code states[i]} создано в версии {@code versions[i]}.
+     */
+    private SlimNode<T>[] states;
+
+    /**
+     * Количество состояний.
+     */
+    private int count;
+
+    @SuppressWarnings("unchecked")
+    public FatNode(long version, SlimNode<T> node) {
+        this.versions = new long[]{version};
+        this.states = (SlimNode<T>[]) new SlimNode<?>[]{node};
+        this.count = 1;
+    }
+
+    public FatNode<T> getLeft(long version) {
+        var versionState = floor(version);
+        return versionState == null ? null : versionState.getLeft();
+    }
+
+    public FatNode<T> getRight(long version) {
+        var versionState = floor(version);
+        return versionState == null ? null : versionState.getRight();
+    }
+
+    public T getValue(long version) {
+        var versionState = floor(version);
+        return versionState == null ? null : versionState.getValue();
+    }
+
+    /**
+     * Возвращает номер последней версии, в которой изменялся узел.
+     *
+     * @return Номер версии.
+     */
+    public long getLatestVersion() {
+        return versions[count - 1];
     }
 
-    public FatNode(V version, SlimNode<T, V> node) {
-        this();
-        versions.put(version, node);
+    public void updateLeft(long version, FatNode<T> left) {
+        var versionState = floor(version);
+        set(version, new SlimNode<>(versionState.getValue(), left, versionState.getRight()));
     }
 
-    public FatNode<T, V> getLeft(V version) {
-        var versionState = versions.floorEntry(version);
-        return versionState == null ? null : versionState.getValue().getLeft();
+    public void updateRight(long version, FatNode<T> right) {
+        var versionState = floor(version);
+        set(version, new SlimNode<>(versionState.getValue(), versionState.getLeft(), right));
     }
 
-    public FatNode<T, V> getRight(V version) {
-        var versionState = versions.floorEntry(version);
-        return versionState == null ? null : versionState.getValue().getRight();
+    public void updateValue(long version, T value) {
+        var versionState = floor(version);
+        set(version, new SlimNode<>(value, versionState.getLeft(), versionState.getRight()));
     }
 
-    public T getValue(V version) {
-        var versionState = versions.floorEntry(version);
-        return versionState == null ? null : versionState.getValue().getValue();
+    /**
+     * Забывает состояния версий после указанной. Вызывается, когда после undo создается новая
+     * версия и отмененные версии отбрасываются.
+     *
+     * @param version Последняя сохраняемая версия.
+     */
+    public void truncateAfter(long version) {
+        var newCount = upperBound(version);
+        Arrays.fill(states, newCount, count, null);
+        count = newCount;
     }
 
-    public void updateLeft(V version, FatNode<T, V> left) {
-        var versionState = versions.floorEntry(version).getValue();
-        var newState = new SlimNode<>(
-                versionState.getValue(),
-                left,
-                versionState.getRight()
-        );
-        versions.put(version, newState);
+    private SlimNode<T> floor(long version) {
+        var index = upperBound(version) - 1;
+        return index < 0 ? null : states[index];
     }
 
-    public void updateRight(V version, FatNode<T, V> right) {
-        var versionState = versions.floorEntry(version).getValue();
-        var newState = new SlimNode<>(
-                versionState.getValue(),
-                versionState.getLeft(),
-                right
-        );
-        versions.put(version, newState);
+    /**
+     * Записывает состояние версии. Изменения пишутся только в последнюю версию, поэтому состояние
+     * либо заменяет последнее, либо добавляется в конец.
+     */
+    private void set(long version, SlimNode<T> state) {
+        if (count > 0 && versions[count - 1] == version) {
+            states[count - 1] = state;
+            return;
+        }
+        if (count == versions.length) {
+            var capacity = Math.max(2, count + (count >> 1));
+            versions = Arrays.copyOf(versions, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        versions[count] = version;
+        states[count] = state;
+        count++;
     }
 
-    public void updateValue(V version, T value) {
-        var versionState = versions.floorEntry(version).getValue();
-        var newState = new SlimNode<>(
-                value,
-                versionState.getLeft(),
-                versionState.getRight()
-        );
-        versions.put(version, newState);
+    /**
+     * Возвращает количество состояний с номером версии не больше указанного.
+     */
+    private int upperBound(long version) {
+        var low = 0;
+        var high = count;
+        while (low < high) {
+            var middle = (low + high) >>> 1;
+            if (versions[middle] <= version) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
     }
 
 }
@@ -3,7 +3,7 @@ package ru.nsu.ccfit.persistent.data.structure.node;
 /**
  * Информация об обновлении узла.
  */
-public class ModificationBox<T, V extends Comparable<V>> {
+public class ModificationBox<T, V extends BranchedVersion<V>> {
 
     /**
      * Тип обновляемого поля.
@@ -25,6 +25,13 @@ public class ModificationBox<T, V extends Comparable<V>> {
      */
     private final T valueModification;
 
+    /**
+     * Записано ли новое значение в узле. Обновление левого или правого узла может вместе с ним
+     * обновлять значение, чтобы изменение потомка и производного от него значения занимало одну
+     * модификацию, а не копию узла.
+     */
+    private final boolean valueModified;
+
     /**
      * Создает обновление левого узла.
      *
@@ -34,14 +41,38 @@ public class ModificationBox<T, V extends Comparable<V>> {
      * @param <V>                 Тип значения версии.
      * @return Обновление левого узла.
      */
-    public static <T, V extends Comparable<V>> ModificationBox<T, V> createLeftModification(
+    public static <T, V extends BranchedVersion<V>> ModificationBox<T, V> createLeftModification(
             V modificationVersion,
             ModificationBoxNode<T, V> nodeModification) {
         return new ModificationBox<>(
                 ModificationType.LEFT,
                 modificationVersion,
                 nodeModification,
-                null
+                null,
+                false
+        );
+    }
+
+    /**
+     * Создает обновление левого узла вместе со значением в узле.
+     *
+     * @param modificationVersion Версия.
+     * @param nodeModification    Новое значение левого узла.
+     * @param valueModification   Новое значение.
+     * @param <T>                 Тип значения в узле.
+     * @param <V>                 Тип значения версии.
+     * @return Обновление левого узла и значения.
+     */
+    public static <T, V extends BranchedVersion<V>> ModificationBox<T, V> createLeftModification(
+            V modificationVersion,
+            ModificationBoxNode<T, V> nodeModification,
+            T valueModification) {
+        return new ModificationBox<>(
+                ModificationType.LEFT,
+                modificationVersion,
+                nodeModification,
+                valueModification,
+                true
         );
     }
 
@@ -54,14 +85,38 @@ public class ModificationBox<T, V extends Comparable<V>> {
      * @param <V>                 Тип значения версии.
      * @return Обновление правого узла.
      */
-    public static <T, V extends Comparable<V>> ModificationBox<T, V> createRightModification(
+    public static <T, V extends BranchedVersion<V>> ModificationBox<T, V> createRightModification(
             V modificationVersion,
             ModificationBoxNode<T, V> nodeModification) {
         return new ModificationBox<>(
                 ModificationType.RIGHT,
                 modificationVersion,
                 nodeModification,
-                null
+                null,
+                false
+        );
+    }
+
+    /**
+     * Создает обновление правого узла вместе со значением в узле.
+     *
+     * @param modificationVersion Версия.
+     * @param nodeModification    Новое значение правого узла.
+     * @param valueModification   Новое значение.
+     * @param <T>                 Тип значения в узле.
+     * @param <V>                 Тип значения версии.
+     * @return Обновление правого узла и значения.
+     */
+    public static <T, V extends BranchedVersion<V>> ModificationBox<T, V> createRightModification(
+            V modificationVersion,
+            ModificationBoxNode<T, V> nodeModification,
+            T valueModification) {
+        return new ModificationBox<>(
+                ModificationType.RIGHT,
+                modificationVersion,
+                nodeModification,
+                valueModification,
+                true
         );
     }
 
@@ -74,14 +129,15 @@ public class ModificationBox<T, V extends Comparable<V>> {
      * @param <V>                 Тип значения версии.
      * @return Обновление правого узла.
      */
-    public static <T, V extends Comparable<V>> ModificationBox<T, V> createValueModification(
+    public static <T, V extends BranchedVersion<V>> ModificationBox<T, V> createValueModification(
             V modificationVersion,
             T valueModification) {
         return new ModificationBox<>(
                 ModificationType.VALUE,
                 modificationVersion,
                 null,
-                valueModification
+                valueModification,
+                true
         );
     }
 
@@ -89,11 +145,36 @@ public class ModificationBox<T, V extends Comparable<V>> {
             ModificationType modificationType,
             V modificationVersion,
             ModificationBoxNode<T, V> nodeModification,
-            T valueModification) {
+            T valueModification,
+            boolean valueModified) {
         this.modificationType = modificationType;
         this.modificationVersion = modificationVersion;
         this.nodeModification = nodeModification;
         this.valueModification = valueModification;
+        this.valueModified = valueModified;
+    }
+
+    /**
+     * Возвращает то же обновление, дополненное значением в узле, если оно еще не записано.
+     *
+     * @param value Значение в узле.
+     * @return Обновление со значением.
+     */
+    public ModificationBox<T, V> withValueIfAbsent(T value) {
+        if (valueModified) {
+            return this;
+        }
+        return new ModificationBox<>(modificationType, modificationVersion, nodeModification, value, true);
+    }
+
+    /**
+     * Возвращает то же обновление с другим значением в узле.
+     *
+     * @param value Значение в узле.
+     * @return Обновление со значением.
+     */
+    public ModificationBox<T, V> withValue(T value) {
+        return new ModificationBox<>(modificationType, modificationVersion, nodeModification, value, true);
     }
 
     public ModificationType getModificationType() {
@@ -112,4 +193,8 @@ public class ModificationBox<T, V extends Comparable<V>> {
         return valueModification;
     }
 
+    public boolean isValueModified() {
+        return valueModified;
+    }
+
 }
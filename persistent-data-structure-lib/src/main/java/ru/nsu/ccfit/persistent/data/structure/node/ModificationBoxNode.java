@@ -1,54 +1,100 @@
 package ru.nsu.ccfit.persistent.data.structure.node;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 /**
- * Обновляемый узел.
+ * Обновляемый узел с несколькими ячейками модификаций по схеме копирования узлов
+ * Driscoll - Sarnak - Sleator - Tarjan. Модификация записывается в свободную ячейку без копирования
+ * узла, копия создается, только когда все ячейки заняты. Ячейки заполняются по возрастанию версий,
+ * поэтому значение поля в версии - последняя видимая ей модификация этого поля.
+ * <p>
+ * Первая ячейка хранится в полях самого узла, а не в отдельном {@link ModificationBox}, поэтому
+ * чтение поля в версии обходится без перехода к другому объекту.
  *
  * @param <T> Тип значения в узле.
  * @param <V> Тип значения версии.
  */
-public class ModificationBoxNode<T, V extends Comparable<V>> {
+public class ModificationBoxNode<T, V extends BranchedVersion<V>> {
 
     /**
-     * Левый узел.
+     * Доступ к остальным ячейкам с семантикой release/acquire, как у типа первой ячейки.
      */
-    private final ModificationBoxNode<T, V> left;
+    private static final VarHandle BOXES = MethodHandles.arrayElementVarHandle(ModificationBox[].class);
 
     /**
-     * Правый узел.
+     * Левый узел. Изменяется только при переносе в узел модификации отброшенной версии и при
+     * связывании новой копии с соседями.
      */
-    private final ModificationBoxNode<T, V> right;
+    private ModificationBoxNode<T, V> left;
 
     /**
-     * Значение в узле.
+     * Правый узел. Изменяется только при переносе в узел модификации отброшенной версии и при
+     * связывании новой копии с соседями.
      */
-    private final T value;
+    private ModificationBoxNode<T, V> right;
 
     /**
-     * Обновление узла.
+     * Значение в узле. Изменяется только при переносе в узел модификации отброшенной версии.
      */
-    private ModificationBox<T, V> modificationBox;
+    private T value;
 
-    private ModificationBoxNode(
-            ModificationBoxNode<T, V> left,
-            ModificationBoxNode<T, V> right,
-            T value,
-            ModificationBox<T, V> modificationBox) {
-        this.left = left;
-        this.right = right;
-        this.value = value;
-        this.modificationBox = modificationBox;
-    }
+    /**
+     * Тип модификации первой ячейки или null, если ячейка свободна. Поле volatile и записывается
+     * после остальных полей ячейки, поэтому читатель снимка в другом потоке, увидевший тип, видит
+     * модификацию целиком.
+     */
+    private volatile ModificationType modificationType;
+
+    /**
+     * Номер версии модификации первой ячейки. Вместе с веткой заменяет ссылку на объект версии:
+     * чтение в версии той же ветки сравнивает числа, а для других ветвей предшествование
+     * проверяет сама читаемая версия.
+     */
+    private long modificationId;
+
+    /**
+     * Ветка версии модификации первой ячейки.
+     */
+    private Object modificationBranch;
+
+    /**
+     * Новое значение левого или правого узла в первой ячейке.
+     */
+    private ModificationBoxNode<T, V> nodeModification;
+
+    /**
+     * Новое значение в узле в первой ячейке.
+     */
+    private T valueModification;
+
+    /**
+     * Записано ли новое значение в узле в первой ячейке.
+     */
+    private boolean valueModified;
+
+    /**
+     * Перенесена ли первая ячейка в поля узла. Такая ячейка больше не занимается: читатель мог
+     * прочитать ее тип до переноса, и новая модификация в ее полях смешалась бы для него со
+     * старой. Ее место занимает ячейка массива {@link #extraBoxes}.
+     */
+    private boolean firstSlotRetired;
+
+    /**
+     * Остальные ячейки модификаций: занятые идут подряд с начала массива. Массив создается, когда
+     * первая ячейка занята или перенесена, и заменяется целиком только при переносе модификаций
+     * в поля узла или при переносе первой ячейки, когда массиву нужна еще одна ячейка. Читатели
+     * просматривают эти ячейки раньше первой.
+     */
+    private volatile ModificationBox<T, V>[] extraBoxes;
 
     public ModificationBoxNode(
             ModificationBoxNode<T, V> left,
             ModificationBoxNode<T, V> right,
             T value) {
-        this(
-                left,
-                right,
-                value,
-                null
-        );
+        this.left = left;
+        this.right = right;
+        this.value = value;
     }
 
     /**
@@ -58,15 +104,20 @@ public class ModificationBoxNode<T, V extends Comparable<V>> {
      * @return Значение левого узла в запрашиваемой версии.
      */
     public ModificationBoxNode<T, V> getLeft(V version) {
-        if (modificationBox == null) {
-            return left;
-        } else if (modificationBox.getModificationType() != ModificationType.LEFT) {
-            return left;
-        } else if (modificationBox.getModificationVersion().compareTo(version) > 0) {
-            return left;
-        } else {
-            return modificationBox.getNodeModification();
+        var extra = extraBoxes;
+        if (extra != null) {
+            var box = latestBox(extra, ModificationType.LEFT, version);
+            if (box != null) {
+                return box.getNodeModification();
+            }
+        }
+        if (modificationType == ModificationType.LEFT && isFirstSlotVisible(version)) {
+            var node = nodeModification;
+            if (isFirstSlotStable()) {
+                return node;
+            }
         }
+        return left;
     }
 
     /**
@@ -76,15 +127,40 @@ public class ModificationBoxNode<T, V extends Comparable<V>> {
      * @return Значение правого узла в запрашиваемой версии.
      */
     public ModificationBoxNode<T, V> getRight(V version) {
-        if (modificationBox == null) {
-            return right;
-        } else if (modificationBox.getModificationType() != ModificationType.RIGHT) {
-            return right;
-        } else if (modificationBox.getModificationVersion().compareTo(version) > 0) {
-            return right;
-        } else {
-            return modificationBox.getNodeModification();
+        var extra = extraBoxes;
+        if (extra != null) {
+            var box = latestBox(extra, ModificationType.RIGHT, version);
+            if (box != null) {
+                return box.getNodeModification();
+            }
         }
+        if (modificationType == ModificationType.RIGHT && isFirstSlotVisible(version)) {
+            var node = nodeModification;
+            if (isFirstSlotStable()) {
+                return node;
+            }
+        }
+        return right;
+    }
+
+    /**
+     * Записывает левый узел в поле копии, созданной в текущем изменении. Копию еще не видит ни одна
+     * другая версия, поэтому ссылка на копию соседа не занимает ячейку модификации.
+     *
+     * @param left Левый узел.
+     */
+    public void linkLeft(ModificationBoxNode<T, V> left) {
+        this.left = left;
+    }
+
+    /**
+     * Записывает правый узел в поле копии, созданной в текущем изменении.
+     *
+     * @param right Правый узел.
+     * @see #linkLeft(ModificationBoxNode)
+     */
+    public void linkRight(ModificationBoxNode<T, V> right) {
+        this.right = right;
     }
 
     /**
@@ -94,38 +170,182 @@ public class ModificationBoxNode<T, V extends Comparable<V>> {
      * @return Значение в запрашиваемой версии.
      */
     public T getValue(V version) {
-        if (modificationBox == null) {
-            return value;
-        } else if (modificationBox.getModificationType() != ModificationType.VALUE) {
-            return value;
-        } else if (modificationBox.getModificationVersion().compareTo(version) > 0) {
-            return value;
-        } else {
-            return modificationBox.getValueModification();
+        var extra = extraBoxes;
+        if (extra != null) {
+            var box = latestBox(extra, null, version);
+            if (box != null) {
+                return box.getValueModification();
+            }
+        }
+        if (modificationType != null && valueModified && isFirstSlotVisible(version)) {
+            var modifiedValue = valueModification;
+            if (isFirstSlotStable()) {
+                return modifiedValue;
+            }
         }
+        return value;
     }
 
     /**
-     * Возвращает текущую модификацию узла.
+     * Возвращает количество занятых ячеек модификаций.
      *
-     * @return Текущую модификацию узла.
+     * @return Количество модификаций узла.
      */
-    public ModificationBox<T, V> getModificationBox() {
-        return modificationBox;
+    public int getModificationCount() {
+        return (modificationType == null ? 0 : 1) + count(extraBoxes);
     }
 
     /**
-     * Возвращает обновленный узел.
+     * Возвращает обновленный узел с одной ячейкой модификации.
      *
      * @param modification Обновление.
      * @return Обновленный узел.
+     * @see #modify(ModificationBox, int)
      */
     public ModificationBoxNode<T, V> modify(ModificationBox<T, V> modification) {
+        return modify(modification, 1);
+    }
+
+    /**
+     * Возвращает обновленный узел. Модификация того же поля в той же версии заменяется без
+     * копирования узла, иначе модификация занимает свободную ячейку. Если свободных ячеек нет,
+     * возвращается копия узла с полями в версии модификации.
+     *
+     * @param modification Обновление.
+     * @param slots        Количество ячеек модификаций в узле, не меньше 1.
+     * @return Обновленный узел.
+     */
+    public ModificationBoxNode<T, V> modify(ModificationBox<T, V> modification, int slots) {
         if (modification == null) {
             throw new IllegalArgumentException("Modification can not be null");
         }
-        if (modificationBox == null) {
-            modificationBox = modification;
+        var version = modification.getModificationVersion();
+        var type = modificationType;
+        var extra = extraBoxes;
+        var extraCount = count(extra);
+        // ячейки заполняются по возрастанию версий: модификации текущей версии идут последними,
+        // а модификация текущей версии не видна предыдущим версиям и может быть заменена
+        // с сохранением записанного в ней значения
+        for (var i = extraCount - 1; i >= 0; i--) {
+            var box = box(extra, i);
+            if (box.getModificationVersion() != version) {
+                return append(modification, slots, type, extra, extraCount);
+            }
+            if (box.getModificationType() == modification.getModificationType()) {
+                BOXES.setRelease(extra, i, box.isValueModified()
+                        ? modification.withValueIfAbsent(box.getValueModification())
+                        : modification);
+                replaceValue(modification, extra, extraCount);
+                return this;
+            }
+        }
+        if (type == modification.getModificationType() && modificationId == version.getId()) {
+            if (modification.isValueModified()) {
+                valueModification = modification.getValueModification();
+                valueModified = true;
+            }
+            nodeModification = modification.getNodeModification();
+            modificationType = type;
+            replaceValue(modification, extra, extraCount);
+            return this;
+        }
+        return append(modification, slots, type, extra, extraCount);
+    }
+
+    /**
+     * Переносит в поля узла модификации, совершенные в версиях не выше указанной, и освобождает
+     * их ячейки. Модификации версий с меньшими номерами из других ветвей не видны указанной
+     * версии и ее потомкам, поэтому их ячейки освобождаются без переноса. После этого версии ниже
+     * указанной читаются из узла неверно, поэтому вызывается только при отбрасывании этих версий.
+     * Поля записываются до освобождения ячеек, а первая ячейка освобождается до остальных, поэтому
+     * читатель, увидевший освобожденную ячейку, видит и перенесенное значение.
+     *
+     * @param version Общий предок сохраняемых версий.
+     */
+    public void foldModification(V version) {
+        if (modificationType != null && modificationId <= version.getId()) {
+            if (version.follows(modificationId, modificationBranch)) {
+                apply(modificationType, nodeModification, valueModified, valueModification);
+            }
+            retireFirstSlot();
+        }
+        var extra = extraBoxes;
+        if (extra == null) {
+            return;
+        }
+        ModificationBox<T, V>[] remaining = newBoxes(extra.length);
+        var remainingCount = 0;
+        var count = count(extra);
+        for (var i = 0; i < count; i++) {
+            var box = box(extra, i);
+            if (box.getModificationVersion().precedes(version)) {
+                apply(box.getModificationType(), box.getNodeModification(),
+                        box.isValueModified(), box.getValueModification());
+            } else if (box.getModificationVersion().getId() > version.getId()) {
+                remaining[remainingCount++] = box;
+            }
+        }
+        if (remainingCount < count) {
+            extraBoxes = remainingCount == 0 ? null : remaining;
+        }
+    }
+
+    /**
+     * Записывает значение замененной модификации во все ячейки ее версии, хранящие значение.
+     * Значение в узле читается из последней такой ячейки, а замененная модификация может быть
+     * не последней, и без этого более поздняя ячейка той же версии скрыла бы новое значение.
+     */
+    private void replaceValue(ModificationBox<T, V> modification, ModificationBox<T, V>[] extra, int extraCount) {
+        if (!modification.isValueModified()) {
+            return;
+        }
+        var version = modification.getModificationVersion();
+        var newValue = modification.getValueModification();
+        for (var i = extraCount - 1; i >= 0; i--) {
+            var box = box(extra, i);
+            if (box.getModificationVersion() != version) {
+                break;
+            }
+            if (box.isValueModified() && box.getValueModification() != newValue) {
+                BOXES.setRelease(extra, i, box.withValue(newValue));
+            }
+        }
+        if (modificationType != null && valueModified && modificationId == version.getId()) {
+            valueModification = newValue;
+        }
+    }
+
+    /**
+     * Записывает модификацию в свободную ячейку или возвращает копию узла, если свободных нет.
+     */
+    private ModificationBoxNode<T, V> append(
+            ModificationBox<T, V> modification,
+            int slots,
+            ModificationType type,
+            ModificationBox<T, V>[] extra,
+            int extraCount) {
+        if (type == null && !firstSlotRetired) {
+            var version = modification.getModificationVersion();
+            modificationId = version.getId();
+            modificationBranch = version.getBranch();
+            nodeModification = modification.getNodeModification();
+            valueModification = modification.getValueModification();
+            valueModified = modification.isValueModified();
+            modificationType = modification.getModificationType();
+            return this;
+        }
+        if ((type == null ? 0 : 1) + extraCount < slots) {
+            if (extra != null && extraCount < extra.length) {
+                BOXES.setRelease(extra, extraCount, modification);
+            } else {
+                // пока первая ячейка занята, массиву хватает остальных slots - 1 ячеек
+                ModificationBox<T, V>[] created = newBoxes(type == null ? slots : slots - 1);
+                if (extra != null) {
+                    System.arraycopy(extra, 0, created, 0, extraCount);
+                }
+                created[extraCount] = modification;
+                extraBoxes = created;
+            }
             return this;
         }
         var version = modification.getModificationVersion();
@@ -133,30 +353,98 @@ public class ModificationBoxNode<T, V extends Comparable<V>> {
                 getLeft(version),
                 getRight(version),
                 getValue(version)
-        ).modify(modification);
-        return new ModificationBoxNode<>(
-                modifiedCopy.getLeft(version),
-                modifiedCopy.getRight(version),
-                modifiedCopy.getValue(version),
-                null
         );
+        modifiedCopy.apply(modification.getModificationType(), modification.getNodeModification(),
+                modification.isValueModified(), modification.getValueModification());
+        return modifiedCopy;
+    }
+
+    /**
+     * Записывает модификацию в поля узла.
+     */
+    private void apply(ModificationType type, ModificationBoxNode<T, V> node, boolean isValueModified, T newValue) {
+        if (type == ModificationType.LEFT) {
+            left = node;
+        } else if (type == ModificationType.RIGHT) {
+            right = node;
+        }
+        if (isValueModified) {
+            value = newValue;
+        }
     }
 
     /**
-     * Удаляет из узла информацию о всех модификациях совершенных в версиях выше указанной.
+     * Проверяет, видна ли версии модификация первой ячейки. Для версии той же ветки достаточно
+     * номера и ветки из полей узла.
+     */
+    private boolean isFirstSlotVisible(V version) {
+        if (version.getBranch() == modificationBranch) {
+            return modificationId <= version.getId();
+        }
+        return version.follows(modificationId, modificationBranch);
+    }
+
+    /**
+     * Проверяет после чтения первой ячейки, что она не была освобождена во время чтения. Ячейка
+     * освобождается раньше очистки ее полей, поэтому если она еще занята, прочитанное значение
+     * верно, а иначе значение уже перенесено в поля узла.
+     */
+    private boolean isFirstSlotStable() {
+        VarHandle.acquireFence();
+        return modificationType != null;
+    }
+
+    /**
+     * Освобождает первую ячейку без возможности снова ее занять и забывает ее значения, чтобы
+     * узел не удерживал поддеревья отброшенных версий.
+     */
+    private void retireFirstSlot() {
+        firstSlotRetired = true;
+        modificationType = null;
+        nodeModification = null;
+        valueModification = null;
+    }
+
+    /**
+     * Возвращает последнюю видимую версии модификацию поля из остальных ячеек. Просмотр вынесен
+     * из методов чтения, чтобы они оставались короткими и встраивались компилятором.
      *
-     * @param version Версия.
+     * @param type Тип модификации или null для модификации значения.
      */
-    public void cleanFromVersion(V version) {
-        if (modificationBox != null && modificationBox.getModificationVersion().compareTo(version) >= 0) {
-            modificationBox = null;
+    private static <T, V extends BranchedVersion<V>> ModificationBox<T, V> latestBox(
+            ModificationBox<T, V>[] boxes,
+            ModificationType type,
+            V version) {
+        for (var i = boxes.length - 1; i >= 0; i--) {
+            var box = box(boxes, i);
+            if (box != null
+                    && (type == null ? box.isValueModified() : box.getModificationType() == type)
+                    && box.getModificationVersion().precedes(version)) {
+                return box;
+            }
         }
-        if (left != null) {
-            left.cleanFromVersion(version);
+        return null;
+    }
+
+    private static <T, V extends BranchedVersion<V>> int count(ModificationBox<T, V>[] boxes) {
+        if (boxes == null) {
+            return 0;
         }
-        if (right != null) {
-            right.cleanFromVersion(version);
+        var count = 0;
+        while (count < boxes.length && box(boxes, count) != null) {
+            count++;
         }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, V extends BranchedVersion<V>> ModificationBox<T, V>[] newBoxes(int length) {
+        return (ModificationBox<T, V>[]) new ModificationBox<?, ?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, V extends BranchedVersion<V>> ModificationBox<T, V> box(ModificationBox<T, V>[] boxes, int index) {
+        return (ModificationBox<T, V>) BOXES.getAcquire(boxes, index);
     }
 
 }
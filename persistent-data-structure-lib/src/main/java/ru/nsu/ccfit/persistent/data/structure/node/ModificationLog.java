@@ -0,0 +1,141 @@
+package ru.nsu.ccfit.persistent.data.structure.node;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Журнал модификаций: узлы, в которые записывалась модификация, в порядке создания версий.
+ * Перенос модификаций отброшенных версий в узлы обходит только начало журнала вместо всех
+ * достижимых узлов.
+ *
+ * @param <T> Тип значения в узле.
+ * @param <V> Тип значения версии.
+ */
+public final class ModificationLog<T, V extends BranchedVersion<V>> {
+
+    /**
+     * Узлы, в которые записывалась модификация.
+     */
+    private final ArrayList<ModificationBoxNode<T, V>> nodes = new ArrayList<>();
+
+    /**
+     * Версии записанных модификаций.
+     */
+    private final ArrayList<V> versions = new ArrayList<>();
+
+    /**
+     * Индекс первой неперенесенной записи. Начало списков удаляется, только когда перенесена
+     * половина записей, чтобы перенос модификаций стоил O(1) амортизированно.
+     */
+    private int head;
+
+    /**
+     * Количество ячеек модификаций в узлах.
+     */
+    private final int slots;
+
+    /**
+     * Создает журнал для узлов с одной ячейкой модификации.
+     */
+    public ModificationLog() {
+        this(1);
+    }
+
+    /**
+     * Создает журнал.
+     *
+     * @param slots Количество ячеек модификаций в узлах, не меньше 1.
+     */
+    public ModificationLog(int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Modification slots must be positive");
+        }
+        this.slots = slots;
+    }
+
+    /**
+     * Возвращает обновленный узел и записывает в журнал узел, если модификация записана в его
+     * свободную ячейку.
+     *
+     * @param node         Узел.
+     * @param modification Обновление.
+     * @return Обновленный узел.
+     */
+    public ModificationBoxNode<T, V> modify(ModificationBoxNode<T, V> node, ModificationBox<T, V> modification) {
+        var count = node.getModificationCount();
+        var result = node.modify(modification, slots);
+        if (result == node && node.getModificationCount() > count) {
+            nodes.add(node);
+            versions.add(modification.getModificationVersion());
+        }
+        return result;
+    }
+
+    /**
+     * Переносит в узлы модификации из начала журнала с номерами версий не больше указанной
+     * и забывает их. Вызывается при отбрасывании версий: после переноса узлы больше не удерживают
+     * поддеревья отброшенных версий. Модификации предков указанной версии переносятся в поля узлов,
+     * а модификации других ветвей, например отмененных изменений, не видны сохраняемым версиям
+     * и удаляются из узлов.
+     *
+     * @param version Версия, которой предшествуют все сохраняемые версии.
+     */
+    public void fold(V version) {
+        while (head < versions.size() && versions.get(head).getId() <= version.getId()) {
+            nodes.get(head).foldModification(version);
+            nodes.set(head, null);
+            head++;
+        }
+        if (head >= versions.size() / 2) {
+            nodes.subList(0, head).clear();
+            versions.subList(0, head).clear();
+            head = 0;
+        }
+    }
+
+    /**
+     * Передает действию узлы, модификации которых записаны в указанной версии и еще не перенесены.
+     * Изменения пишутся только в последнюю созданную версию, поэтому записи одной версии идут
+     * подряд по возрастанию номеров версий, и начало записей находится двоичным поиском.
+     *
+     * @param version Номер версии.
+     * @param number  Номер версии модификации.
+     * @param action  Действие над узлом.
+     */
+    public void forEachModifiedIn(long version, ToLongFunction<? super V> number,
+                                  Consumer<? super ModificationBoxNode<T, V>> action) {
+        var low = head;
+        var high = versions.size();
+        while (low < high) {
+            var middle = (low + high) >>> 1;
+            if (number.applyAsLong(versions.get(middle)) < version) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (var i = low; i < versions.size() && number.applyAsLong(versions.get(i)) == version; i++) {
+            action.accept(nodes.get(i));
+        }
+    }
+
+    /**
+     * Возвращает количество записей журнала.
+     *
+     * @return Количество записей.
+     */
+    public int size() {
+        return nodes.size() - head;
+    }
+
+    /**
+     * Возвращает количество ячеек модификаций в узлах.
+     *
+     * @return Количество ячеек.
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+}
@@ -1,17 +1,17 @@
 package ru.nsu.ccfit.persistent.data.structure.node;
 
-public class SlimNode<T, V extends Comparable<V>> {
+public class SlimNode<T> {
 
     private final T value;
 
-    private final FatNode<T, V> left;
+    private final FatNode<T> left;
 
-    private final FatNode<T, V> right;
+    private final FatNode<T> right;
 
     public SlimNode(
             T value,
-            FatNode<T, V> left,
-            FatNode<T, V> right) {
+            FatNode<T> left,
+            FatNode<T> right) {
         this.value = value;
         this.left = left;
         this.right = right;
@@ -21,11 +21,11 @@ public class SlimNode<T, V extends Comparable<V>> {
         return value;
     }
 
-    public FatNode<T, V> getLeft() {
+    public FatNode<T> getLeft() {
         return left;
     }
 
-    public FatNode<T, V> getRight() {
+    public FatNode<T> getRight() {
         return right;
     }
 
@@ -0,0 +1,34 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+class RetentionPolicyTest {
+
+    @Test
+    void keepLast_keepsCountVersions() {
+        var policy = RetentionPolicy.keepLast(3);
+
+        Assertions.assertEquals(8, policy.oldestRetainedVersion(0, 10, version -> 0));
+        Assertions.assertEquals(0, policy.oldestRetainedVersion(0, 1, version -> 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.keepLast(0));
+    }
+
+    @Test
+    void keepNewerThan_findsFirstNewVersion() {
+        var policy = RetentionPolicy.keepNewerThan(Instant.ofEpochMilli(500));
+
+        Assertions.assertEquals(5, policy.oldestRetainedVersion(2, 10, version -> version * 100));
+        Assertions.assertEquals(10, policy.oldestRetainedVersion(2, 10, version -> 0));
+    }
+
+    @Test
+    void or_keepsVersionsOfBothPolicies() {
+        var policy = RetentionPolicy.keepLast(2).or(RetentionPolicy.keepNewerThan(Instant.ofEpochMilli(500)));
+
+        Assertions.assertEquals(5, policy.oldestRetainedVersion(0, 10, version -> version * 100));
+    }
+
+}
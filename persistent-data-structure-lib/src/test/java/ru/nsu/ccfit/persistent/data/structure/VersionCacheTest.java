@@ -0,0 +1,64 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class VersionCacheTest {
+
+    @Test
+    void get_countsHitsAndMisses() {
+        VersionCache<String> cache = new VersionCache<>(4, Long.MAX_VALUE);
+
+        Assertions.assertNull(cache.get(1));
+        cache.put(1, "v1", 10);
+        Assertions.assertEquals("v1", cache.get(1));
+        Assertions.assertEquals("v1", cache.get(1));
+
+        Assertions.assertEquals(2, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void put_overVersionLimit_evictsLeastRecentlyUsed() {
+        VersionCache<String> cache = new VersionCache<>(2, Long.MAX_VALUE);
+        cache.put(1, "v1", 1);
+        cache.put(2, "v2", 1);
+        cache.get(1);
+        cache.put(3, "v3", 1);
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals("v1", cache.get(1));
+        Assertions.assertNull(cache.get(2));
+        Assertions.assertEquals("v3", cache.get(3));
+    }
+
+    @Test
+    void put_overByteLimit_evictsUntilFits() {
+        VersionCache<String> cache = new VersionCache<>(10, 100);
+        cache.put(1, "v1", 40);
+        cache.put(2, "v2", 40);
+        cache.put(3, "v3", 40);
+        cache.put(4, "v4", 200);
+
+        Assertions.assertEquals(80, cache.getBytes());
+        Assertions.assertNull(cache.get(1));
+        Assertions.assertNull(cache.get(4));
+        Assertions.assertEquals("v2", cache.get(2));
+    }
+
+    @Test
+    void discardBefore_removesOlderVersions() {
+        VersionCache<String> cache = new VersionCache<>(10, Long.MAX_VALUE);
+        for (int version = 0; version < 5; version++) {
+            cache.put(version, "v" + version, 10);
+        }
+        cache.remove(4);
+        cache.discardBefore(2);
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(20, cache.getBytes());
+        Assertions.assertNull(cache.get(1));
+        Assertions.assertEquals("v2", cache.get(2));
+    }
+
+}
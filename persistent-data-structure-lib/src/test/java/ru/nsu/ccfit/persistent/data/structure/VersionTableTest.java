@@ -0,0 +1,99 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class VersionTableTest {
+
+    @Test
+    void get_notWrittenVersion_returnsDefaults() {
+        VersionTable<String> versions = new VersionTable<>();
+
+        Assertions.assertNull(versions.getRoot(0));
+        Assertions.assertEquals(0, versions.getSize(1000));
+    }
+
+    @Test
+    void set_beyondCapacity_grows() {
+        VersionTable<String> versions = new VersionTable<>();
+        for (int version = 0; version < 100; version++) {
+            versions.set(version, "v" + version, version);
+        }
+        versions.setRoot(100, "v99");
+        versions.setSize(100, 99);
+
+        for (int version = 0; version < 100; version++) {
+            Assertions.assertEquals("v" + version, versions.getRoot(version));
+            Assertions.assertEquals(version, versions.getSize(version));
+        }
+        Assertions.assertEquals("v99", versions.getRoot(100));
+        Assertions.assertEquals(99, versions.getSize(100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> versions.setSize(-1, 0));
+    }
+
+    @Test
+    void discardBefore_releasesOlderVersions() {
+        VersionTable<String> versions = new VersionTable<>();
+        for (int version = 0; version < 100; version++) {
+            versions.set(version, "v" + version, version);
+        }
+        versions.discardBefore(10);
+        versions.discardBefore(90);
+        versions.setRoot(100, "v100");
+
+        Assertions.assertEquals(90, versions.getFirstVersion());
+        Assertions.assertNull(versions.getRoot(89));
+        Assertions.assertEquals("v90", versions.getRoot(90));
+        Assertions.assertEquals("v100", versions.getRoot(100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> versions.setRoot(50, "v50"));
+    }
+
+    @Test
+    void startVersion_copiesParentAndBuildsTree() {
+        VersionTable<String> versions = new VersionTable<>();
+        var root = versions.startVersion(null, 0);
+        versions.set(0, "v0", 0);
+        var first = versions.startVersion(root, 1);
+        versions.set(1, "v1", 1);
+        var second = versions.startVersion(first, 2);
+        var branch = versions.startVersion(root, 3);
+
+        Assertions.assertEquals("v1", versions.getRoot(2));
+        Assertions.assertEquals(1, versions.getSize(2));
+        Assertions.assertEquals("v0", versions.getRoot(3));
+        Assertions.assertTrue(versions.getCreatedAt(3) > 0);
+        Assertions.assertSame(branch, versions.getVersion(3));
+        Assertions.assertSame(root, versions.getCommonAncestor());
+        versions.discardBefore(1);
+        Assertions.assertSame(root, Version.commonAncestor(second, branch));
+        Assertions.assertEquals(0, branch.getParentId());
+    }
+
+    @Test
+    void copy_keepsCommonAncestorAndBranches() {
+        VersionTable<String> versions = new VersionTable<>();
+        var version = versions.startVersion(null, 0);
+        for (int i = 1; i <= 5; i++) {
+            version = versions.startVersion(version, i);
+        }
+        versions.startVersion(versions.getVersion(2), 6);
+        versions.startVersion(versions.getVersion(3), 7);
+        versions.discardBefore(5);
+        Assertions.assertEquals(2, versions.getCommonAncestor().getId());
+
+        var copy = new VersionTable<>(versions);
+        var ancestor = copy.getCommonAncestor();
+
+        Assertions.assertEquals(2, ancestor.getId());
+        for (long i = 5; i <= 7; i++) {
+            Assertions.assertTrue(ancestor.precedes(copy.getVersion(i)));
+            Assertions.assertNotSame(versions.getVersion(i), copy.getVersion(i));
+        }
+        Assertions.assertFalse(copy.getVersion(6).precedes(copy.getVersion(7)));
+        Assertions.assertFalse(copy.getVersion(5).precedes(copy.getVersion(7)));
+        copy.startVersion(copy.getVersion(7), 8);
+        Assertions.assertSame(ancestor, copy.getCommonAncestor());
+        Assertions.assertNull(versions.getVersion(8));
+    }
+
+}
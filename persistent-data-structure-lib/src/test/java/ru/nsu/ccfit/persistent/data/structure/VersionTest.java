@@ -0,0 +1,42 @@
+package ru.nsu.ccfit.persistent.data.structure;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class VersionTest {
+
+    @Test
+    void precedes_linearHistory_byNumber() {
+        var root = Version.root(0);
+        var first = root.createChild(1);
+        var second = first.createChild(2);
+
+        Assertions.assertTrue(root.precedes(second));
+        Assertions.assertTrue(second.precedes(second));
+        Assertions.assertFalse(second.precedes(first));
+        Assertions.assertTrue(first.precedes(first));
+    }
+
+    @Test
+    void precedes_branches_onlyAncestors() {
+        var root = Version.root(0);
+        var first = root.createChild(1);
+        var second = first.createChild(2);
+        var branch = first.createChild(3);
+        var nested = branch.createChild(4);
+        var otherBranch = root.createChild(5);
+
+        Assertions.assertTrue(first.precedes(nested));
+        Assertions.assertTrue(branch.precedes(nested));
+        Assertions.assertFalse(second.precedes(branch));
+        Assertions.assertFalse(second.precedes(nested));
+        Assertions.assertFalse(branch.precedes(second));
+        Assertions.assertFalse(first.precedes(otherBranch));
+        Assertions.assertFalse(nested.precedes(second));
+        Assertions.assertFalse(nested.precedes(first));
+        Assertions.assertSame(first, Version.commonAncestor(second, nested));
+        Assertions.assertSame(root, Version.commonAncestor(nested, otherBranch));
+        Assertions.assertEquals(5, root.getNextId());
+    }
+
+}
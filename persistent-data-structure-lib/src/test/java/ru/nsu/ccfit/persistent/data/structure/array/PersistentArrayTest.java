@@ -1,10 +1,15 @@
 package ru.nsu.ccfit.persistent.data.structure.array;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import ru.nsu.ccfit.persistent.data.structure.Change;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
 
 class PersistentArrayTest {
     PersistentArray<String> persistentArray;
@@ -280,6 +285,65 @@ class PersistentArrayTest {
         Assertions.assertThrows(IndexOutOfBoundsException.class, () -> persistentArray.remove(0));
     }
 
+    @Test
+    void testPersistentArrayApplyBatch() {
+        addABC(3, 5);
+        persistentArray.applyBatch(array -> {
+            for (int i = 0; i < 100; i++) {
+                array.add(String.valueOf(i));
+            }
+            array.set(0, "Q");
+            array.pop();
+        });
+        Assertions.assertEquals(102, persistentArray.size());
+        Assertions.assertEquals("Q", persistentArray.get(0));
+        Assertions.assertEquals("98", persistentArray.get(101));
+        persistentArray.undo();
+        Assertions.assertEquals("[A, B, C]", persistentArray.toString());
+        persistentArray.redo();
+        Assertions.assertEquals(102, persistentArray.size());
+    }
+
+    @Test
+    void testPersistentArrayAddAll() {
+        addABC();
+        persistentArray.addAll(Arrays.asList("D", "E"));
+        Assertions.assertEquals("[A, B, C, D, E]", persistentArray.toString());
+        persistentArray.undo();
+        Assertions.assertEquals("[A, B, C]", persistentArray.toString());
+    }
+
+    @Test
+    void testPersistentArrayGetByVersion() {
+        addABC();
+        persistentArray.set(0, "Q"); // v4
+        persistentArray.pop(); // v5
+        persistentArray.undo();
+        persistentArray.undo();
+
+        Assertions.assertEquals(3, persistentArray.getCurrentVersion());
+        Assertions.assertEquals("A", persistentArray.get(0, 1));
+        Assertions.assertEquals("Q", persistentArray.get(0, 4));
+        Assertions.assertEquals(2, persistentArray.size(5));
+        Assertions.assertEquals("[A, B]", Arrays.toString(persistentArray.toArray(2)));
+        Assertions.assertEquals(0, persistentArray.size(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> persistentArray.get(0, 6));
+        Assertions.assertEquals("[A, B, C]", persistentArray.toString());
+    }
+
+    @Test
+    void testPersistentArraySnapshot() {
+        addABC();
+        var snapshot = persistentArray.snapshot();
+        persistentArray.set(0, "Q");
+        persistentArray.pop();
+        persistentArray.undo();
+        persistentArray.clear();
+
+        Assertions.assertEquals(Arrays.asList("A", "B", "C"), snapshot);
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.set(0, "W"));
+    }
+
     @Test
     void testPersistentArrayClear() {
         addABC();
@@ -288,4 +352,179 @@ class PersistentArrayTest {
         persistentArray.undo();
         Assertions.assertEquals("[A, B, C]", persistentArray.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testPersistentArrayRetentionPolicy() {
+        persistentArray = new PersistentArray<>(32);
+        persistentArray.setRetentionPolicy(RetentionPolicy.keepLast(4));
+        for (int i = 0; i < 20; i++) {
+            persistentArray.add(String.valueOf(i));
+        }
+        persistentArray.compact();
+
+        Assertions.assertEquals(17, persistentArray.getFirstVersion());
+        Assertions.assertEquals(20, persistentArray.getCurrentVersion());
+        Assertions.assertEquals(17, persistentArray.size(17));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> persistentArray.size(16));
+        for (int i = 0; i < 10; i++) {
+            persistentArray.undo();
+        }
+        Assertions.assertEquals(17, persistentArray.getCurrentVersion());
+        Assertions.assertEquals(17, persistentArray.size());
+    }
+
+    @Test
+    void testPersistentArrayPin() {
+        addABC();
+        persistentArray.pin(1);
+        persistentArray.setRetentionPolicy(RetentionPolicy.keepLast(1));
+        persistentArray.set(0, "Q");
+
+        Assertions.assertEquals(1, persistentArray.getFirstVersion());
+        persistentArray.unpin(1);
+        persistentArray.compact();
+        Assertions.assertEquals(4, persistentArray.getFirstVersion());
+        Assertions.assertEquals("[Q, B, C]", persistentArray.toString());
+    }
+
+    @Test
+    void testPersistentArrayBranches() {
+        addABC();
+        persistentArray.undo();
+        persistentArray.set(0, "Q"); // v4, ветка от v2
+        persistentArray.undo();
+        persistentArray.redo();
+
+        Assertions.assertEquals("[Q, B]", persistentArray.toString());
+        Assertions.assertEquals("[A, B, C]", Arrays.toString(persistentArray.toArray(3)));
+        persistentArray.checkout(3);
+        Assertions.assertEquals("[A, B, C]", persistentArray.toString());
+        Assertions.assertEquals(2, persistentArray.getParentVersion(4));
+        Assertions.assertEquals(5, persistentArray.getVersionCount());
+    }
+
+    @Test
+    void testPersistentArrayDiff() {
+        PersistentArray<Integer> array = new PersistentArray<>(3, 2);
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        Random random = new Random(3);
+        for (int i = 0; i < 400; i++) {
+            if (random.nextInt(10) == 0) {
+                array.checkout(random.nextInt(array.getVersionCount()));
+            }
+            List<Integer> expected = new ArrayList<>(expectedVersions.get(array.getCurrentVersion()));
+            if (!expected.isEmpty() && random.nextInt(4) == 0) {
+                expected.remove(expected.size() - 1);
+                array.pop();
+            } else if (!expected.isEmpty() && random.nextBoolean()) {
+                int index = random.nextInt(expected.size());
+                expected.set(index, i % 7);
+                array.set(index, i % 7);
+            } else if (expected.size() < 64) {
+                expected.add(i);
+                array.add(i);
+            }
+            while (expectedVersions.size() < array.getVersionCount()) {
+                expectedVersions.add(expected);
+            }
+        }
+
+        for (int i = 0; i < 200; i++) {
+            int from = random.nextInt(expectedVersions.size());
+            int to = random.nextInt(expectedVersions.size());
+            List<Integer> fromList = expectedVersions.get(from);
+            List<Integer> toList = expectedVersions.get(to);
+            List<Change<Integer, Integer>> expected = new ArrayList<>();
+            for (int index = 0; index < Math.max(fromList.size(), toList.size()); index++) {
+                if (index >= toList.size()) {
+                    expected.add(Change.removed(index, fromList.get(index)));
+                } else if (index >= fromList.size()) {
+                    expected.add(Change.added(index, toList.get(index)));
+                } else if (!fromList.get(index).equals(toList.get(index))) {
+                    expected.add(Change.changed(index, fromList.get(index), toList.get(index)));
+                }
+            }
+            Assertions.assertEquals(expected, array.diff(from, to).toList());
+        }
+    }
+
+    @Test
+    void testPersistentArrayNullElementsAcrossLeaves() {
+        PersistentArray<Integer> array = new PersistentArray<>(3, 2);
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        Random random = new Random(5);
+        for (int i = 0; i < 600; i++) {
+            List<Integer> expected = new ArrayList<>(expectedVersions.get(array.getCurrentVersion()));
+            Integer element = random.nextInt(3) == 0 ? null : i;
+            int operation = random.nextInt(5);
+            if (!expected.isEmpty() && operation == 0) {
+                Assertions.assertEquals(expected.remove(expected.size() - 1), array.pop());
+            } else if (!expected.isEmpty() && operation == 1) {
+                int index = random.nextInt(expected.size());
+                Assertions.assertEquals(expected.remove(index), array.remove(index));
+            } else if (!expected.isEmpty() && operation == 2 && expected.size() < 64) {
+                int index = random.nextInt(expected.size());
+                expected.add(index, element);
+                array.add(index, element);
+            } else if (!expected.isEmpty() && operation == 3) {
+                int index = random.nextInt(expected.size());
+                expected.set(index, element);
+                array.set(index, element);
+            } else if (expected.size() < 64) {
+                expected.add(element);
+                array.add(element);
+            }
+            while (expectedVersions.size() < array.getVersionCount()) {
+                expectedVersions.add(expected);
+            }
+        }
+
+        for (int version = 0; version < array.getVersionCount(); version++) {
+            Assertions.assertArrayEquals(expectedVersions.get(version).toArray(), array.toArray(version));
+        }
+    }
+
+    @Test
+    void testPersistentArrayAppendAndPopAcrossTails() {
+        PersistentArray<Integer> array = new PersistentArray<>(4, 2);
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            if (random.nextInt(8) == 0) {
+                array.checkout(random.nextInt(array.getVersionCount()));
+            }
+            List<Integer> expected = new ArrayList<>(expectedVersions.get(array.getCurrentVersion()));
+            int count = random.nextInt(12);
+            if (!expected.isEmpty() && random.nextInt(3) == 0) {
+                for (int j = 0; j < count && !expected.isEmpty(); j++) {
+                    Assertions.assertEquals(expected.remove(expected.size() - 1), array.pop());
+                    expectedVersions.add(new ArrayList<>(expected));
+                }
+            } else if (random.nextBoolean()) {
+                List<Integer> added = new ArrayList<>();
+                for (int j = 0; j < count && expected.size() + added.size() < 256; j++) {
+                    added.add(i * 100 + j);
+                }
+                if (!added.isEmpty()) {
+                    array.addAll(added);
+                    expected.addAll(added);
+                    expectedVersions.add(expected);
+                }
+            } else {
+                for (int j = 0; j < count && expected.size() < 256; j++) {
+                    array.add(i * 100 + j);
+                    expected.add(i * 100 + j);
+                    expectedVersions.add(new ArrayList<>(expected));
+                }
+            }
+            Assertions.assertEquals(expectedVersions.size(), array.getVersionCount());
+        }
+
+        for (int version = 0; version < array.getVersionCount(); version++) {
+            Assertions.assertArrayEquals(expectedVersions.get(version).toArray(), array.toArray(version));
+        }
+    }
+}
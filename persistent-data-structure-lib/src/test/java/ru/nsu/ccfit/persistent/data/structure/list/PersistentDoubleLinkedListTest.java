@@ -4,10 +4,12 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -337,6 +339,272 @@ class PersistentDoubleLinkedListTest {
         Assertions.assertEquals(2, list.get(0));
     }
 
+    @Test
+    void size_afterUndoRedo_trackedPerVersion() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.add(1); // v1
+        list.add(2); // v2
+        list.set(0, 3); // v3
+        list.remove(1); // v4
+        list.clear(); // v5
+
+        Assertions.assertEquals(0, list.size());
+        list.undo();
+        Assertions.assertEquals(1, list.size());
+        list.undo();
+        Assertions.assertEquals(2, list.size());
+        list.undo();
+        Assertions.assertEquals(2, list.size());
+        list.undo();
+        Assertions.assertEquals(1, list.size());
+        list.undo();
+        Assertions.assertTrue(list.isEmpty());
+        list.redo();
+        Assertions.assertEquals(1, list.size());
+        list.add(4);
+        Assertions.assertEquals(2, list.size());
+    }
+
+    @Test
+    void applyBatch_manyWrites_singleVersion() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.add(0);
+        list.applyBatch(l -> {
+            for (int i = 1; i < 100; i++) {
+                l.add(i);
+            }
+            l.set(0, -1);
+            l.remove(99);
+        });
+
+        Assertions.assertEquals(99, list.size());
+        Assertions.assertEquals(-1, list.get(0));
+        Assertions.assertEquals(98, list.get(98));
+        list.undo();
+        Assertions.assertEquals(List.of(0), new ArrayList<>(list));
+        list.redo();
+        Assertions.assertEquals(99, list.size());
+    }
+
+    @Test
+    void get_byVersion_doesNotMoveCurrentVersion() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.add(1); // v1
+        list.add(2); // v2
+        list.set(0, 3); // v3
+        list.undo(); // to v2
+
+        Assertions.assertEquals(1, list.get(0, 1));
+        Assertions.assertEquals(3, list.get(0, 3));
+        Assertions.assertEquals(List.of(3, 2), list.toList(3));
+        Assertions.assertEquals(List.of(), list.toList(0));
+        Assertions.assertEquals(1, list.size(1));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> list.get(1, 1));
+        Assertions.assertEquals(2, list.getCurrentVersion());
+        Assertions.assertEquals(List.of(1, 2), new ArrayList<>(list));
+    }
+
+    @Test
+    void snapshot_afterUndoAndNewBranch_unchanged() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            list.add(i);
+        }
+        var snapshot = list.snapshot();
+        list.undo();
+        list.undo();
+        list.set(0, -1);
+        list.add(100);
+
+        Assertions.assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), snapshot);
+        Assertions.assertEquals(List.of(-1, 1, 2, 3, 4, 5, 6, 7, 100), new ArrayList<>(list));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.add(1));
+    }
+
+    @Test
+    void retentionPolicy_keepLast_discardsOlderVersions() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.setRetentionPolicy(RetentionPolicy.keepLast(5));
+        List<Integer> expected = new ArrayList<>();
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0 && !expected.isEmpty()) {
+                list.set(0, i);
+                expected.set(0, i);
+            } else {
+                list.add(i);
+                expected.add(i);
+            }
+            expectedVersions.add(List.copyOf(expected));
+        }
+
+        Assertions.assertEquals(96, list.getFirstVersion());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> list.toList(95));
+        for (int version = 96; version <= 100; version++) {
+            Assertions.assertEquals(expectedVersions.get(version), list.toList(version));
+        }
+        for (int i = 0; i < 10; i++) {
+            list.undo();
+        }
+        Assertions.assertEquals(96, list.getCurrentVersion());
+        list.add(-1);
+        Assertions.assertEquals(-1, list.get(list.size() - 1));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2})
+    void retentionPolicy_writesAfterUndo_modificationLogBounded(int slots) {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>(slots);
+        list.setRetentionPolicy(RetentionPolicy.keepLast(5));
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add(i);
+            expected.add(i);
+        }
+        list.set(50, -1);
+        list.undo();
+        var random = new Random(slots);
+        for (int i = 0; i < 5000; i++) {
+            var index = random.nextInt(expected.size());
+            list.set(index, i);
+            expected.set(index, i);
+        }
+
+        Assertions.assertTrue(list.getModificationLogSize() < 100, "log size " + list.getModificationLogSize());
+        Assertions.assertEquals(expected, new ArrayList<>(list));
+    }
+
+    @Test
+    void compact_liveSnapshot_retained() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.add(1);
+        list.add(2);
+        var snapshot = list.snapshot();
+        list.set(0, 3);
+        list.add(4);
+        list.setRetentionPolicy(RetentionPolicy.keepLast(1));
+
+        Assertions.assertEquals(2, list.getFirstVersion());
+        Assertions.assertEquals(List.of(1, 2), snapshot);
+        Assertions.assertEquals(List.of(3, 2, 4), new ArrayList<>(list));
+    }
+
+    @Test
+    void checkout_forkScenarios_allBranchesPreserved() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        for (int i = 0; i < 20; i++) {
+            list.add(i);
+        }
+        long baseline = list.getCurrentVersion();
+        List<Long> scenarios = new ArrayList<>();
+        for (int scenario = 0; scenario < 50; scenario++) {
+            list.checkout(baseline);
+            list.set(scenario % 20, -scenario);
+            list.remove(0);
+            list.add(100 + scenario);
+            scenarios.add(list.getCurrentVersion());
+        }
+
+        for (int scenario = 0; scenario < 50; scenario++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                expected.add(i);
+            }
+            expected.set(scenario % 20, -scenario);
+            expected.remove(0);
+            expected.add(100 + scenario);
+            Assertions.assertEquals(expected, list.toList(scenarios.get(scenario)));
+        }
+        Assertions.assertEquals(20, list.size(baseline));
+    }
+
+    @Test
+    void undoThenEdit_redoReturnsToOriginalBranch() {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>();
+        list.add(1); // v1
+        list.add(2); // v2
+        list.undo();
+        list.add(3); // v3, ветка от v1
+        list.undo();
+        list.redo();
+        Assertions.assertEquals(List.of(1, 3), new ArrayList<>(list));
+        list.checkout(2);
+        Assertions.assertEquals(List.of(1, 2), new ArrayList<>(list));
+        Assertions.assertEquals(1, list.getParentVersion(3));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4})
+    void modificationSlots_randomCheckouts_sameAsArrayList(int slots) {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>(slots);
+        list.setRetentionPolicy(RetentionPolicy.keepLast(100));
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        var random = new Random(21);
+        for (int i = 0; i < 1000; i++) {
+            if (random.nextInt(5) == 0) {
+                list.checkout(list.getFirstVersion() + random.nextInt((int) (list.getLastVersion() - list.getFirstVersion() + 1)));
+            }
+            List<Integer> expected = new ArrayList<>(expectedVersions.get((int) list.getCurrentVersion()));
+            if (expected.isEmpty() || random.nextInt(3) == 0) {
+                list.add(i);
+                expected.add(i);
+            } else if (random.nextInt(4) == 0) {
+                int index = random.nextInt(expected.size());
+                list.remove(index);
+                expected.remove(index);
+            } else {
+                int index = random.nextInt(expected.size());
+                list.set(index, i);
+                expected.set(index, i);
+            }
+            expectedVersions.add(expected);
+        }
+
+        for (long version = list.getFirstVersion(); version <= list.getLastVersion(); version++) {
+            Assertions.assertEquals(expectedVersions.get((int) version), list.toList(version));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3})
+    void insertAndRemove_randomCheckouts_previousLinksFollowVersions(int slots) {
+        PersistentDoubleLinkedList<Integer> list = new PersistentDoubleLinkedList<>(slots);
+        List<List<Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(List.of());
+        var random = new Random(23);
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(4) == 0) {
+                list.checkout(random.nextInt((int) list.getLastVersion() + 1));
+            }
+            List<Integer> expected = new ArrayList<>(expectedVersions.get((int) list.getCurrentVersion()));
+            int operation = random.nextInt(4);
+            if (expected.isEmpty() || operation == 0) {
+                list.add(i);
+                expected.add(i);
+            } else if (operation == 1) {
+                // элемент вставляется после элемента с индексом
+                int index = random.nextInt(expected.size());
+                list.add(index, i);
+                expected.add(index + 1, i);
+            } else if (operation == 2) {
+                int index = random.nextInt(expected.size());
+                list.remove(index);
+                expected.remove(index);
+            } else {
+                int index = random.nextInt(expected.size());
+                list.set(index, i);
+                expected.set(index, i);
+            }
+            expectedVersions.add(expected);
+        }
+
+        for (long version = 0; version <= list.getLastVersion(); version++) {
+            Assertions.assertEquals(expectedVersions.get((int) version), list.toList(version));
+        }
+    }
+
     private <T> void assertSameModifyEffect(
             Consumer<List<Integer>> modifier,
             Function<List<Integer>, T> effectFeature,
@@ -0,0 +1,113 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class ConcurrentPersistentMapTest {
+
+    @Test
+    void randomOperations_sameAsTreeMap() {
+        ConcurrentPersistentMap<Integer, Integer> map = new ConcurrentPersistentMap<>();
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        var random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                Assertions.assertEquals(expectedMap.remove(key), map.remove(key));
+            } else {
+                Assertions.assertEquals(expectedMap.put(key, i), map.put(key, i));
+            }
+        }
+
+        Assertions.assertEquals(expectedMap, map);
+        Assertions.assertEquals(new ArrayList<>(expectedMap.keySet()), new ArrayList<>(map.keySet()));
+    }
+
+    @Test
+    void undo_redo_success() {
+        ConcurrentPersistentMap<String, Integer> map = new ConcurrentPersistentMap<>();
+        map.put("a", 1); // v1
+        map.put("b", 2); // v2
+        map.remove("a"); // v3
+
+        map.undo();
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), map);
+        map.undo();
+        map.undo();
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+        map.redo();
+        map.put("c", 3);
+        map.redo();
+        Assertions.assertEquals(Map.of("a", 1, "c", 3), map);
+        Assertions.assertEquals(2, map.getCurrentVersion());
+    }
+
+    @Test
+    void conditionalOperations_success() {
+        ConcurrentPersistentMap<String, Integer> map = new ConcurrentPersistentMap<>();
+
+        Assertions.assertNull(map.putIfAbsent("a", 1));
+        Assertions.assertEquals(1, map.putIfAbsent("a", 2));
+        Assertions.assertFalse(map.replace("a", 2, 3));
+        Assertions.assertTrue(map.replace("a", 1, 3));
+        Assertions.assertFalse(map.remove("a", 1));
+        Assertions.assertTrue(map.remove("a", 3));
+        Assertions.assertThrows(NullPointerException.class, () -> map.put("a", null));
+        Assertions.assertThrows(NullPointerException.class, () -> map.put(null, 1));
+    }
+
+    @Test
+    void snapshot_afterModification_unchanged() {
+        ConcurrentPersistentMap<String, Integer> map = new ConcurrentPersistentMap<>();
+        map.put("a", 1);
+        var snapshot = map.snapshot();
+        map.put("b", 2);
+        map.clear();
+
+        Assertions.assertEquals(Map.of("a", 1), snapshot);
+        Assertions.assertTrue(map.isEmpty());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.put("c", 3));
+    }
+
+    @Test
+    void merge_concurrentWriters_noLostUpdates() throws Exception {
+        ConcurrentPersistentMap<Integer, Integer> map = new ConcurrentPersistentMap<>();
+        int threads = 8;
+        int increments = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        map.merge(i % 10, 1, Integer::sum);
+                        map.put(thread * increments + i + 100, i);
+                    }
+                }));
+            }
+            for (var writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int key = 0; key < 10; key++) {
+            Assertions.assertEquals(threads * increments / 10, map.get(key));
+        }
+        Assertions.assertEquals(10 + threads * increments, map.size());
+        Assertions.assertEquals(2L * threads * increments, map.getCurrentVersion());
+    }
+
+}
@@ -2,12 +2,19 @@ package ru.nsu.ccfit.persistent.data.structure.map;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -295,6 +302,93 @@ class FatNodePersistentMapTest {
         assertSameModifyEffect(modifier, effectFeature);
     }
 
+    @ParameterizedTest
+    @MethodSource("provideModifiersForRemove")
+    void remove_toNotEmpty_success(Consumer<Map<String, Integer>> modifier) {
+        Function<Map<String, Integer>, Set<Map.Entry<String, Integer>>> effectFeature = Map::entrySet;
+
+        assertSameModifyEffect(modifier, effectFeature);
+    }
+
+    @Test
+    void remove_absentKey_keepsVersion() {
+        FatNodePersistentMap<String, Integer> map = new FatNodePersistentMap<>();
+        map.put("a", 1);
+
+        Assertions.assertNull(map.remove("b"));
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void removeAndPut_randomWithUndo_everyVersionReadable() {
+        FatNodePersistentMap<Integer, Integer> map = new FatNodePersistentMap<>();
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var current = 0;
+        var random = new Random(20);
+        for (var i = 0; i < 3000; i++) {
+            if (random.nextInt(10) == 0 && current > 0) {
+                // Отменяем несколько версий: следующее изменение отбросит их.
+                var steps = 1 + random.nextInt(Math.min(current, 5));
+                for (var j = 0; j < steps; j++) {
+                    map.undo();
+                }
+                current -= steps;
+                continue;
+            }
+            var expected = new TreeMap<>(expectedVersions.get(current));
+            var key = random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                Assertions.assertEquals(expected.remove(key), map.remove(key));
+                if (expected.size() == expectedVersions.get(current).size()) {
+                    continue;
+                }
+            } else {
+                Assertions.assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            expectedVersions.subList(current + 1, expectedVersions.size()).clear();
+            expectedVersions.add(expected);
+            current++;
+        }
+
+        for (var i = current; i > 0; i--) {
+            map.undo();
+        }
+        for (var i = 0; i <= current; i++) {
+            Assertions.assertEquals(expectedVersions.get(i), map);
+            Assertions.assertEquals(new ArrayList<>(expectedVersions.get(i).entrySet()), new ArrayList<>(map.entrySet()));
+            map.redo();
+        }
+    }
+
+    @Test
+    void entrySet_degenerateTree_iteratesWithoutRecursion() throws InterruptedException {
+        FatNodePersistentMap<Integer, Integer> map = new FatNodePersistentMap<>();
+        for (var i = 0; i < 10_000; i++) {
+            map.put(i, i);
+        }
+
+        // Малый стек потока: рекурсивный обход дерева-цепочки глубины 10 000 его переполняет.
+        var iterated = new AtomicInteger();
+        var failure = new AtomicReference<Throwable>();
+        var thread = new Thread(null, () -> {
+            try {
+                for (var entry : map.entrySet()) {
+                    Assertions.assertEquals(iterated.getAndIncrement(), entry.getKey());
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "iterate", 64 * 1024);
+        thread.start();
+        thread.join();
+
+        Assertions.assertNull(failure.get());
+        Assertions.assertEquals(10_000, iterated.get());
+        Assertions.assertEquals(10_000, map.entrySet().size());
+    }
+
     @Test
     void values_toEmpty_success() {
         Consumer<Map<String, Integer>> modifier = (m) -> {};
@@ -341,6 +435,27 @@ class FatNodePersistentMapTest {
         assertSameModifyEffect(modifier, effectFeature);
     }
 
+    @Test
+    void size_afterUndoRedo_trackedPerVersion() {
+        FatNodePersistentMap<String, Integer> map = new FatNodePersistentMap<>();
+        map.put("a", 1); // v1
+        map.put("b", 2); // v2
+        map.put("a", 3); // v3
+        map.clear(); // v4
+
+        Assertions.assertEquals(0, map.size());
+        map.undo();
+        Assertions.assertEquals(2, map.size());
+        map.undo();
+        Assertions.assertEquals(2, map.size());
+        map.undo();
+        Assertions.assertEquals(1, map.size());
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+        map.redo();
+        Assertions.assertEquals(1, map.size());
+    }
+
     private <T> void assertSameModifyEffect(
             Consumer<Map<String, Integer>> modifier,
             Function<Map<String, Integer>, T> effectFeature) {
@@ -0,0 +1,107 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+class LongLongPersistentMapTest {
+
+    @Test
+    void get_noEntry_returnsDefault() {
+        LongLongPersistentMap map = new LongLongPersistentMap();
+        map.put(1L, 10L);
+
+        Assertions.assertEquals(0L, map.get(2L));
+        Assertions.assertEquals(-1L, map.getOrDefault(2L, -1L));
+        Assertions.assertFalse(map.containsKey(2L));
+        Assertions.assertTrue(map.containsKey(1L));
+    }
+
+    @Test
+    void put_existedKey_returnsPrevious() {
+        LongLongPersistentMap map = new LongLongPersistentMap();
+
+        Assertions.assertEquals(0L, map.put(1L, 10L));
+        Assertions.assertEquals(10L, map.put(1L, 20L));
+        Assertions.assertEquals(1, map.size());
+        Assertions.assertEquals(20L, map.remove(1L));
+        Assertions.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void randomOperations_everyVersionSameAsHashMap() {
+        LongLongPersistentMap map = new LongLongPersistentMap();
+        HashMap<Long, Long> expectedMap = new HashMap<>();
+        List<Map<Long, Long>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(Map.of());
+        var random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            long key = random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                if (!expectedMap.containsKey(key)) {
+                    continue;
+                }
+                Assertions.assertEquals(expectedMap.remove(key), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                Assertions.assertEquals(expectedMap.getOrDefault(key, 0L), map.put(key, value));
+                expectedMap.put(key, value);
+            }
+            expectedVersions.add(new HashMap<>(expectedMap));
+        }
+
+        for (int version = expectedVersions.size() - 1; version >= 0; version--) {
+            assertSameContent(expectedVersions.get(version), map);
+            map.undo();
+        }
+        for (int version = 1; version < expectedVersions.size(); version++) {
+            map.redo();
+            assertSameContent(expectedVersions.get(version), map);
+        }
+    }
+
+    @Test
+    void redo_afterModification_doNotChangeState() {
+        LongLongPersistentMap map = new LongLongPersistentMap();
+        for (long i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        for (int i = 0; i < 50; i++) {
+            map.undo();
+        }
+        map.put(-1L, -1L);
+        map.redo();
+
+        Assertions.assertEquals(51, map.size());
+        Assertions.assertEquals(-1L, map.get(-1L));
+        Assertions.assertFalse(map.containsKey(50L));
+        Assertions.assertEquals(49L, map.get(49L));
+    }
+
+    @Test
+    void clear_thenUndo_restoresEntries() {
+        LongLongPersistentMap map = new LongLongPersistentMap();
+        map.put(1L, 1L);
+        map.put(2L, 2L);
+        map.clear();
+
+        Assertions.assertTrue(map.isEmpty());
+        map.undo();
+        Assertions.assertEquals(2, map.size());
+        Assertions.assertEquals(2L, map.get(2L));
+    }
+
+    private void assertSameContent(Map<Long, Long> expected, LongLongPersistentMap actual) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (long key = 0; key < 300; key++) {
+            Assertions.assertEquals(expected.containsKey(key), actual.containsKey(key));
+            Assertions.assertEquals(expected.getOrDefault(key, 0L), actual.get(key));
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package ru.nsu.ccfit.persistent.data.structure.map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+class PersistentHashMapTest {
+
+    /**
+     * Ключ без естественного порядка с управляемым хешем.
+     */
+    private record CollidingKey(String name, int hash) {
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    private static Stream<Consumer<Map<Object, Integer>>> provideModifiers() {
+        return Stream.of(
+                (m) -> {},
+                (m) -> m.put("a", 1),
+                (m) -> {
+                    m.put("a", 1);
+                    m.put("a", 2);
+                },
+                (m) -> {
+                    m.put("a", 1);
+                    m.remove("a");
+                },
+                (m) -> {
+                    m.put("a", 1);
+                    m.put("b", 2);
+                    m.remove("c");
+                },
+                (m) -> {
+                    for (int i = 0; i < 2000; i++) {
+                        m.put(i, i);
+                    }
+                    for (int i = 0; i < 2000; i += 3) {
+                        m.remove(i);
+                    }
+                },
+                (m) -> {
+                    m.put(new CollidingKey("a", 7), 1);
+                    m.put(new CollidingKey("b", 7), 2);
+                    m.put(new CollidingKey("c", 7), 3);
+                    m.put(new CollidingKey("d", 7 + 32), 4);
+                    m.remove(new CollidingKey("b", 7));
+                },
+                (m) -> {
+                    m.put(new CollidingKey("a", 7), 1);
+                    m.put(new CollidingKey("b", 7), 2);
+                    m.remove(new CollidingKey("a", 7));
+                    m.remove(new CollidingKey("b", 7));
+                },
+                Map::clear
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideModifiers")
+    void entrySet_sameAsHashMap(Consumer<Map<Object, Integer>> modifier) {
+        assertSameModifyEffect(modifier, (m) -> new HashSet<>(m.entrySet()));
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideModifiers")
+    void size_sameAsHashMap(Consumer<Map<Object, Integer>> modifier) {
+        assertSameModifyEffect(modifier, Map::size);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideModifiers")
+    void get_sameAsHashMap(Consumer<Map<Object, Integer>> modifier) {
+        assertSameModifyEffect(modifier, (m) -> List.of(
+                m.containsKey("a"),
+                m.containsKey(new CollidingKey("c", 7)),
+                m.containsKey(1),
+                m.containsKey(3)
+        ));
+    }
+
+    @Test
+    void put_existedKey_returnsPrevious() {
+        PersistentHashMap<String, Integer> map = new PersistentHashMap<>();
+
+        Assertions.assertNull(map.put("a", 1));
+        Assertions.assertEquals(1, map.put("a", 2));
+        Assertions.assertEquals(2, map.remove("a"));
+        Assertions.assertNull(map.remove("a"));
+    }
+
+    @Test
+    void put_uuidKeys_success() {
+        PersistentHashMap<UUID, Integer> map = new PersistentHashMap<>();
+        List<UUID> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            var key = UUID.randomUUID();
+            keys.add(key);
+            map.put(key, i);
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            Assertions.assertEquals(i, map.get(keys.get(i)));
+        }
+    }
+
+    @Test
+    void undo_twice_success() {
+        PersistentHashMap<String, Integer> map = new PersistentHashMap<>();
+        map.put("a", 1);
+        map.put("b", 2);
+
+        map.undo();
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+        map.redo();
+        Assertions.assertEquals(Map.of("a", 1), map);
+        map.redo();
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), map);
+    }
+
+    @Test
+    void redo_afterModification_doNotChangeState() {
+        PersistentHashMap<String, Integer> map = new PersistentHashMap<>();
+        map.put("b", 2); // v1
+        map.put("a", 1); // v2
+        map.undo(); // to v1
+        map.put("c", 3); // v2
+        map.redo(); // should still be v2
+
+        Assertions.assertEquals(Map.of("b", 2, "c", 3), map);
+    }
+
+    @Test
+    void iterator_remove_createsNewVersion() {
+        PersistentHashMap<Integer, Integer> map = new PersistentHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+
+        map.keySet().removeIf(k -> k % 2 == 0);
+        Assertions.assertEquals(Set.of(1, 3, 5, 7, 9), map.keySet());
+        map.undo();
+        Assertions.assertEquals(Set.of(1, 3, 5, 7, 8, 9), map.keySet());
+    }
+
+    private <T> void assertSameModifyEffect(
+            Consumer<Map<Object, Integer>> modifier,
+            Function<Map<Object, Integer>, T> effectFeature) {
+        PersistentHashMap<Object, Integer> map = new PersistentHashMap<>();
+        HashMap<Object, Integer> expectedMap = new HashMap<>();
+        modifier.accept(map);
+        modifier.accept(expectedMap);
+
+        var actualEffect = effectFeature.apply(map);
+        var expectedEffect = effectFeature.apply(expectedMap);
+
+        Assertions.assertEquals(expectedEffect, actualEffect);
+    }
+
+}
@@ -4,14 +4,27 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.nsu.ccfit.persistent.data.structure.Change;
+import ru.nsu.ccfit.persistent.data.structure.RetentionPolicy;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 class PersistentMapTest {
@@ -387,6 +400,1008 @@ class PersistentMapTest {
         assertSameModifyEffect(modifier, effectFeature);
     }
 
+    @Test
+    void put_sequentialKeys_everyVersionReadable() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        List<Map<Integer, Integer>> expectedVersions = new ArrayList<>();
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        expectedVersions.add(new HashMap<>(expectedMap));
+        for (int i = 0; i < 500; i++) {
+            map.put(i, i);
+            expectedMap.put(i, i);
+            expectedVersions.add(new HashMap<>(expectedMap));
+        }
+        for (int i = 0; i < 500; i += 3) {
+            map.remove(i);
+            expectedMap.remove(i);
+            expectedVersions.add(new HashMap<>(expectedMap));
+        }
+
+        for (int version = expectedVersions.size() - 1; version >= 0; version--) {
+            Assertions.assertEquals(expectedVersions.get(version), new HashMap<>(map));
+            map.undo();
+        }
+        for (int version = 1; version < expectedVersions.size(); version++) {
+            map.redo();
+            Assertions.assertEquals(expectedVersions.get(version), new HashMap<>(map));
+        }
+    }
+
+    @Test
+    void put_afterUndo_branchesFromUndoneVersion() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        for (int i = 0; i < 50; i++) {
+            map.undo();
+        }
+        for (int i = 100; i > 50; i--) {
+            map.put(-i, i);
+        }
+
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        for (int i = 0; i < 50; i++) {
+            expectedMap.put(i, i);
+        }
+        for (int i = 100; i > 50; i--) {
+            expectedMap.put(-i, i);
+        }
+        Assertions.assertEquals(expectedMap, new HashMap<>(map));
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(expectedMap.get(i), map.get(i));
+        }
+    }
+
+    @Test
+    void size_afterUndoRedo_trackedPerVersion() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1); // v1
+        map.put("b", 2); // v2
+        map.put("a", 3); // v3
+        map.remove("b"); // v4
+        map.clear(); // v5
+
+        Assertions.assertEquals(0, map.size());
+        map.undo();
+        Assertions.assertEquals(1, map.size());
+        map.undo();
+        Assertions.assertEquals(2, map.size());
+        map.undo();
+        Assertions.assertEquals(2, map.size());
+        map.undo();
+        Assertions.assertEquals(1, map.size());
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+        map.redo();
+        map.redo();
+        Assertions.assertEquals(2, map.size());
+        map.remove("c");
+        Assertions.assertEquals(2, map.size());
+    }
+
+    @Test
+    void navigation_sameAsTreeMap() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        for (int i = 0; i < 100; i += 5) {
+            map.put(i, -i);
+            expectedMap.put(i, -i);
+        }
+
+        Assertions.assertEquals(expectedMap.firstKey(), map.firstKey());
+        Assertions.assertEquals(expectedMap.lastEntry(), map.lastEntry());
+        for (int key = -3; key < 103; key++) {
+            Assertions.assertEquals(expectedMap.floorEntry(key), map.floorEntry(key));
+            Assertions.assertEquals(expectedMap.ceilingEntry(key), map.ceilingEntry(key));
+            Assertions.assertEquals(expectedMap.lowerKey(key), map.lowerKey(key));
+            Assertions.assertEquals(expectedMap.higherKey(key), map.higherKey(key));
+        }
+        Assertions.assertEquals(new ArrayList<>(expectedMap.keySet()), new ArrayList<>(map.keySet()));
+        Assertions.assertEquals(new ArrayList<>(expectedMap.values()), new ArrayList<>(map.values()));
+        Assertions.assertEquals(
+                new ArrayList<>(expectedMap.descendingKeySet()),
+                new ArrayList<>(map.descendingKeySet())
+        );
+    }
+
+    @Test
+    void rangeViews_sameAsTreeMap() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        for (int i = 0; i < 100; i += 5) {
+            map.put(i, -i);
+            expectedMap.put(i, -i);
+        }
+
+        List<Function<NavigableMap<Integer, Integer>, NavigableMap<Integer, Integer>>> views = List.of(
+                (m) -> m.headMap(50, false),
+                (m) -> m.headMap(50, true),
+                (m) -> m.tailMap(42, true),
+                (m) -> m.subMap(12, true, 70, false),
+                (m) -> m.subMap(10, false, 70, true).descendingMap(),
+                (m) -> m.descendingMap().headMap(30, true),
+                (m) -> m.descendingMap().subMap(80, false, 20, true).tailMap(60, true)
+        );
+        for (var view : views) {
+            var actual = view.apply(map);
+            var expected = view.apply(expectedMap);
+            Assertions.assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(actual.entrySet()));
+            Assertions.assertEquals(expected.size(), actual.size());
+            Assertions.assertEquals(expected.firstEntry(), actual.firstEntry());
+            Assertions.assertEquals(expected.lastEntry(), actual.lastEntry());
+            for (int key = 0; key < 100; key += 7) {
+                Assertions.assertEquals(expected.floorKey(key), actual.floorKey(key));
+                Assertions.assertEquals(expected.higherKey(key), actual.higherKey(key));
+                Assertions.assertEquals(expected.get(key), actual.get(key));
+            }
+        }
+    }
+
+    @Test
+    void headMap_putOutOfRange_throws() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        var head = map.headMap(10);
+
+        head.put(5, 5);
+        Assertions.assertEquals(5, map.get(5));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> head.put(10, 10));
+        map.undo();
+        Assertions.assertTrue(head.isEmpty());
+    }
+
+    @Test
+    void iterator_remove_createsNewVersion() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+
+        map.keySet().removeIf(k -> k % 2 == 0);
+        Assertions.assertEquals(List.of(1, 3, 5, 7, 9), new ArrayList<>(map.keySet()));
+        map.undo();
+        Assertions.assertEquals(List.of(1, 3, 5, 7, 8, 9), new ArrayList<>(map.keySet()));
+    }
+
+    @Test
+    void applyBatch_manyWrites_singleVersion() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.put(-1, -1);
+        TreeMap<Integer, Integer> expected = new TreeMap<>(map);
+        map.applyBatch(m -> {
+            for (int i = 0; i < 200; i++) {
+                m.put(i, i);
+            }
+            for (int i = 0; i < 200; i += 3) {
+                m.remove(i);
+            }
+            m.put(1, 100);
+        });
+        for (int i = 0; i < 200; i++) {
+            if (i % 3 != 0) {
+                expected.put(i, i);
+            }
+        }
+        expected.put(1, 100);
+
+        Assertions.assertEquals(expected, map);
+        map.undo();
+        Assertions.assertEquals(Map.of(-1, -1), map);
+        map.redo();
+        Assertions.assertEquals(expected, map);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4})
+    void applyBatch_modificationSlots_sameVersionWritesVisible(int slots) {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(slots);
+        map.put(0, 0);
+        map.put(3, 3);
+        map.applyBatch(batch -> {
+            batch.put(4, 4);
+            batch.remove(3);
+        });
+        Assertions.assertEquals(Map.of(0, 0, 4, 4), map);
+        Assertions.assertEquals(4, map.get(4));
+
+        var expected = new TreeMap<>(map);
+        var random = new Random(slots);
+        for (int round = 0; round < 200; round++) {
+            map.applyBatch(batch -> {
+                for (int i = 0; i < 10; i++) {
+                    var key = random.nextInt(40);
+                    if (random.nextInt(3) == 0) {
+                        batch.remove(key);
+                        expected.remove(key);
+                    } else {
+                        batch.put(key, i);
+                        expected.put(key, i);
+                    }
+                }
+            });
+            Assertions.assertEquals(expected, map);
+        }
+    }
+
+    @Test
+    void applyBatch_undoInside_throws() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.put(1, 1);
+
+        Assertions.assertThrows(IllegalStateException.class, () -> map.applyBatch(m -> {
+            m.put(2, 2);
+            m.undo();
+        }));
+        Assertions.assertEquals(Map.of(1, 1, 2, 2), map);
+        map.undo();
+        Assertions.assertEquals(Map.of(1, 1), map);
+    }
+
+    @Test
+    void fromSorted_sameAsTreeMap() {
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put(i * 2, i);
+        }
+        PersistentMap<Integer, Integer> map = PersistentMap.fromSorted(expected.entrySet().iterator());
+
+        Assertions.assertEquals(expected, map);
+        Assertions.assertEquals(expected.firstEntry(), map.firstEntry());
+        Assertions.assertEquals(expected.floorKey(501), map.floorKey(501));
+        map.put(1, -1);
+        map.remove(0);
+        expected.put(1, -1);
+        expected.remove(0);
+        Assertions.assertEquals(expected, map);
+        map.undo();
+        map.undo();
+        Assertions.assertEquals(1000, map.size());
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void fromSorted_unsortedKeys_throws() {
+        var entries = List.of(Map.entry(1, 1), Map.entry(3, 3), Map.entry(2, 2));
+
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> PersistentMap.fromSorted(entries.iterator())
+        );
+    }
+
+    @Test
+    void get_byVersion_doesNotMoveCurrentVersion() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1); // v1
+        map.put("b", 2); // v2
+        map.put("a", 3); // v3
+        map.remove("b"); // v4
+        map.undo(); // to v3
+
+        Assertions.assertEquals(1, map.get("a", 1));
+        Assertions.assertEquals(3, map.get("a", 4));
+        Assertions.assertNull(map.get("b", 1));
+        Assertions.assertFalse(map.containsKey("b", 4));
+        Assertions.assertEquals(0, map.size(0));
+        Assertions.assertEquals(2, map.size(2));
+        Assertions.assertEquals(Map.of("a", 1, "b", 2).entrySet(), map.entrySet(2));
+        Assertions.assertEquals(3, map.getCurrentVersion());
+        Assertions.assertEquals(4, map.getLastVersion());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> map.get("a", 5));
+    }
+
+    @Test
+    void snapshot_afterUndoAndNewBranch_unchanged() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        var snapshot = map.snapshot();
+        var expected = new TreeMap<>(map);
+        for (int i = 0; i < 50; i++) {
+            map.undo();
+        }
+        for (int i = 0; i < 100; i++) {
+            map.put(i, -i);
+        }
+        map.remove(0);
+
+        Assertions.assertEquals(expected, snapshot);
+        Assertions.assertEquals(99, map.size());
+        Assertions.assertEquals(-1, map.get(1));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.put(1, 1));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.keySet().clear());
+    }
+
+    @Test
+    void snapshot_readConcurrentlyWithWriter_unchanged() throws Exception {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        var snapshot = map.snapshot();
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(executor.submit(() -> {
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = 0; i < 1000; i++) {
+                            if (snapshot.get(i) != i) {
+                                return false;
+                            }
+                        }
+                    }
+                    return snapshot.size() == 1000;
+                }));
+            }
+            for (int i = 0; i < 5000; i++) {
+                map.put(i % 1500, -i);
+            }
+            for (var reader : readers) {
+                Assertions.assertTrue(reader.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void undoThenEdit_repeatedBranches_sameAsTreeMap() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            if (i % 10 == 9) {
+                int steps = random.nextInt(5) + 1;
+                for (int step = 0; step < steps; step++) {
+                    map.undo();
+                }
+            }
+            var expected = new TreeMap<>(expectedVersions.get((int) map.getCurrentVersion()));
+            int key = random.nextInt(200);
+            if (random.nextBoolean() && expected.containsKey(key)) {
+                expected.remove(key);
+                map.remove(key);
+            } else {
+                expected.put(key, i);
+                map.put(key, i);
+            }
+            expectedVersions.add(expected);
+            Assertions.assertEquals(expectedVersions.size() - 1, map.getCurrentVersion());
+        }
+
+        for (int version = 0; version < expectedVersions.size(); version++) {
+            Assertions.assertEquals(expectedVersions.get(version).entrySet(), map.entrySet(version));
+        }
+    }
+
+    @Test
+    void retentionPolicy_keepLast_discardsOlderVersions() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(10));
+        List<Map<Integer, Integer>> expectedVersions = new ArrayList<>();
+        TreeMap<Integer, Integer> expectedMap = new TreeMap<>();
+        expectedVersions.add(new TreeMap<>(expectedMap));
+        var random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            int key = random.nextInt(50);
+            if (random.nextInt(4) == 0 && map.containsKey(key)) {
+                map.remove(key);
+                expectedMap.remove(key);
+            } else {
+                map.put(key, i);
+                expectedMap.put(key, i);
+            }
+            expectedVersions.add(new TreeMap<>(expectedMap));
+        }
+
+        Assertions.assertEquals(map.getLastVersion() - 9, map.getFirstVersion());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> map.get(0, map.getFirstVersion() - 1));
+        for (long version = map.getFirstVersion(); version <= map.getLastVersion(); version++) {
+            Assertions.assertEquals(expectedVersions.get((int) version), map.entrySet(version).stream()
+                    .collect(TreeMap::new, (m, e) -> m.put(e.getKey(), e.getValue()), Map::putAll));
+        }
+        for (int i = 0; i < 20; i++) {
+            map.undo();
+        }
+        Assertions.assertEquals(map.getFirstVersion(), map.getCurrentVersion());
+        Assertions.assertEquals(expectedVersions.get((int) map.getFirstVersion()), map);
+    }
+
+    @Test
+    void compact_pinnedVersionAndSnapshot_retained() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1); // v1
+        map.pin(1);
+        map.put("b", 2); // v2
+        var snapshot = map.snapshot();
+        map.put("a", 3); // v3
+        map.remove("b"); // v4
+        map.setRetentionPolicy(RetentionPolicy.keepLast(1));
+
+        Assertions.assertEquals(1, map.getFirstVersion());
+        map.unpin(1);
+        map.compact();
+        Assertions.assertEquals(2, map.getFirstVersion());
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), snapshot);
+        Assertions.assertEquals(1, map.get("a", 2));
+        Assertions.assertEquals(Map.of("a", 3), map);
+    }
+
+    @Test
+    void retentionPolicy_keepLast_notHeldByEntrySetViews() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(3));
+        map.put(0, 0);
+        List<Object> views = List.of(map.entrySet(), map.values(), map.entrySet(map.getCurrentVersion()));
+        for (int i = 1; i <= 10; i++) {
+            map.put(i, i);
+        }
+
+        Assertions.assertEquals(map.getLastVersion() - 2, map.getFirstVersion());
+        Assertions.assertEquals(3, views.size());
+    }
+
+    @Test
+    void retentionPolicy_keepNewerThan_keepsRecentVersions() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.setRetentionPolicy(RetentionPolicy.keepNewerThan(Instant.now().plusSeconds(60)));
+
+        Assertions.assertEquals(2, map.getFirstVersion());
+        map.setRetentionPolicy(null);
+        map.put("c", 3);
+        Assertions.assertEquals(2, map.getFirstVersion());
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), map.entrySet(2).stream()
+                .collect(TreeMap::new, (m, e) -> m.put(e.getKey(), e.getValue()), Map::putAll));
+    }
+
+    @Test
+    void checkout_forkScenarios_allBranchesPreserved() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        long baseline = map.getCurrentVersion();
+        List<Long> scenarios = new ArrayList<>();
+        for (int scenario = 0; scenario < 200; scenario++) {
+            map.checkout(baseline);
+            map.put(scenario % 100, -scenario);
+            map.remove((scenario + 1) % 100);
+            scenarios.add(map.getCurrentVersion());
+        }
+
+        for (int scenario = 0; scenario < 200; scenario++) {
+            long version = scenarios.get(scenario);
+            Assertions.assertEquals(99, map.size(version));
+            Assertions.assertEquals(-scenario, map.get(scenario % 100, version));
+            Assertions.assertFalse(map.containsKey((scenario + 1) % 100, version));
+            Assertions.assertEquals((scenario + 2) % 100, map.get((scenario + 2) % 100, version));
+        }
+        Assertions.assertEquals(100, map.size(baseline));
+        Assertions.assertEquals(baseline, map.getParentVersion(scenarios.get(0) - 1));
+    }
+
+    @Test
+    void undoThenEdit_redoReturnsToOriginalBranch() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1); // v1
+        map.put("b", 2); // v2
+        map.undo();
+        map.put("c", 3); // v3, ветка от v1
+        map.undo();
+        Assertions.assertEquals(Map.of("a", 1), map);
+        map.redo();
+        Assertions.assertEquals(Map.of("a", 1, "c", 3), map);
+        map.checkout(2);
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), map);
+        map.undo();
+        map.undo();
+        Assertions.assertTrue(map.isEmpty());
+        map.redo();
+        map.redo();
+        Assertions.assertEquals(Map.of("a", 1, "b", 2), map);
+    }
+
+    @Test
+    void randomCheckouts_withRetention_sameAsTreeMap() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(30));
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            if (random.nextInt(5) == 0) {
+                map.checkout(map.getFirstVersion() + random.nextInt((int) (map.getLastVersion() - map.getFirstVersion() + 1)));
+            }
+            var expected = new TreeMap<>(expectedVersions.get((int) map.getCurrentVersion()));
+            int key = random.nextInt(100);
+            if (random.nextBoolean() && expected.containsKey(key)) {
+                expected.remove(key);
+                map.remove(key);
+            } else {
+                expected.put(key, i);
+                map.put(key, i);
+            }
+            expectedVersions.add(expected);
+        }
+
+        for (long version = map.getFirstVersion(); version <= map.getLastVersion(); version++) {
+            Assertions.assertEquals(expectedVersions.get((int) version).entrySet(), map.entrySet(version));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2})
+    void retentionPolicy_writesAfterUndo_modificationLogBounded(int slots) {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(slots);
+        map.setRetentionPolicy(RetentionPolicy.keepLast(5));
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+            expected.put(i, i);
+        }
+        for (int i = 1; i <= 3; i++) {
+            map.put(-i, i);
+        }
+        for (int i = 1; i <= 3; i++) {
+            map.undo();
+        }
+        var random = new Random(slots);
+        for (int i = 0; i < 5000; i++) {
+            var key = random.nextInt(200);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        Assertions.assertTrue(map.getModificationLogSize() < 200, "log size " + map.getModificationLogSize());
+        Assertions.assertEquals(expected, map);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4})
+    void modificationSlots_randomCheckoutsWithRetention_sameAsTreeMap(int slots) {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(slots);
+        map.setRetentionPolicy(RetentionPolicy.keepLast(200));
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var random = new Random(21);
+        for (int i = 0; i < 3000; i++) {
+            if (random.nextInt(5) == 0) {
+                map.checkout(map.getFirstVersion() + random.nextInt((int) (map.getLastVersion() - map.getFirstVersion() + 1)));
+            }
+            var expected = new TreeMap<>(expectedVersions.get((int) map.getCurrentVersion()));
+            int key = random.nextInt(100);
+            if (random.nextBoolean() && expected.containsKey(key)) {
+                expected.remove(key);
+                map.remove(key);
+            } else {
+                expected.put(key, i);
+                map.put(key, i);
+            }
+            expectedVersions.add(expected);
+        }
+
+        for (long version = map.getFirstVersion(); version <= map.getLastVersion(); version++) {
+            Assertions.assertEquals(expectedVersions.get((int) version).entrySet(), map.entrySet(version));
+        }
+        for (int i = 0; i < 100; i++) {
+            int from = (int) map.getFirstVersion() + random.nextInt(200);
+            int to = (int) map.getFirstVersion() + random.nextInt(200);
+            Assertions.assertEquals(
+                    expectedDiff(expectedVersions.get(from), expectedVersions.get(to)),
+                    map.diff(from, to).toList()
+            );
+        }
+    }
+
+    @Test
+    void diff_randomBranchingVersions_sameAsEntryComparison() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var random = new Random(5);
+        for (int i = 0; i < 1500; i++) {
+            if (random.nextInt(10) == 0) {
+                map.checkout(random.nextInt((int) map.getLastVersion() + 1));
+            }
+            var expected = new TreeMap<>(expectedVersions.get((int) map.getCurrentVersion()));
+            int key = random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map.remove(key);
+            } else if (random.nextInt(100) == 0) {
+                expected.clear();
+                map.clear();
+            } else {
+                int value = random.nextInt(5);
+                expected.put(key, value);
+                map.put(key, value);
+            }
+            while (expectedVersions.size() <= map.getLastVersion()) {
+                expectedVersions.add(expected);
+            }
+        }
+
+        for (int i = 0; i < 300; i++) {
+            int from = random.nextInt(expectedVersions.size());
+            int to = random.nextInt(expectedVersions.size());
+            Assertions.assertEquals(
+                    expectedDiff(expectedVersions.get(from), expectedVersions.get(to)),
+                    map.diff(from, to).toList()
+            );
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4})
+    void diff_modificationSlotsWithUndo_sameAsSnapshotDifference(int slots) {
+        for (int seed = 0; seed < 100; seed++) {
+            PersistentMap<Integer, Integer> map = new PersistentMap<>(slots);
+            List<TreeMap<Integer, Integer>> snapshots = new ArrayList<>();
+            snapshots.add(new TreeMap<>());
+            var random = new Random(seed);
+            for (int i = 0; i < 80; i++) {
+                int key = random.nextInt(20);
+                int operation = random.nextInt(6);
+                if (operation == 0) {
+                    map.undo();
+                } else if (operation < 4) {
+                    map.put(key, i);
+                } else {
+                    map.remove(key);
+                }
+                while (snapshots.size() <= map.getLastVersion()) {
+                    snapshots.add(new TreeMap<>(map.snapshot()));
+                }
+            }
+
+            for (int from = 0; from < snapshots.size(); from++) {
+                for (int to = 0; to < snapshots.size(); to++) {
+                    Assertions.assertEquals(
+                            expectedDiff(snapshots.get(from), snapshots.get(to)),
+                            map.diff(from, to).toList(),
+                            "seed " + seed + ", diff(" + from + ", " + to + ")"
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    void diff_afterCompaction_sameAsEntryComparison() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(10));
+        for (int i = 0; i < 1000; i++) {
+            map.put(i % 300, i);
+        }
+        var from = map.getLastVersion() - 9;
+        var fromMap = new TreeMap<Integer, Integer>();
+        map.entrySet(from).forEach(e -> fromMap.put(e.getKey(), e.getValue()));
+        var expected = expectedDiff(fromMap, new TreeMap<>(map));
+        Assertions.assertEquals(expected, map.diff(from, map.getCurrentVersion()).toList());
+        Assertions.assertEquals(9, expected.size());
+    }
+
+    @Test
+    void diff_singleChange_reportsOnlyChangedKeys() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        var from = map.getCurrentVersion();
+        map.remove(5);
+        map.put(500, -1);
+        map.put(1000, 1000);
+
+        Assertions.assertEquals(0, map.diff(from, from).count());
+        Assertions.assertEquals(
+                List.of(Change.removed(5, 5), Change.changed(500, 500, -1), Change.added(1000, 1000)),
+                map.diff(from, map.getCurrentVersion()).toList()
+        );
+        Assertions.assertEquals(
+                List.of(Change.added(5, 5), Change.changed(500, -1, 500), Change.removed(1000, 1000)),
+                map.diff(map.getCurrentVersion(), from).toList()
+        );
+    }
+
+    @Test
+    void merge_nonConflictingBranches_combinesChanges() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("host", 1);
+        map.put("port", 80);
+        map.put("timeout", 30);
+        var base = map.getCurrentVersion();
+        map.put("port", 8080);
+        map.remove("timeout");
+        var ours = map.getCurrentVersion();
+        map.checkout(base);
+        map.put("host", 2);
+        map.put("retries", 3);
+        var theirs = map.getCurrentVersion();
+
+        var merged = map.merge(base, ours, theirs, (key, b, o, t) -> {
+            throw new AssertionError("Unexpected conflict: " + key);
+        });
+
+        Assertions.assertEquals(merged, map.getCurrentVersion());
+        Assertions.assertEquals(ours, map.getParentVersion(merged));
+        Assertions.assertEquals(Map.of("host", 2, "port", 8080, "retries", 3), map);
+        Assertions.assertEquals(Map.of("host", 1, "port", 8080).entrySet(), map.entrySet(ours));
+    }
+
+    @Test
+    void merge_conflicts_passedToResolver() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1);
+        map.put("b", 1);
+        map.put("c", 1);
+        var base = map.getCurrentVersion();
+        map.put("a", 2);
+        map.remove("b");
+        map.put("c", 5);
+        var ours = map.getCurrentVersion();
+        map.checkout(base);
+        map.put("a", 3);
+        map.put("b", 3);
+        map.put("c", 5);
+        var theirs = map.getCurrentVersion();
+
+        List<String> conflicts = new ArrayList<>();
+        map.merge(base, ours, theirs, (key, b, o, t) -> {
+            conflicts.add(key + ":" + b + ":" + o + ":" + t);
+            return key.equals("a") ? o + t : t;
+        });
+
+        Assertions.assertEquals(List.of("a:1:2:3", "b:1:null:3"), conflicts);
+        Assertions.assertEquals(Map.of("a", 5, "b", 3, "c", 5), map);
+        map.undo();
+        Assertions.assertEquals(Map.of("a", 2, "c", 5), map);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4})
+    void merge_randomBranches_sameAsKeyByKeyMerge(int slots) {
+        var random = new Random(17);
+        for (int round = 0; round < 30; round++) {
+            PersistentMap<Integer, Integer> map = new PersistentMap<>(slots);
+            for (int i = 0; i < 200; i++) {
+                map.put(i, random.nextInt(3));
+            }
+            var base = map.getCurrentVersion();
+            var baseMap = new TreeMap<>(map);
+            for (int i = 0; i < 20; i++) {
+                randomEdit(map, random);
+            }
+            var ours = map.getCurrentVersion();
+            var oursMap = new TreeMap<>(map);
+            map.checkout(base);
+            for (int i = 0; i < 20; i++) {
+                randomEdit(map, random);
+            }
+            var theirs = map.getCurrentVersion();
+            var theirsMap = new TreeMap<>(map);
+
+            map.merge(base, ours, theirs, ConflictResolver.theirs());
+
+            var expected = new TreeMap<Integer, Integer>();
+            for (int key = 0; key < 250; key++) {
+                var b = baseMap.get(key);
+                var o = oursMap.get(key);
+                var t = theirsMap.get(key);
+                var value = Objects.equals(o, b) ? t : Objects.equals(t, b) ? o : t;
+                if (value != null) {
+                    expected.put(key, value);
+                }
+            }
+            Assertions.assertEquals(expected, map);
+        }
+    }
+
+    @Test
+    void orderStatistics_randomVersions_sameAsTreeMap() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.setRetentionPolicy(RetentionPolicy.keepLast(200));
+        List<TreeMap<Integer, Integer>> expectedVersions = new ArrayList<>();
+        expectedVersions.add(new TreeMap<>());
+        var random = new Random(23);
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(20) == 0) {
+                map.checkout(Math.max(map.getFirstVersion(), map.getLastVersion() - random.nextInt(50)));
+            }
+            var expected = new TreeMap<>(expectedVersions.get((int) map.getCurrentVersion()));
+            var key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map.remove(key);
+            } else {
+                expected.put(key, i);
+                map.put(key, i);
+            }
+            while (expectedVersions.size() <= map.getLastVersion()) {
+                expectedVersions.add(expected);
+            }
+        }
+
+        for (long version = map.getFirstVersion(); version <= map.getLastVersion(); version += 7) {
+            var expected = expectedVersions.get((int) version);
+            var keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < keys.size(); i++) {
+                Assertions.assertEquals(keys.get(i), map.select(i, version).getKey());
+                Assertions.assertEquals(i, map.rank(keys.get(i), version));
+            }
+            for (int j = 0; j < 20; j++) {
+                int from = random.nextInt(520) - 10;
+                int to = from + random.nextInt(200);
+                Assertions.assertEquals(expected.subMap(from, to).size(), map.countRange(from, to, version));
+                Assertions.assertEquals(expected.headMap(from).size(), map.rank(from, version));
+            }
+        }
+        Assertions.assertEquals(map.firstKey(), map.select(0).getKey());
+        Assertions.assertEquals(map.size(), map.rank(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void orderStatistics_invalidArguments_throw() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        map.put(1, 1);
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> map.select(1));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> map.select(-1));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> map.select(0, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> map.countRange(2, 1));
+        Assertions.assertEquals(0, map.countRange(1, 1));
+    }
+
+    @Test
+    void memoize_undoRedo_reusesCachedVersions() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(true);
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i * 2);
+        }
+        var entries = map.entrySet();
+        map.undo();
+        var previousEntries = map.entrySet();
+        map.redo();
+
+        Assertions.assertSame(entries, map.entrySet());
+        map.undo();
+        Assertions.assertSame(previousEntries, map.entrySet());
+        Assertions.assertEquals(9, map.values().size());
+        Assertions.assertEquals(2, map.getMemoizedMisses());
+        Assertions.assertEquals(3, map.getMemoizedHits());
+    }
+
+    @Test
+    void memoize_batch_dropsStaleVersion() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(true);
+        map.applyBatch(m -> {
+            m.put(1, 1);
+            Assertions.assertEquals(Set.of(Map.entry(1, 1)), m.entrySet());
+            m.put(2, 2);
+            Assertions.assertEquals(Set.of(Map.entry(1, 1), Map.entry(2, 2)), m.entrySet());
+            Assertions.assertEquals(List.of(1, 2), m.values());
+        });
+        Assertions.assertEquals(Map.of(1, 1, 2, 2).hashCode(), map.hashCode());
+    }
+
+    @Test
+    void memoize_limitedVersions_evictsLeastRecentlyUsed() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>(2, Long.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            map.put(i, i);
+            map.entrySet();
+        }
+        map.checkout(1);
+        map.entrySet();
+
+        Assertions.assertEquals(4, map.getMemoizedMisses());
+        Assertions.assertEquals(Map.of(0, 0).entrySet(), map.entrySet());
+        map.checkout(3);
+        map.entrySet();
+        Assertions.assertEquals(4, map.getMemoizedMisses());
+        map.checkout(2);
+        map.entrySet();
+        Assertions.assertEquals(5, map.getMemoizedMisses());
+    }
+
+    @Test
+    void equalsAndHashCode_followMapContract() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1);
+        map.put("b", 2);
+        var expected = new HashMap<>(Map.of("a", 1, "b", 2));
+
+        Assertions.assertEquals(expected, map);
+        Assertions.assertEquals(map, expected);
+        Assertions.assertEquals(expected.hashCode(), map.hashCode());
+        map.put("b", 3);
+        Assertions.assertNotEquals(map, expected);
+        Assertions.assertNotEquals(map, Map.of(1, 1, 2, 2));
+    }
+
+    @Test
+    void entrySet_parallelStream_matchesSequential() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        var expected = new TreeMap<Integer, Integer>();
+        var random = new Random(19);
+        for (var i = 0; i < 50_000; i++) {
+            var key = random.nextInt(100_000);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        Assertions.assertEquals(expected.size(), map.entrySet().parallelStream().count());
+        Assertions.assertEquals(
+                expected.values().stream().mapToLong(Integer::longValue).sum(),
+                map.entrySet().parallelStream().mapToLong(Map.Entry::getValue).sum());
+        Assertions.assertEquals(
+                new ArrayList<>(expected.keySet()),
+                map.entrySet().parallelStream().map(Map.Entry::getKey).toList());
+    }
+
+    @Test
+    void entrySet_spliterator_splitsIntoExactlySizedParts() {
+        PersistentMap<Integer, Integer> map = new PersistentMap<>();
+        for (var i = 0; i < 1000; i++) {
+            map.put(i, -i);
+        }
+        var spliterator = map.entrySet().spliterator();
+        Assertions.assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        Assertions.assertEquals(1000, spliterator.getExactSizeIfKnown());
+
+        var prefix = spliterator.trySplit();
+        Assertions.assertNotNull(prefix);
+        Assertions.assertEquals(1000, prefix.getExactSizeIfKnown() + spliterator.getExactSizeIfKnown());
+        List<Integer> keys = new ArrayList<>();
+        prefix.forEachRemaining(entry -> keys.add(entry.getKey()));
+        spliterator.forEachRemaining(entry -> keys.add(entry.getKey()));
+        Assertions.assertEquals(IntStream.range(0, 1000).boxed().toList(), keys);
+    }
+
+    @Test
+    void entrySet_isReadOnlyViewOfVersion() {
+        PersistentMap<String, Integer> map = new PersistentMap<>();
+        map.put("a", 1);
+        var entrySet = map.entrySet();
+        map.put("b", 2);
+
+        Assertions.assertEquals(Set.of(Map.entry("a", 1)), entrySet);
+        Assertions.assertTrue(entrySet.contains(Map.entry("a", 1)));
+        Assertions.assertFalse(entrySet.contains(Map.entry(1, 1)));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> entrySet.remove(Map.entry("a", 1)));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> entrySet.iterator().remove());
+    }
+
+    private static void randomEdit(PersistentMap<Integer, Integer> map, Random random) {
+        var key = random.nextInt(250);
+        if (random.nextInt(3) == 0) {
+            map.remove(key);
+        } else {
+            map.put(key, random.nextInt(3));
+        }
+    }
+
+    private static <K, V> List<Change<K, V>> expectedDiff(NavigableMap<K, V> from, NavigableMap<K, V> to) {
+        var keys = new TreeMap<K, Boolean>();
+        from.keySet().forEach(key -> keys.put(key, true));
+        to.keySet().forEach(key -> keys.put(key, true));
+        List<Change<K, V>> result = new ArrayList<>();
+        for (var key : keys.keySet()) {
+            if (!to.containsKey(key)) {
+                result.add(Change.removed(key, from.get(key)));
+            } else if (!from.containsKey(key)) {
+                result.add(Change.added(key, to.get(key)));
+            } else if (!from.get(key).equals(to.get(key))) {
+                result.add(Change.changed(key, from.get(key), to.get(key)));
+            }
+        }
+        return result;
+    }
+
     private <T> void assertSameModifyEffect(
             Consumer<Map<String, Integer>> modifier,
             Function<Map<String, Integer>, T> effectFeature) {